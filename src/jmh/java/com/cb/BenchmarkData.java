@@ -0,0 +1,117 @@
+package com.cb;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Synthetic datasets for the benchmarks, made by cloning the sample areas.json and zones.json.
+ * Clones keep their coordinates so they render with the bundled tiles, only the ids change.
+ * When there's no zones.json, zones are synthesized by splitting each area's outline into one
+ * curbette per curb_zone_id, joined end to end.
+ * The sample files are looked up in the working directory unless -Dcw.areas / -Dcw.zones say otherwise.
+ */
+final class BenchmarkData {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private BenchmarkData() {
+    }
+
+    private static ArrayNode sampleAreas() throws Exception {
+        JsonNode root = MAPPER.readTree(new File(System.getProperty("cw.areas", "areas.json")));
+        return (ArrayNode) root.get("areas");
+    }
+
+    private static ArrayNode sampleZones(ArrayNode areas) throws Exception {
+        File file = new File(System.getProperty("cw.zones", "zones.json"));
+        if (file.exists()) {
+            return (ArrayNode) MAPPER.readTree(file).get("zones");
+        }
+        ArrayNode zones = MAPPER.createArrayNode();
+        for (JsonNode area : areas) {
+            JsonNode ring = area.get("geometry").get("coordinates").get(0);
+            JsonNode ids = area.get("curb_zone_ids");
+            int segments = ring.size() - 1;
+            for (int i = 0; i < ids.size(); i++) {
+                int start = i * segments / ids.size();
+                int end = Math.max(start + 1, (i + 1) * segments / ids.size());
+                ArrayNode line = MAPPER.createArrayNode();
+                for (int v = start; v <= end; v++) {
+                    line.add(ring.get(v));
+                }
+                ObjectNode zone = zones.addObject();
+                zone.put("curb_zone_id", ids.get(i).asText());
+                zone.putObject("geometry").put("type", "LineString").set("coordinates", line);
+                zone.put("published_date", area.get("published_date").asLong());
+                zone.put("last_updated_date", area.get("last_updated_date").asLong());
+                zone.put("street_name", "STREET " + (i % 3));
+                zone.putArray("curb_policy_ids").add("policy-" + (i % 2));
+                zone.putArray("location_references").addObject()
+                        .put("source", "https://sharedstreets.io").put("start", 0.0).put("end", 10.5);
+                zone.put("num_spaces", i % 4);
+            }
+        }
+        return zones;
+    }
+
+    /**
+     * @param scale  How many copies of the sample areas
+     * @return an areas document
+     */
+    static byte[] areasJson(int scale) throws Exception {
+        ArrayNode sample = sampleAreas();
+        ObjectNode root = MAPPER.createObjectNode();
+        ArrayNode areas = root.putArray("areas");
+        for (int copy = 0; copy < scale; copy++) {
+            for (JsonNode area : sample) {
+                ObjectNode clone = area.deepCopy();
+                clone.put("curb_area_id", area.get("curb_area_id").asText() + "-" + copy);
+                ArrayNode ids = clone.putArray("curb_zone_ids");
+                for (JsonNode id : area.get("curb_zone_ids")) {
+                    ids.add(id.asText() + "-" + copy);
+                }
+                areas.add(clone);
+            }
+        }
+        return MAPPER.writeValueAsBytes(root);
+    }
+
+    /**
+     * @param scale  How many copies of the sample zones
+     * @return a zones document whose ids match areasJson(scale)
+     */
+    static byte[] zonesJson(int scale) throws Exception {
+        ArrayNode sample = sampleZones(sampleAreas());
+        ObjectNode root = MAPPER.createObjectNode();
+        ArrayNode zones = root.putArray("zones");
+        for (int copy = 0; copy < scale; copy++) {
+            for (JsonNode zone : sample) {
+                ObjectNode clone = zone.deepCopy();
+                clone.put("curb_zone_id", zone.get("curb_zone_id").asText() + "-" + copy);
+                zones.add(clone);
+            }
+        }
+        return MAPPER.writeValueAsBytes(root);
+    }
+
+    static Map<String, Zone> zones(byte[] zonesJson) throws Exception {
+        Map<String, Zone> zonesMap = new HashMap<>();
+        ZoneProcessor.processZones(new ByteArrayInputStream(zonesJson), zone -> zonesMap.put(zone.getCurbZoneId(), zone));
+        return zonesMap;
+    }
+
+    static List<Area> areas(byte[] areasJson, Map<String, Zone> zonesMap) throws Exception {
+        List<Area> areas = new ArrayList<>();
+        AreaProcessor.processAreas(new ByteArrayInputStream(areasJson), zonesMap, areas::add);
+        return areas;
+    }
+}
@@ -0,0 +1,72 @@
+package com.cb;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chaining curbettes into curbs. Besides the sample zones there's one long synthetic curb,
+ * split into shuffled segments, which shows how the join scales with curb length.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConcatenateBenchmark {
+
+    @Param({"100", "10000"})
+    int segments;
+
+    final MapRenderer renderer = new MapRenderer();
+    List<List<int[]>> sampleLines;
+    List<int[]> longCurb;
+
+    @Setup
+    public void setup() throws Exception {
+        List<Area> areas = BenchmarkData.areas(BenchmarkData.areasJson(1), BenchmarkData.zones(BenchmarkData.zonesJson(1)));
+        sampleLines = new ArrayList<>();
+        for (Area area : areas) {
+            List<int[]> lines = new ArrayList<>();
+            for (Zone zone : area.getCurbZones()) {
+                Geometry geometry = zone.getGeometry();
+                int[] pixels = new int[geometry.getVertexCount() * 2];
+                CoordinateUtils.project(geometry.getCoordinates(), 0, geometry.getVertexCount(), 20, pixels, null);
+                lines.add(pixels);
+            }
+            sampleLines.add(lines);
+        }
+
+        //A zig-zag curb of 4 vertex segments sharing their end points
+        longCurb = new ArrayList<>();
+        int x = 0;
+        for (int s = 0; s < segments; s++) {
+            int[] line = new int[8];
+            for (int v = 0; v < 4; v++) {
+                line[v * 2] = x + v;
+                line[v * 2 + 1] = (x + v) % 2;
+            }
+            x += 3;
+            longCurb.add(line);
+        }
+        Collections.shuffle(longCurb, new Random(42));
+    }
+
+    @Benchmark
+    public void sampleZones(Blackhole bh) {
+        for (List<int[]> lines : sampleLines) {
+            bh.consume(renderer.concatenateLines(lines));
+        }
+    }
+
+    @Benchmark
+    public List<int[]> longCurb() {
+        return renderer.concatenateLines(longCurb);
+    }
+}
@@ -0,0 +1,44 @@
+package com.cb;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deserializing zones and areas from in-memory JSON, so only the parse is measured
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({"1", "100"})
+    int scale;
+
+    byte[] zonesJson;
+    byte[] areasJson;
+    Map<String, Zone> zonesMap;
+
+    @Setup
+    public void setup() throws Exception {
+        zonesJson = BenchmarkData.zonesJson(scale);
+        areasJson = BenchmarkData.areasJson(scale);
+        zonesMap = BenchmarkData.zones(zonesJson);
+    }
+
+    @Benchmark
+    public void processZones(Blackhole bh) throws Exception {
+        ZoneProcessor.processZones(new ByteArrayInputStream(zonesJson), bh::consume);
+    }
+
+    @Benchmark
+    public void processAreas(Blackhole bh) throws Exception {
+        AreaProcessor.processAreas(new ByteArrayInputStream(areasJson), zonesMap, bh::consume);
+    }
+}
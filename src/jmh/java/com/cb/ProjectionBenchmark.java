@@ -0,0 +1,78 @@
+package com.cb;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Projecting every area vertex to pixels, one point at a time and in a batch, and finding their bounds.
+ * Densifying subdivides every edge of the areas, for outlines with many vertices. The vectorised cases need the
+ * vector profile as well as this one
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class ProjectionBenchmark {
+
+    @Param({"1", "100"})
+    int scale;
+
+    @Param({"1", "64"})
+    int densify;
+
+    @Param({"false", "true"})
+    boolean vectorised;
+
+    double[] lonLat;
+    int[] pixels;
+
+    @Setup
+    public void setup() throws Exception {
+        CoordinateUtils.setVectorised(vectorised);
+        List<Area> areas = BenchmarkData.areas(BenchmarkData.areasJson(scale), BenchmarkData.zones(BenchmarkData.zonesJson(scale)));
+        int vertices = 0;
+        for (Area area : areas) {
+            vertices += area.getGeometry().getVertexCount() * densify;
+        }
+        lonLat = new double[vertices * 2];
+        int offset = 0;
+        for (Area area : areas) {
+            double[] coordinates = area.getGeometry().getCoordinates();
+            for (int i = 0; i < coordinates.length; i += 2) {
+                //Towards the next vertex, wrapping round to the first
+                int next = (i + 2) % coordinates.length;
+                for (int d = 0; d < densify; d++) {
+                    lonLat[offset++] = coordinates[i] + (coordinates[next] - coordinates[i]) * d / densify;
+                    lonLat[offset++] = coordinates[i + 1] + (coordinates[next + 1] - coordinates[i + 1]) * d / densify;
+                }
+            }
+        }
+        pixels = new int[lonLat.length];
+        CoordinateUtils.project(lonLat, 0, lonLat.length / 2, 20, pixels, null);
+    }
+
+    @Benchmark
+    public void toPixelCoordinates(Blackhole bh) {
+        for (int i = 0; i < lonLat.length; i += 2) {
+            bh.consume(CoordinateUtils.toPixelCoordinates(lonLat[i], lonLat[i + 1], 20));
+        }
+    }
+
+    @Benchmark
+    public int[] project() {
+        CoordinateUtils.project(lonLat, 0, lonLat.length / 2, 20, pixels, null);
+        return pixels;
+    }
+
+    @Benchmark
+    public int[] bounds() {
+        int[] bounds = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+        CoordinateUtils.bounds(pixels, 0, pixels.length, bounds);
+        return bounds;
+    }
+}
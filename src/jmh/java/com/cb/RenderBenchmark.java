@@ -0,0 +1,57 @@
+package com.cb;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The full renderMap for each sample area, with a warm tile cache, with and without PNG encoding
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RenderBenchmark {
+
+    @Param({"true", "false"})
+    boolean straight;
+
+    final MapRenderer renderer = new MapRenderer();
+    List<Area> areas;
+    int next;
+
+    @Setup
+    public void setup() throws Exception {
+        areas = BenchmarkData.areas(BenchmarkData.areasJson(1), BenchmarkData.zones(BenchmarkData.zonesJson(1)));
+        //Fill the tile cache
+        for (Area area : areas) {
+            renderer.renderMap(area, 20, straight);
+        }
+    }
+
+    private Area nextArea() {
+        Area area = areas.get(next);
+        next = (next + 1) % areas.size();
+        return area;
+    }
+
+    @Benchmark
+    public BufferedImage renderMap() {
+        return renderer.renderMap(nextArea(), 20, straight);
+    }
+
+    @Benchmark
+    public byte[] renderMapAndEncode() throws IOException {
+        BufferedImage image = renderer.renderMap(nextArea(), 20, straight);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 20);
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+}
@@ -24,6 +24,19 @@ public class Area {
 
     private List<Zone> curbZones;
 
+    public Area() {
+    }
+
+    /**
+     * An area which is only an outline, e.g. a bounding box to render, whose zones are found spatially
+     * @param curbAreaId  The id, or null
+     * @param geometry  The outline
+     */
+    Area(String curbAreaId, Geometry geometry) {
+        this.curbAreaId = curbAreaId;
+        this.geometry = geometry;
+    }
+
     public void setCurbZones(List<Zone> curbZones) {
         this.curbZones = curbZones;
     }
@@ -40,6 +53,14 @@ public class Area {
         return curbAreaId;
     }
 
+    public long getPublishedDate() {
+        return publishedDate;
+    }
+
+    public long getLastUpdatedDate() {
+        return lastUpdatedDate;
+    }
+
     public Geometry getGeometry() {
         return geometry;
     }
@@ -47,29 +68,4 @@ public class Area {
     public void setGeometry(Geometry geometry) {
         this.geometry = geometry;
     }
-
-    public static class Geometry {
-        private String type;
-        //nested?
-        private List<List<List<Double>>> coordinates;
-
-        public String getType() {
-            return type;
-        }
-
-        public void setType(String type) {
-            this.type = type;
-        }
-
-        public List<List<Double>> getCoordinates() {
-            return coordinates.get(0);
-        }
-
-        public void setCoordinates(List<List<List<Double>>> coordinates) {
-            this.coordinates = coordinates;
-        }
-    }
-
-
 }
-
@@ -0,0 +1,9 @@
+package com.cb;
+
+/**
+ * Receives each area as it's parsed, with its zones associated
+ */
+@FunctionalInterface
+interface AreaConsumer {
+    void accept(Area area);
+}
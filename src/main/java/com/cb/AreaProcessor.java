@@ -1,14 +1,15 @@
 package com.cb;
 
-import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Deals with parsing areas from the stream by deserializing the json
@@ -22,13 +23,43 @@ public class AreaProcessor {
      * @throws Exception
      */
     public static void processAreas(InputStream in, Map<String, Zone> zonesMap, AreaConsumer consumer) throws Exception {
-        ObjectMapper objectMapper = new ObjectMapper();
-        JsonFactory factory = objectMapper.getFactory();
+        processAreas(in, zonesMap, null, ZoneResolution.IDS, consumer);
+    }
+
+    /**
+     * Starts the parse of areas and calls back on the FunctionalInterface, finding zones with a spatial index
+     * as well as or instead of by id
+     * @param in  The json area data
+     * @param zonesMap  A Map of Zones
+     * @param zoneIndex  A spatial index of the same zones, only needed if resolution isn't IDS
+     * @param resolution  How to find an area's zones
+     * @param consumer  The consumer
+     * @throws Exception
+     */
+    public static void processAreas(InputStream in, Map<String, Zone> zonesMap, ZoneIndex zoneIndex,
+                                    ZoneResolution resolution, AreaConsumer consumer) throws Exception {
+        processAreas(in, (ZoneLookup) zonesMap::get, zoneIndex, resolution, consumer);
+    }
 
-        try (JsonParser parser = factory.createParser(in)) {
+    /**
+     * Starts the parse of areas and calls back on the FunctionalInterface, finding zones by id in a ZoneLookup,
+     * e.g. a ZoneStore, rather than a Map
+     * @param in  The json area data
+     * @param zones  Finds Zones by id
+     * @param zoneIndex  A spatial index of the same zones, only needed if resolution isn't IDS
+     * @param resolution  How to find an area's zones
+     * @param consumer  The consumer
+     * @throws Exception
+     */
+    public static void processAreas(InputStream in, ZoneLookup zones, ZoneIndex zoneIndex,
+                                    ZoneResolution resolution, AreaConsumer consumer) throws Exception {
+        if (resolution != ZoneResolution.IDS && zoneIndex == null) {
+            throw new IllegalArgumentException(resolution + " needs a ZoneIndex");
+        }
+        try (JsonParser parser = Json.FACTORY.createParser(in)) {
 
             while (parser.nextToken() != null) {
-                String fieldName = parser.getCurrentName();
+                String fieldName = parser.currentName();
                 if ("areas".equals(fieldName)) {
                     parser.nextToken();
                     break;
@@ -36,25 +67,82 @@ public class AreaProcessor {
             }
 
             if (parser.currentToken() == JsonToken.START_ARRAY) {
+                Metrics metrics = Metrics.global();
                 while (parser.nextToken() == JsonToken.START_OBJECT) {
-                    Area area = objectMapper.readValue(parser, Area.class);
+                    long start = System.nanoTime();
+                    Area area = Json.AREA_READER.readValue(parser);
+                    start = metrics.record(Metrics.Stage.PARSE_AREA, start);
 
-                    List<Zone> associatedZones = new ArrayList<>();
-                    for (String curbZoneId : area.getCurbZoneIds()) {
-                        if (zonesMap.containsKey(curbZoneId)) {
-                            associatedZones.add(zonesMap.get(curbZoneId));
-                        }
-                    }
-                    area.setCurbZones(associatedZones);
+                    area.setCurbZones(associateZones(area, zones, zoneIndex, resolution));
+                    metrics.record(Metrics.Stage.ASSOCIATE, start);
 
                     consumer.accept(area);
                 }
             }
         }
     }
-}
 
-@FunctionalInterface
-interface AreaConsumer {
-    void accept(Area area);
+    /**
+     * Parses areas in parallel, deserializing chunks of the file and finding their zones on a pool
+     * @param areas  The json area data
+     * @param zones  Finds Zones by id, it must be safe to use from several threads as a Map is for reading
+     * @param zoneIndex  A spatial index of the same zones, only needed if resolution isn't IDS
+     * @param resolution  How to find an area's zones
+     * @param pool  Deserializes the areas
+     * @param ordered  Pass areas to the consumer in file order rather than as they're ready
+     * @param consumer  The consumer, called on the calling thread
+     * @throws Exception
+     */
+    public static void processAreas(MappedFile areas, ZoneLookup zones, ZoneIndex zoneIndex, ZoneResolution resolution,
+                                    ForkJoinPool pool, boolean ordered, AreaConsumer consumer) throws Exception {
+        if (resolution != ZoneResolution.IDS && zoneIndex == null) {
+            throw new IllegalArgumentException(resolution + " needs a ZoneIndex");
+        }
+        Metrics metrics = Metrics.global();
+        ChunkedJson.<Area>parse(areas, "areas", Json.AREA_READER, Metrics.Stage.PARSE_AREA, area -> {
+            long start = System.nanoTime();
+            area.setCurbZones(associateZones(area, zones, zoneIndex, resolution));
+            metrics.record(Metrics.Stage.ASSOCIATE, start);
+            return area;
+        }, pool, ordered, consumer::accept);
+    }
+
+    /**
+     * Finds the zones of an area
+     * @return the zones in curb_zone_ids order, followed by any found spatially
+     */
+    static List<Zone> associateZones(Area area, ZoneLookup zones, ZoneIndex zoneIndex,
+                                     ZoneResolution resolution) {
+        if (resolution == ZoneResolution.SPATIAL) {
+            return zoneIndex.intersecting(area.getGeometry());
+        }
+
+        List<Zone> associatedZones = new ArrayList<>();
+        List<String> ids = area.getCurbZoneIds();
+        boolean stale = ids == null || ids.isEmpty();
+        if (ids != null) {
+            for (String curbZoneId : ids) {
+                Zone zone = zones.get(curbZoneId);
+                if (zone != null) {
+                    associatedZones.add(zone);
+                } else {
+                    stale = true;
+                }
+            }
+        }
+
+        if (stale && resolution == ZoneResolution.IDS_THEN_SPATIAL) {
+            //By id, as a ZoneStore creates a new Zone on each lookup
+            Set<String> known = new HashSet<>();
+            for (Zone zone : associatedZones) {
+                known.add(zone.getCurbZoneId());
+            }
+            for (Zone zone : zoneIndex.intersecting(area.getGeometry())) {
+                if (known.add(zone.getCurbZoneId())) {
+                    associatedZones.add(zone);
+                }
+            }
+        }
+        return associatedZones;
+    }
 }
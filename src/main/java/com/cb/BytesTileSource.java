@@ -0,0 +1,263 @@
+package com.cb;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A TileSource which reads encoded tiles from local storage, decoding them as they're loaded.
+ * Prefetching reads the encoded bytes of a range in the background so the loads that follow don't wait on the disk.
+ */
+abstract class BytesTileSource implements TileSource {
+
+    //Bounds the bytes read ahead but not yet loaded, ~25MB of typical 100KB tiles
+    private static final int MAX_PREFETCHED = 256;
+
+    private final Map<Long, CompletableFuture<byte[]>> prefetched = new ConcurrentHashMap<>();
+
+    /**
+     * @return the encoded tile, or null if there isn't one
+     */
+    abstract byte[] read(int zoom, int x, int y) throws IOException;
+
+    /**
+     * @return the name of a tile for messages
+     */
+    abstract String describe(int zoom, int x, int y);
+
+    /**
+     * Reads the tiles of a range, the default a tile at a time
+     * @param futures  Completed with each tile's bytes or null, indexed by (x - minX) * rows + (y - minY)
+     */
+    void readRange(int zoom, int minX, int minY, int maxX, int maxY, List<CompletableFuture<byte[]>> futures)
+            throws IOException {
+        int rows = maxY - minY + 1;
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+                futures.get((x - minX) * rows + (y - minY)).complete(read(zoom, x, y));
+            }
+        }
+    }
+
+    @Override
+    public BufferedImage load(int zoom, int x, int y) throws IOException {
+        byte[] bytes = null;
+        boolean read = false;
+        CompletableFuture<byte[]> future = prefetched.remove(TileCache.key(zoom, x, y));
+        if (future != null) {
+            try {
+                bytes = future.join();
+                read = true;
+            } catch (CompletionException e) {
+                //Try again below, the prefetch may have failed for another tile in the range
+            }
+        }
+        if (!read) {
+            bytes = read(zoom, x, y);
+        }
+        if (bytes == null) {
+            throw new IOException("Tile not found: " + describe(zoom, x, y));
+        }
+        BufferedImage tile = ImageIO.read(new ByteArrayInputStream(bytes));
+        if (tile == null) {
+            throw new IOException("Tile can't be decoded: " + describe(zoom, x, y));
+        }
+        return tile;
+    }
+
+    @Override
+    public void prefetch(int zoom, int minX, int minY, int maxX, int maxY) {
+        long count = (long) (maxX - minX + 1) * (maxY - minY + 1);
+        if (count <= 0 || count > MAX_PREFETCHED) {
+            return;
+        }
+        if (prefetched.size() + count > MAX_PREFETCHED) {
+            //Drop reads that were never loaded, e.g. because the tile was already cached
+            prefetched.values().removeIf(CompletableFuture::isDone);
+            if (prefetched.size() + count > MAX_PREFETCHED) {
+                return;
+            }
+        }
+        List<CompletableFuture<byte[]>> futures = new ArrayList<>((int) count);
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+                CompletableFuture<byte[]> future = new CompletableFuture<>();
+                //A tile already being read ahead keeps its read, this one is only completed for readRange
+                prefetched.putIfAbsent(TileCache.key(zoom, x, y), future);
+                futures.add(future);
+            }
+        }
+        TileCache.IO.execute(() -> {
+            try {
+                readRange(zoom, minX, minY, maxX, maxY, futures);
+            } catch (Throwable t) {
+                for (CompletableFuture<byte[]> f : futures) {
+                    f.completeExceptionally(t);
+                }
+            }
+        });
+    }
+
+    /**
+     * Tiles bundled as resources
+     */
+    static class Classpath extends BytesTileSource {
+        private final String template;
+
+        Classpath(String template) {
+            this.template = template;
+        }
+
+        @Override
+        byte[] read(int zoom, int x, int y) throws IOException {
+            try (InputStream in = MapRenderer.class.getResourceAsStream(describe(zoom, x, y))) {
+                return in != null ? in.readAllBytes() : null;
+            }
+        }
+
+        @Override
+        String describe(int zoom, int x, int y) {
+            return TileSource.expand(template, zoom, x, y);
+        }
+
+        @Override
+        public String toString() {
+            return "classpath:" + template;
+        }
+    }
+
+    /**
+     * Tiles in a directory tree
+     */
+    static class Directory extends BytesTileSource {
+        private final Path root;
+        private final String template;
+
+        Directory(Path root, String template) {
+            this.root = root;
+            this.template = template;
+        }
+
+        @Override
+        byte[] read(int zoom, int x, int y) throws IOException {
+            try {
+                return Files.readAllBytes(root.resolve(TileSource.expand(template, zoom, x, y)));
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        }
+
+        @Override
+        String describe(int zoom, int x, int y) {
+            return root.resolve(TileSource.expand(template, zoom, x, y)).toString();
+        }
+
+        @Override
+        public String toString() {
+            return root.toAbsolutePath().resolve(template).toString();
+        }
+    }
+
+    /**
+     * An MBTiles SQLite database. Rows are numbered from the bottom (TMS) so y is flipped.
+     * SQLite connections aren't thread safe so reads are serialized, which costs little as they're served
+     * from SQLite's page cache, and prefetching reads a whole range in one query.
+     */
+    static class MBTiles extends BytesTileSource {
+        private final Path file;
+        private final Connection connection;
+        private final PreparedStatement tile;
+        private final PreparedStatement range;
+
+        MBTiles(Path file) throws IOException {
+            this.file = file;
+            if (!Files.isRegularFile(file)) {
+                throw new NoSuchFileException(file.toString());
+            }
+            try {
+                connection = DriverManager.getConnection("jdbc:sqlite:" + file.toAbsolutePath());
+                tile = connection.prepareStatement("SELECT tile_data FROM tiles"
+                        + " WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?");
+                range = connection.prepareStatement("SELECT tile_column, tile_row, tile_data FROM tiles"
+                        + " WHERE zoom_level = ? AND tile_column BETWEEN ? AND ? AND tile_row BETWEEN ? AND ?");
+            } catch (SQLException e) {
+                throw new IOException("Can't open MBTiles " + file + ", is an SQLite JDBC driver on the classpath?", e);
+            }
+        }
+
+        @Override
+        synchronized byte[] read(int zoom, int x, int y) throws IOException {
+            try {
+                tile.setInt(1, zoom);
+                tile.setInt(2, x);
+                tile.setInt(3, (1 << zoom) - 1 - y);
+                try (ResultSet rs = tile.executeQuery()) {
+                    return rs.next() ? rs.getBytes(1) : null;
+                }
+            } catch (SQLException e) {
+                throw new IOException("Can't read " + describe(zoom, x, y), e);
+            }
+        }
+
+        @Override
+        synchronized void readRange(int zoom, int minX, int minY, int maxX, int maxY,
+                                    List<CompletableFuture<byte[]>> futures) throws IOException {
+            int rows = maxY - minY + 1;
+            int flip = (1 << zoom) - 1;
+            try {
+                range.setInt(1, zoom);
+                range.setInt(2, minX);
+                range.setInt(3, maxX);
+                range.setInt(4, flip - maxY);
+                range.setInt(5, flip - minY);
+                try (ResultSet rs = range.executeQuery()) {
+                    while (rs.next()) {
+                        int x = rs.getInt(1), y = flip - rs.getInt(2);
+                        futures.get((x - minX) * rows + (y - minY)).complete(rs.getBytes(3));
+                    }
+                }
+            } catch (SQLException e) {
+                throw new IOException("Can't read " + file, e);
+            }
+            //Whatever's left isn't in the file
+            for (CompletableFuture<byte[]> f : futures) {
+                f.complete(null);
+            }
+        }
+
+        @Override
+        String describe(int zoom, int x, int y) {
+            return file + " " + zoom + "/" + x + "/" + y;
+        }
+
+        @Override
+        public String toString() {
+            return file.toAbsolutePath().toString();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.cb;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reuses canvases between renders. A canvas is a whole number of tiles each way, so areas of a similar size
+ * share a handful of sizes and a released canvas is usually the right size for a later area. Each canvas keeps
+ * its Graphics2D, which is reset rather than created again. Canvases are large enough that the garbage collector
+ * allocates them as humongous objects, which reusing them avoids.
+ * <p>
+ * Idle canvases are kept up to a pixel budget, beyond which released canvases are left for the garbage collector.
+ * Thread safe.
+ */
+public final class CanvasPool {
+
+    //64M pixels, 256MB of ARGB
+    public static final long DEFAULT_MAX_PIXELS = 64L << 20;
+
+    private static final AffineTransform IDENTITY = new AffineTransform();
+
+    private final long maxPixels;
+    private final Map<Long, Queue<BufferedImage>> idle = new ConcurrentHashMap<>();
+    private final Map<BufferedImage, Graphics2D> graphics = new ConcurrentHashMap<>();
+    private final AtomicLong idlePixels = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param maxPixels  The most pixels of idle canvases to keep
+     */
+    public CanvasPool(long maxPixels) {
+        if (maxPixels < 0) {
+            throw new IllegalArgumentException("maxPixels can't be negative: " + maxPixels);
+        }
+        this.maxPixels = maxPixels;
+    }
+
+    public CanvasPool() {
+        this(DEFAULT_MAX_PIXELS);
+    }
+
+    /**
+     * @param width  The width in pixels
+     * @param height  The height in pixels
+     * @return an idle TYPE_INT_ARGB canvas of that size, or a new one. Its previous contents are left in place
+     */
+    public BufferedImage acquire(int width, int height) {
+        Queue<BufferedImage> queue = idle.get(key(width, height));
+        BufferedImage image = queue != null ? queue.poll() : null;
+        if (image != null) {
+            idlePixels.addAndGet(-(long) width * height);
+            hits.increment();
+            return image;
+        }
+        misses.increment();
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        graphics.put(image, image.createGraphics());
+        return image;
+    }
+
+    /**
+     * @param image  A canvas from acquire
+     * @return its Graphics2D, reset to the state a new one would be in as far as rendering relies on
+     */
+    public Graphics2D graphics(BufferedImage image) {
+        Graphics2D g = graphics.get(image);
+        if (g == null) {
+            throw new IllegalArgumentException("Not a canvas from this pool");
+        }
+        g.setTransform(IDENTITY);
+        g.setClip(null);
+        g.setComposite(AlphaComposite.SrcOver);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_DEFAULT);
+        return g;
+    }
+
+    /**
+     * Returns a canvas for reuse. It mustn't be used after this
+     * @param image  A canvas from acquire, ignored if null
+     */
+    public void release(BufferedImage image) {
+        if (image == null || !graphics.containsKey(image)) {
+            return;
+        }
+        long pixels = (long) image.getWidth() * image.getHeight();
+        if (idlePixels.addAndGet(pixels) > maxPixels) {
+            idlePixels.addAndGet(-pixels);
+            Graphics2D g = graphics.remove(image);
+            if (g != null) {
+                g.dispose();
+            }
+            return;
+        }
+        idle.computeIfAbsent(key(image.getWidth(), image.getHeight()), k -> new ConcurrentLinkedQueue<>()).add(image);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private static long key(int width, int height) {
+        return ((long) width << 32) | height;
+    }
+
+    @Override
+    public String toString() {
+        return "CanvasPool[hits=" + getHits() + ", misses=" + getMisses() + ", idle=" + idlePixels.get() + "px]";
+    }
+}
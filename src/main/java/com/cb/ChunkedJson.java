@@ -0,0 +1,326 @@
+package com.cb;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Deserializes the objects of a JSON array in parallel. The calling thread scans the mapped file for the
+ * boundaries of the array's objects, which only needs to track strings, escapes and nesting so is far quicker than
+ * parsing, and hands them out in chunks to be deserialized on a pool. Results are passed to the consumer on the
+ * calling thread, either in file order or as chunks finish.
+ */
+final class ChunkedJson {
+
+    //Big enough that a task outweighs handing it out, small enough to spread a modest file over the pool
+    static final int CHUNK_BYTES = 256 * 1024;
+    static final int CHUNK_OBJECTS = 256;
+
+    private ChunkedJson() {
+    }
+
+    /**
+     * @param file  The JSON
+     * @param field  The name of the array, the first field with this name is used as the streaming parsers do
+     * @param reader  Reads one object
+     * @param stage  What to time each object's deserialization as
+     * @param prepare  Applied to each object on the pool after it's read, e.g. to associate zones
+     * @param pool  Deserializes the chunks
+     * @param ordered  Pass objects to the consumer in file order, otherwise a chunk's objects are passed as soon as
+     *                 it's done, which keeps the pool busier when objects vary in cost
+     * @param consumer  Receives each object on the calling thread
+     * @param <T>  The type of object
+     * @throws Exception if the JSON is malformed or an object can't be read
+     */
+    static <T> void parse(MappedFile file, String field, ObjectReader reader, Metrics.Stage stage,
+                          UnaryOperator<T> prepare, ForkJoinPool pool, boolean ordered, Consumer<T> consumer)
+            throws Exception {
+        parse(file, field, (parser, position) -> reader.<T>readValue(parser), stage, prepare, pool, ordered, consumer);
+    }
+
+    /**
+     * Reads one object
+     */
+    @FunctionalInterface
+    interface ObjectParser<T> {
+        /**
+         * @param parser  A parser whose current token is the object's START_OBJECT. It should be left on its END_OBJECT
+         * @param position  Where in the file the parser's byte offsets count from
+         */
+        T read(JsonParser parser, long position) throws IOException;
+    }
+
+    /**
+     * As above, reading each object with a parser rather than databind
+     */
+    static <T> void parse(MappedFile file, String field, ObjectParser<T> reader, Metrics.Stage stage,
+                          UnaryOperator<T> prepare, ForkJoinPool pool, boolean ordered, Consumer<T> consumer)
+            throws Exception {
+        Scanner scanner = new Scanner(file);
+        if (!scanner.findArray(field.getBytes(StandardCharsets.UTF_8))) {
+            return;
+        }
+        //Enough queued to keep every worker busy while the oldest is consumed, without reading far ahead
+        int maxPending = pool.getParallelism() * 2;
+        Deque<CompletableFuture<List<T>>> pending = new ArrayDeque<>();
+        BlockingQueue<CompletableFuture<List<T>>> done = new LinkedBlockingQueue<>();
+        try {
+            Chunk chunk;
+            while ((chunk = scanner.nextChunk()) != null) {
+                Chunk c = chunk;
+                CompletableFuture<List<T>> future = CompletableFuture.supplyAsync(() -> read(c, reader, stage, prepare), pool);
+                if (ordered) {
+                    pending.add(future);
+                    if (pending.size() >= maxPending) {
+                        emit(pending.poll(), consumer);
+                    }
+                } else {
+                    pending.add(future);
+                    future.whenComplete((r, t) -> done.add(future));
+                    if (pending.size() >= maxPending) {
+                        CompletableFuture<List<T>> finished = done.take();
+                        pending.remove(finished);
+                        emit(finished, consumer);
+                    }
+                }
+            }
+            while (!pending.isEmpty()) {
+                CompletableFuture<List<T>> next = ordered ? pending.poll() : done.take();
+                pending.remove(next);
+                emit(next, consumer);
+            }
+        } finally {
+            //Don't leave work running after a failure
+            for (CompletableFuture<List<T>> future : pending) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private static <T> void emit(CompletableFuture<List<T>> future, Consumer<T> consumer) throws Exception {
+        List<T> objects;
+        try {
+            objects = future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+        for (T object : objects) {
+            consumer.accept(object);
+        }
+    }
+
+    private static <T> List<T> read(Chunk chunk, ObjectParser<T> reader, Metrics.Stage stage, UnaryOperator<T> prepare) {
+        Metrics metrics = Metrics.global();
+        List<T> objects = new ArrayList<>(chunk.count);
+        for (int i = 0; i < chunk.count; i++) {
+            long start = System.nanoTime();
+            T object;
+            try (JsonParser parser = Json.FACTORY.createParser(chunk.bytes, chunk.offsets[i], chunk.lengths[i])) {
+                parser.nextToken();
+                object = reader.read(parser, chunk.position + chunk.offsets[i]);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Can't read the object at byte " + (chunk.position + chunk.offsets[i]), e);
+            }
+            metrics.record(stage, start);
+            objects.add(prepare.apply(object));
+        }
+        return objects;
+    }
+
+    /**
+     * The bytes of consecutive objects, copied out of the file so the pool doesn't touch the mapping
+     */
+    static final class Chunk {
+        final long position;
+        final byte[] bytes;
+        final int[] offsets;
+        final int[] lengths;
+        final int count;
+
+        Chunk(long position, byte[] bytes, int[] offsets, int[] lengths, int count) {
+            this.position = position;
+            this.bytes = bytes;
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Finds object boundaries without parsing them
+     */
+    static final class Scanner {
+        private final MappedFile file;
+        private final long size;
+        private long position;
+        private boolean ended;
+
+        Scanner(MappedFile file) {
+            this.file = file;
+            this.size = file.size();
+        }
+
+        /**
+         * Moves to just inside the array which is the value of the first field named name
+         * @return false if there isn't one
+         */
+        boolean findArray(byte[] name) throws IOException {
+            while (position < size) {
+                byte b = file.get(position);
+                if (b != '"') {
+                    position++;
+                    continue;
+                }
+                long start = position + 1;
+                long end = skipString(position);
+                position = end;
+                if (next() != ':') {
+                    continue;
+                }
+                if (end - 1 - start == name.length && matches(start, name)) {
+                    position++;
+                    if (next() != '[') {
+                        return false;
+                    }
+                    position++;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matches(long start, byte[] name) {
+            for (int i = 0; i < name.length; i++) {
+                if (file.get(start + i) != name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the next objects of the array, or null after the last. A value which isn't an object ends the
+         *         array, as it does for the streaming parsers
+         */
+        Chunk nextChunk() throws IOException {
+            if (ended) {
+                return null;
+            }
+            long chunkStart = -1;
+            int count = 0;
+            long[] starts = new long[CHUNK_OBJECTS];
+            long[] ends = new long[CHUNK_OBJECTS];
+            while (count < CHUNK_OBJECTS && (count == 0 || position - chunkStart < CHUNK_BYTES)) {
+                int b = next();
+                if (count > 0 || b == ',') {
+                    if (b != ',') {
+                        ended = true;
+                        break;
+                    }
+                    position++;
+                    b = next();
+                }
+                if (b != '{') {
+                    ended = true;
+                    break;
+                }
+                if (chunkStart < 0) {
+                    chunkStart = position;
+                }
+                starts[count] = position;
+                position = skipValue(position);
+                ends[count] = position;
+                count++;
+            }
+            if (count == 0) {
+                return null;
+            }
+            long length = ends[count - 1] - chunkStart;
+            byte[] bytes = new byte[(int) length];
+            file.get(chunkStart, bytes, 0, bytes.length);
+            int[] offsets = new int[count];
+            int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = (int) (starts[i] - chunkStart);
+                lengths[i] = (int) (ends[i] - starts[i]);
+            }
+            return new Chunk(chunkStart, bytes, offsets, lengths, count);
+        }
+
+        /**
+         * @return the next non-whitespace byte without consuming it, or -1 at the end of the file
+         */
+        private int next() {
+            while (position < size) {
+                byte b = file.get(position);
+                if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                    return b;
+                }
+                position++;
+            }
+            return -1;
+        }
+
+        /**
+         * @param from  The opening quote
+         * @return the position after the closing quote
+         */
+        private long skipString(long from) throws IOException {
+            long p = from + 1;
+            while (p < size) {
+                byte b = file.get(p++);
+                if (b == '\\') {
+                    p++;
+                } else if (b == '"') {
+                    return p;
+                }
+            }
+            throw new IOException("Unterminated string starting at byte " + from);
+        }
+
+        /**
+         * @param from  The opening brace of an object
+         * @return the position after its closing brace
+         */
+        private long skipValue(long from) throws IOException {
+            int depth = 0;
+            long p = from;
+            while (p < size) {
+                byte b = file.get(p);
+                if (b == '"') {
+                    p = skipString(p);
+                    continue;
+                }
+                if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    if (--depth == 0) {
+                        return p + 1;
+                    }
+                }
+                p++;
+            }
+            throw new IOException("Unterminated object starting at byte " + from);
+        }
+    }
+}
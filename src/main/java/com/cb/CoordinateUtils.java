@@ -4,12 +4,87 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Various methods for transcoding numbers
+ * Various methods for transcoding numbers.
+ * The batch methods work on flat arrays of interleaved lon/lat pairs, as held by Geometry, and write into
+ * arrays supplied by the caller so nothing is allocated per vertex. The single point methods wrap them.
  */
 public class CoordinateUtils {
 
     private static final double TILE_SIZE = 256;
 
+    static final double EARTH_HALF_CIRCUMFERENCE = 20037508.34;
+    static final double MAX_LAT = 85.05112878;
+
+    //The SIMD loops, or null if they weren't built or the JVM can't run them
+    private static final Loops VECTOR = loadVector();
+    private static volatile boolean vectorised = VECTOR != null;
+
+    /**
+     * The batch loops over whole vectors of vertices, each leaving the remainder to the scalar loop
+     */
+    interface Loops {
+        /**
+         * @return the vertices projected per loop
+         */
+        int vertices();
+
+        /**
+         * @param lonLat  Interleaved lon/lat pairs
+         * @param from  The first vertex
+         * @param to  The vertex after the last
+         * @param scale  Pixels per mercator metre, as computed by project
+         * @param pixels  Receives the pixel x/y of vertex from+i at [2i], [2i+1]
+         * @return the vertex after the last projected
+         */
+        int project(double[] lonLat, int from, int to, double scale, int[] pixels);
+
+        /**
+         * @param values  Interleaved x/y pairs
+         * @param from  The index of the first x
+         * @param to  The index after the last y
+         * @param bounds  minX, minY, maxX, maxY, widened in place
+         * @return the index after the last pair included
+         */
+        int bounds(int[] values, int from, int to, int[] bounds);
+    }
+
+    /**
+     * The Vector API is an incubator module, so VectorProjection is only compiled by the vector profile and the
+     * module is only there if the JVM was started with it added
+     */
+    private static Loops loadVector() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+        try {
+            return (Loops) Class.forName("com.cb.VectorProjection").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the batch methods use SIMD, which they do by default when built with the vector profile and
+     *         the JVM is started with --add-modules jdk.incubator.vector
+     */
+    public static boolean isVectorised() {
+        return vectorised;
+    }
+
+    /**
+     * Pixels and bounds from the SIMD loops are the same as from the scalar ones, except that a y may rarely be
+     * 1 pixel different, see VectorProjection
+     * @param vectorised  Use SIMD in the batch methods, or the scalar loops
+     * @throws IllegalStateException if turned on without the vector profile's build or jdk.incubator.vector
+     */
+    public static void setVectorised(boolean vectorised) {
+        if (vectorised && VECTOR == null) {
+            throw new IllegalStateException(
+                    "Build with -P vector and start the JVM with --add-modules jdk.incubator.vector to vectorise");
+        }
+        CoordinateUtils.vectorised = vectorised;
+    }
+
     /**
      * Converts longitude/latitude to Web Mercator coordinates (EPSG:3857).
      * @param lon The longitude
@@ -17,18 +92,30 @@ public class CoordinateUtils {
      * @return A pair of mercator coordinates
      */
     public static List<Double> toWebMercator(double lon, double lat) {
-        lon = Math.max(-180, Math.min(180, lon));
-        lat = Math.max(-85.05112878, Math.min(85.05112878, lat));
-
-        double x = lon * 20037508.34 / 180;
-        double y = Math.log(Math.tan((90 + lat) * Math.PI / 360)) / (Math.PI / 180);
-        y = y * 20037508.34 / 180;
+        double[] merc = new double[2];
+        toWebMercator(new double[]{lon, lat}, 0, 1, merc);
         List<Double> list = new ArrayList<>();
-        list.add(x);
-        list.add(y);
+        list.add(merc[0]);
+        list.add(merc[1]);
         return list;
     }
 
+    /**
+     * Converts longitude/latitude pairs to Web Mercator coordinates (EPSG:3857).
+     * @param lonLat  Interleaved lon/lat pairs
+     * @param from  The first vertex
+     * @param to  The vertex after the last
+     * @param merc  Receives the interleaved x/y of vertex from+i at [2i], [2i+1]
+     */
+    public static void toWebMercator(double[] lonLat, int from, int to, double[] merc) {
+        for (int i = from, o = 0; i < to; i++, o += 2) {
+            double lon = clamp(lonLat[i * 2], 180);
+            double lat = clamp(lonLat[i * 2 + 1], MAX_LAT);
+            merc[o] = mercatorX(lon);
+            merc[o + 1] = mercatorY(lat);
+        }
+    }
+
     /**
      * Converts longitude and latitude to tile numbers.
      *
@@ -38,11 +125,9 @@ public class CoordinateUtils {
      * @return An array containing the tile numbers [x, y]
      */
     public static int[] toTileNumbers(double lon, double lat, int zoom) {
-        // Calculate x and y tile numbers
-        int xTile = (int) Math.floor((lon + 180) / 360 * (1 << zoom));
-        int yTile = (int) Math.floor((1 - Math.log(Math.tan(Math.toRadians(lat)) + 1 / Math.cos(Math.toRadians(lat))) / Math.PI) / 2 * (1 << zoom));
-
-        return new int[]{xTile, yTile};
+        int[] tile = new int[2];
+        project(new double[]{lon, lat}, 0, 1, zoom, null, tile);
+        return tile;
     }
 
     /**
@@ -53,10 +138,89 @@ public class CoordinateUtils {
      * @return A pair of pixel coordinates
      */
     public static int[] toPixelCoordinates(double lon, double lat, int zoom) {
-        List<Double> merc = toWebMercator(lon, lat);
-        double scale = TILE_SIZE * (1 << zoom) / 20037508.34 / 2;
-        int pixelX = (int) ((merc.get(0) + 20037508.34) * scale);
-        int pixelY = (int) ((20037508.34 - merc.get(1)) * scale);
-        return new int[]{pixelX, pixelY};
+        int[] pixel = new int[2];
+        project(new double[]{lon, lat}, 0, 1, zoom, pixel, null);
+        return pixel;
+    }
+
+    /**
+     * Projects lon/lat pairs to pixel coordinates and tile numbers in one pass, doing the trig once per vertex.
+     * The tile of a vertex is the tile its pixel falls in, so the two always agree.
+     * @param lonLat  Interleaved lon/lat pairs
+     * @param from  The first vertex
+     * @param to  The vertex after the last
+     * @param zoom  Zoom level 0-20+
+     * @param pixels  Receives the pixel x/y of vertex from+i at [2i], [2i+1], or null if not needed
+     * @param tiles  Receives the tile x/y of vertex from+i at [2i], [2i+1], or null if not needed
+     */
+    public static void project(double[] lonLat, int from, int to, int zoom, int[] pixels, int[] tiles) {
+        double scale = TILE_SIZE * (1 << zoom) / EARTH_HALF_CIRCUMFERENCE / 2;
+        //When only tiles are wanted the pixels are written into tiles and converted in place
+        int[] dest = pixels;
+        int offset = 0;
+        if (dest == null) {
+            dest = tiles;
+        }
+        int i = from;
+        if (vectorised && to - from >= VECTOR.vertices()) {
+            i = VECTOR.project(lonLat, from, to, scale, dest);
+            offset = (i - from) * 2;
+        }
+        for (; i < to; i++, offset += 2) {
+            double lon = clamp(lonLat[i * 2], 180);
+            double lat = clamp(lonLat[i * 2 + 1], MAX_LAT);
+            dest[offset] = (int) ((mercatorX(lon) + EARTH_HALF_CIRCUMFERENCE) * scale);
+            dest[offset + 1] = (int) ((EARTH_HALF_CIRCUMFERENCE - mercatorY(lat)) * scale);
+        }
+        if (tiles != null) {
+            toTiles(dest, 0, (to - from) * 2, tiles);
+        }
+    }
+
+    /**
+     * Converts pixel coordinates to the numbers of the tiles containing them
+     * @param pixels  Interleaved pixel x/y
+     * @param from  The first index in pixels
+     * @param to  The index after the last
+     * @param tiles  Receives the tile numbers at the same indexes, may be pixels itself
+     */
+    public static void toTiles(int[] pixels, int from, int to, int[] tiles) {
+        for (int i = from; i < to; i++) {
+            //An arithmetic shift floors, the same as floorDiv by the 256 pixel tile size
+            tiles[i] = pixels[i] >> 8;
+        }
+    }
+
+    /**
+     * Widens bounds to hold interleaved x/y pairs, e.g. pixels from project
+     * @param values  Interleaved x/y pairs
+     * @param from  The index of the first x
+     * @param to  The index after the last y
+     * @param bounds  minX, minY, maxX, maxY, widened in place
+     */
+    public static void bounds(int[] values, int from, int to, int[] bounds) {
+        int i = from;
+        if (vectorised) {
+            i = VECTOR.bounds(values, from, to, bounds);
+        }
+        for (; i < to; i += 2) {
+            bounds[0] = Math.min(bounds[0], values[i]);
+            bounds[1] = Math.min(bounds[1], values[i + 1]);
+            bounds[2] = Math.max(bounds[2], values[i]);
+            bounds[3] = Math.max(bounds[3], values[i + 1]);
+        }
+    }
+
+    private static double clamp(double value, double limit) {
+        return Math.max(-limit, Math.min(limit, value));
+    }
+
+    private static double mercatorX(double lon) {
+        return lon * EARTH_HALF_CIRCUMFERENCE / 180;
+    }
+
+    private static double mercatorY(double lat) {
+        double y = Math.log(Math.tan((90 + lat) * Math.PI / 360)) / (Math.PI / 180);
+        return y * EARTH_HALF_CIRCUMFERENCE / 180;
     }
 }
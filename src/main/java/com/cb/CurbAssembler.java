@@ -0,0 +1,188 @@
+package com.cb;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pieces curbettes (zones) together into curbs by joining segments whose end is another's start.
+ * <p>
+ * Segments are nodes of a graph with an edge from a to b when a's last point is b's first. Each curb starts at
+ * the first unused segment in input order, is extended forwards then backwards, and every segment is used once,
+ * so it runs in time linear in the number of segments. Where several segments share an endpoint (a branch)
+ * the one earliest in the input is followed and the others start curbs of their own, so the result doesn't
+ * depend on hashing order.
+ */
+public final class CurbAssembler {
+
+    private CurbAssembler() {
+    }
+
+    /**
+     * Orders segments into chains
+     * @param starts  The key of each segment's first point
+     * @param ends  The key of each segment's last point
+     * @return each chain as the indices of its segments, first to last
+     */
+    public static int[][] chains(long[] starts, long[] ends) {
+        int n = starts.length;
+        if (ends.length != n) {
+            throw new IllegalArgumentException("Got " + n + " starts but " + ends.length + " ends");
+        }
+        //Adjacency as linked lists in input order: byStart.get(key) is the first segment starting there,
+        //nextByStart[i] the next segment with the same start. Used segments are unlinked as they're passed
+        Map<Long, Integer> byStart = new HashMap<>(n * 2);
+        Map<Long, Integer> byEnd = new HashMap<>(n * 2);
+        int[] nextByStart = new int[n];
+        int[] nextByEnd = new int[n];
+        for (int i = n - 1; i >= 0; i--) {
+            Integer s = byStart.put(starts[i], i);
+            nextByStart[i] = s != null ? s : -1;
+            Integer e = byEnd.put(ends[i], i);
+            nextByEnd[i] = e != null ? e : -1;
+        }
+
+        boolean[] used = new boolean[n];
+        //A deque of indices, the chain grows backwards from n and forwards from n + 1
+        int[] deque = new int[2 * n + 1];
+        List<int[]> chains = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            if (used[i]) {
+                continue;
+            }
+            used[i] = true;
+            int head = n, tail = n + 1;
+            deque[n] = i;
+
+            int next;
+            while ((next = take(byStart, ends[deque[tail - 1]], nextByStart, used)) >= 0) {
+                deque[tail++] = next;
+            }
+            int prev;
+            while ((prev = take(byEnd, starts[deque[head]], nextByEnd, used)) >= 0) {
+                deque[--head] = prev;
+            }
+
+            int[] chain = new int[tail - head];
+            System.arraycopy(deque, head, chain, 0, chain.length);
+            chains.add(chain);
+        }
+        return chains.toArray(new int[0][]);
+    }
+
+    /**
+     * @return the first unused segment in the list for key, marking it used, or -1 if there isn't one
+     */
+    private static int take(Map<Long, Integer> heads, long key, int[] next, boolean[] used) {
+        Integer first = heads.get(key);
+        if (first == null) {
+            return -1;
+        }
+        int i = first;
+        while (i >= 0 && used[i]) {
+            i = next[i];
+        }
+        //Skipped segments are never wanted again, so drop them along with the one taken
+        if (i < 0) {
+            heads.remove(key);
+            return -1;
+        }
+        if (next[i] >= 0) {
+            heads.put(key, next[i]);
+        } else {
+            heads.remove(key);
+        }
+        used[i] = true;
+        return i;
+    }
+
+    /**
+     * Joins pixel lines into curbs. Empty lines are ignored and a line identical to an earlier one,
+     * e.g. a zone listed twice, is only used once
+     * @param lines  Curbettes as interleaved x/y pixel pairs
+     * @return the curbs, with each shared point kept once
+     */
+    public static List<int[]> assemble(List<int[]> lines) {
+        List<int[]> distinct = new ArrayList<>(lines.size());
+        Set<IntBuffer> seen = new HashSet<>();
+        for (int[] line : lines) {
+            if (line.length > 0 && seen.add(IntBuffer.wrap(line))) {
+                distinct.add(line);
+            }
+        }
+        long[] starts = new long[distinct.size()];
+        long[] ends = new long[distinct.size()];
+        for (int i = 0; i < starts.length; i++) {
+            int[] line = distinct.get(i);
+            starts[i] = key(line[0], line[1]);
+            ends[i] = key(line[line.length - 2], line[line.length - 1]);
+        }
+
+        List<int[]> curbs = new ArrayList<>();
+        for (int[] chain : chains(starts, ends)) {
+            //Sized once, each line after the first drops the point it shares with the one before
+            int length = distinct.get(chain[0]).length;
+            for (int c = 1; c < chain.length; c++) {
+                length += distinct.get(chain[c]).length - 2;
+            }
+            int[] curb = new int[length];
+            int position = 0;
+            for (int c = 0; c < chain.length; c++) {
+                int[] line = distinct.get(chain[c]);
+                int from = c == 0 ? 0 : 2;
+                System.arraycopy(line, from, curb, position, line.length - from);
+                position += line.length - from;
+            }
+            curbs.add(curb);
+        }
+        return curbs;
+    }
+
+    /**
+     * Groups zones into curbs by their geographic endpoints, for analysing curbs without drawing them.
+     * Points are compared to 1e-7 degrees, about a centimetre
+     * @param zones  The zones, e.g. an Area's
+     * @return each curb's zones first to last
+     */
+    public static List<List<Zone>> curbs(List<Zone> zones) {
+        List<Zone> lines = new ArrayList<>(zones.size());
+        for (Zone zone : zones) {
+            if (zone.getGeometry().getVertexCount() > 0) {
+                lines.add(zone);
+            }
+        }
+        long[] starts = new long[lines.size()];
+        long[] ends = new long[lines.size()];
+        for (int i = 0; i < starts.length; i++) {
+            Geometry geometry = lines.get(i).getGeometry();
+            int last = geometry.getVertexCount() - 1;
+            starts[i] = key(geometry.getLon(0), geometry.getLat(0));
+            ends[i] = key(geometry.getLon(last), geometry.getLat(last));
+        }
+
+        List<List<Zone>> curbs = new ArrayList<>();
+        for (int[] chain : chains(starts, ends)) {
+            List<Zone> curb = new ArrayList<>(chain.length);
+            for (int i : chain) {
+                curb.add(lines.get(i));
+            }
+            curbs.add(curb);
+        }
+        return curbs;
+    }
+
+    /**
+     * Packs a pixel so it can be used as a key
+     */
+    static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    private static long key(double lon, double lat) {
+        return key((int) Math.round(lon * 1e7), (int) Math.round(lat * 1e7));
+    }
+}
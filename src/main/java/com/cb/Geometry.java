@@ -0,0 +1,110 @@
+package com.cb;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+/**
+ * A compact GeoJSON geometry. All of the vertices are held in a single array of interleaved lon/lat pairs
+ * with the start of each ring (or line) recorded as a vertex offset, so there's no boxing or per-vertex object.
+ * Rings of Multi* geometries are flattened in document order.
+ */
+@JsonDeserialize(using = GeometryDeserializer.class)
+public class Geometry {
+    private final String type;
+    private final double[] coordinates;
+    private final int[] rings;
+
+    /**
+     * @param type  The GeoJSON type e.g. Polygon, LineString
+     * @param coordinates  Interleaved lon/lat pairs
+     * @param rings  The vertex offset each ring starts at, followed by the total vertex count
+     */
+    public Geometry(String type, double[] coordinates, int[] rings) {
+        if ((coordinates.length & 1) != 0) {
+            throw new IllegalArgumentException("Coordinates must be lon/lat pairs");
+        }
+        if (rings.length == 0 || rings[rings.length - 1] != coordinates.length / 2) {
+            throw new IllegalArgumentException("The last ring offset must be the vertex count");
+        }
+        this.type = type;
+        this.coordinates = coordinates;
+        this.rings = rings;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @return The interleaved lon/lat pairs, this is not a copy so mustn't be modified
+     */
+    public double[] getCoordinates() {
+        return coordinates;
+    }
+
+    public int getVertexCount() {
+        return coordinates.length / 2;
+    }
+
+    public int getRingCount() {
+        return rings.length - 1;
+    }
+
+    /**
+     * @param ring  The ring index, 0 being the outer ring of a polygon or the whole of a line
+     * @return The index of the first vertex of the ring
+     */
+    public int getRingStart(int ring) {
+        return rings[ring];
+    }
+
+    /**
+     * @param ring  The ring index
+     * @return The index after the last vertex of the ring
+     */
+    public int getRingEnd(int ring) {
+        return rings[ring + 1];
+    }
+
+    public double getLon(int vertex) {
+        return coordinates[vertex * 2];
+    }
+
+    public double getLat(int vertex) {
+        return coordinates[vertex * 2 + 1];
+    }
+
+    /**
+     * Works out the bounding box, it isn't kept to save memory on the many resident zones
+     * @return minLon, minLat, maxLon, maxLat or NaNs if there are no vertices
+     */
+    public double[] computeBounds() {
+        double[] bounds = {Double.NaN, Double.NaN, Double.NaN, Double.NaN};
+        if (coordinates.length > 0) {
+            bounds[0] = bounds[2] = coordinates[0];
+            bounds[1] = bounds[3] = coordinates[1];
+        }
+        for (int i = 2; i < coordinates.length; i += 2) {
+            bounds[0] = Math.min(bounds[0], coordinates[i]);
+            bounds[1] = Math.min(bounds[1], coordinates[i + 1]);
+            bounds[2] = Math.max(bounds[2], coordinates[i]);
+            bounds[3] = Math.max(bounds[3], coordinates[i + 1]);
+        }
+        return bounds;
+    }
+
+    /**
+     * A 64 bit FNV-1a hash of the type, rings and exact coordinates, for noticing when a geometry has changed
+     * @return The hash
+     */
+    public long contentHash() {
+        long hash = 0xcbf29ce484222325L;
+        hash = (hash ^ type.hashCode()) * 0x100000001b3L;
+        for (int ring : rings) {
+            hash = (hash ^ ring) * 0x100000001b3L;
+        }
+        for (double c : coordinates) {
+            hash = (hash ^ Double.doubleToLongBits(c)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+}
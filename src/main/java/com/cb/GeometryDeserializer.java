@@ -0,0 +1,134 @@
+package com.cb;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Streams a GeoJSON geometry straight into the flat arrays of a Geometry without building
+ * intermediate lists of boxed Doubles.
+ */
+public class GeometryDeserializer extends JsonDeserializer<Geometry> {
+
+    //What a nested array turned out to hold
+    private static final int EMPTY = 0, POSITION = 1, RING = 2, NESTED = 3;
+
+    private static final String[] TYPES = {"LineString", "Polygon", "Point", "MultiLineString", "MultiPolygon",
+            "MultiPoint", "GeometryCollection"};
+
+    /**
+     * Growable buffers, one per geometry being read
+     */
+    private static class Builder {
+        double[] coordinates = new double[64];
+        int[] rings = new int[4];
+        int vertices, ringCount;
+
+        void add(double lon, double lat) {
+            if (vertices * 2 == coordinates.length) {
+                coordinates = Arrays.copyOf(coordinates, coordinates.length * 2);
+            }
+            coordinates[vertices * 2] = lon;
+            coordinates[vertices * 2 + 1] = lat;
+            vertices++;
+        }
+
+        void ring(int start) {
+            if (ringCount + 1 >= rings.length) {
+                rings = Arrays.copyOf(rings, rings.length * 2);
+            }
+            rings[ringCount++] = start;
+        }
+
+        double[] coordinates() {
+            return Arrays.copyOf(coordinates, vertices * 2);
+        }
+
+        int[] rings() {
+            int[] result = Arrays.copyOf(rings, ringCount + 1);
+            result[ringCount] = vertices;
+            return result;
+        }
+    }
+
+    @Override
+    public Geometry deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+        if (p.currentToken() != JsonToken.START_OBJECT) {
+            return (Geometry) ctxt.handleUnexpectedToken(Geometry.class, p);
+        }
+        return read(p);
+    }
+
+    /**
+     * Reads a geometry without databind, e.g. when zones are streamed
+     * @param p  A parser whose current token is the geometry's START_OBJECT
+     * @return the geometry, the parser is left on its END_OBJECT
+     */
+    static Geometry read(JsonParser p) throws IOException {
+        String type = null;
+        Builder builder = new Builder();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.currentName();
+            JsonToken value = p.nextToken();
+            if ("type".equals(field)) {
+                type = canonical(p.getValueAsString());
+            } else if ("coordinates".equals(field) && value == JsonToken.START_ARRAY) {
+                if (readArray(p, builder) == POSITION) {
+                    //A Point is a single ring of one vertex
+                    builder.ring(0);
+                }
+            } else {
+                p.skipChildren();
+            }
+        }
+        return new Geometry(type, builder.coordinates(), builder.rings());
+    }
+
+    /**
+     * @return the constant for a GeoJSON type, so every geometry doesn't hold its own copy
+     */
+    private static String canonical(String type) {
+        for (String known : TYPES) {
+            if (known.equals(type)) {
+                return known;
+            }
+        }
+        return type;
+    }
+
+    /**
+     * Reads an array whose START_ARRAY is the current token, through to its END_ARRAY
+     * @return What sort of array it was
+     */
+    private static int readArray(JsonParser p, Builder builder) throws IOException {
+        JsonToken token = p.nextToken();
+        if (token == JsonToken.VALUE_NUMBER_FLOAT || token == JsonToken.VALUE_NUMBER_INT) {
+            double lon = p.getDoubleValue();
+            p.nextToken();
+            double lat = p.getDoubleValue();
+            //Ignore any altitude
+            while (p.nextToken() != JsonToken.END_ARRAY) {
+                p.skipChildren();
+            }
+            builder.add(lon, lat);
+            return POSITION;
+        }
+
+        int start = builder.vertices;
+        int kind = EMPTY;
+        for (; token != JsonToken.END_ARRAY; token = p.nextToken()) {
+            if (token != JsonToken.START_ARRAY) {
+                throw new IOException("Unexpected " + token + " in coordinates at " + p.currentLocation());
+            }
+            kind = readArray(p, builder) == POSITION ? RING : NESTED;
+        }
+        if (kind == RING) {
+            builder.ring(start);
+        }
+        return kind;
+    }
+}
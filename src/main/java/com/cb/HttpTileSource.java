@@ -0,0 +1,173 @@
+package com.cb;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Tiles from an XYZ tile server. Requests are asynchronous, at most maxConcurrent are in flight with the rest
+ * queued, and concurrent requests for the same tile share one fetch.
+ */
+class HttpTileSource implements TileSource {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+    private static final int MAX_PREFETCHED = 256;
+
+    private final String template;
+    private final HttpClient client;
+    private final Semaphore permits;
+    private final Queue<Runnable> queued = new ConcurrentLinkedQueue<>();
+    private final Map<Long, CompletableFuture<BufferedImage>> inFlight = new ConcurrentHashMap<>();
+    private final Map<Long, CompletableFuture<BufferedImage>> prefetched = new ConcurrentHashMap<>();
+
+    HttpTileSource(String template, int maxConcurrent) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent must be at least 1: " + maxConcurrent);
+        }
+        this.template = template;
+        this.permits = new Semaphore(maxConcurrent);
+        this.client = HttpClient.newBuilder()
+                .connectTimeout(TIMEOUT)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    @Override
+    public BufferedImage load(int zoom, int x, int y) throws IOException {
+        try {
+            return loadAsync(zoom, x, y).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Picks up the prefetched response if there is one, otherwise fetches the tile
+     */
+    @Override
+    public CompletableFuture<BufferedImage> loadAsync(int zoom, int x, int y) {
+        CompletableFuture<BufferedImage> future = prefetched.remove(TileCache.key(zoom, x, y));
+        if (future == null || future.isCompletedExceptionally()) {
+            future = fetch(zoom, x, y);
+        }
+        return future;
+    }
+
+    private CompletableFuture<BufferedImage> fetch(int zoom, int x, int y) {
+        long key = TileCache.key(zoom, x, y);
+        CompletableFuture<BufferedImage> future = new CompletableFuture<>();
+        CompletableFuture<BufferedImage> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            return existing;
+        }
+        URI uri;
+        HttpRequest request;
+        try {
+            uri = TileSource.uri(template, zoom, x, y);
+            request = HttpRequest.newBuilder(uri).timeout(TIMEOUT).GET().build();
+        } catch (IllegalArgumentException e) {
+            inFlight.remove(key, future);
+            future.completeExceptionally(new IOException("Bad tile URL " + TileSource.expand(template, zoom, x, y), e));
+            return future;
+        }
+        queued.add(() -> {
+            CompletableFuture<HttpResponse<byte[]>> sent;
+            try {
+                sent = client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+            } catch (Throwable t) {
+                //Thrown rather than failing the future, it still has to give back the permit and fail the tile
+                sent = CompletableFuture.failedFuture(t);
+            }
+            sent.whenComplete((response, t) -> {
+                permits.release();
+                drain();
+                inFlight.remove(key, future);
+                try {
+                    if (t != null) {
+                        throw new IOException("Can't fetch " + uri, t);
+                    }
+                    future.complete(decode(uri, response));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        });
+        drain();
+        return future;
+    }
+
+    /**
+     * Sends queued requests while there are permits
+     */
+    private void drain() {
+        while (!queued.isEmpty() && permits.tryAcquire()) {
+            Runnable send = queued.poll();
+            if (send == null) {
+                permits.release();
+                //Another thread took it, check again in case one was queued after the isEmpty
+                continue;
+            }
+            send.run();
+        }
+    }
+
+    private static BufferedImage decode(URI uri, HttpResponse<byte[]> response) throws IOException {
+        if (response.statusCode() == 404) {
+            throw new IOException("Tile not found: " + uri);
+        }
+        if (response.statusCode() != 200) {
+            throw new IOException("HTTP " + response.statusCode() + " fetching " + uri);
+        }
+        BufferedImage tile = ImageIO.read(new ByteArrayInputStream(response.body()));
+        if (tile == null) {
+            throw new IOException("Tile can't be decoded: " + uri);
+        }
+        return tile;
+    }
+
+    /**
+     * Starts fetching the range, the loads that follow pick up the responses
+     */
+    @Override
+    public void prefetch(int zoom, int minX, int minY, int maxX, int maxY) {
+        long count = (long) (maxX - minX + 1) * (maxY - minY + 1);
+        if (prefetched.size() + count > MAX_PREFETCHED) {
+            //Drop fetches that were never loaded
+            prefetched.values().removeIf(CompletableFuture::isDone);
+        }
+        if (count <= 0 || prefetched.size() + count > MAX_PREFETCHED) {
+            return;
+        }
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+                prefetched.putIfAbsent(TileCache.key(zoom, x, y), fetch(zoom, x, y));
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+}
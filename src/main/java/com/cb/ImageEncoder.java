@@ -0,0 +1,183 @@
+package com.cb;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Encodes rendered images with a pool of ImageWriters, so writers are reused rather than looked up and
+ * created for every image. Thread safe, each encode borrows its own writer.
+ * Output is buffered in memory rather than through ImageIO's temporary file cache.
+ */
+public class ImageEncoder {
+
+    /** Leave compression at the writer's default */
+    public static final int DEFAULT_COMPRESSION = -1;
+
+    private final String format;
+    private final String extension;
+    private final String mimeType;
+    private final int compressionLevel;
+    private final boolean indexedColour;
+    private final ImageWriterSpi provider;
+    private final Queue<ImageWriter> writers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param format  An ImageIO format name, e.g. png, or webp when a WebP plugin is on the classpath
+     * @param compressionLevel  0 (fastest) to 9 (smallest), or DEFAULT_COMPRESSION. For PNG this is the
+     *                          deflate level, for lossy formats it's mapped to a quality of 1 down to 0
+     * @param indexedColour  Write images with 256 colours or fewer as palette images
+     */
+    public ImageEncoder(String format, int compressionLevel, boolean indexedColour) {
+        if (compressionLevel < DEFAULT_COMPRESSION || compressionLevel > 9) {
+            throw new IllegalArgumentException("compressionLevel must be 0-9 or -1: " + compressionLevel);
+        }
+        Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(format);
+        if (!it.hasNext()) {
+            throw new IllegalArgumentException("No ImageIO writer for " + format);
+        }
+        ImageWriter writer = it.next();
+        this.provider = writer.getOriginatingProvider();
+        writers.add(writer);
+        this.format = format;
+        String[] suffixes = provider != null ? provider.getFileSuffixes() : null;
+        this.extension = suffixes != null && suffixes.length > 0 ? suffixes[0] : format.toLowerCase();
+        String[] mimeTypes = provider != null ? provider.getMIMETypes() : null;
+        this.mimeType = mimeTypes != null && mimeTypes.length > 0 ? mimeTypes[0] : "application/octet-stream";
+        this.compressionLevel = compressionLevel;
+        this.indexedColour = indexedColour;
+    }
+
+    /**
+     * A PNG encoder with the writer's defaults, which gives the same bytes as ImageIO.write
+     */
+    public ImageEncoder() {
+        this("png", DEFAULT_COMPRESSION, false);
+    }
+
+    /**
+     * @param image  The image to encode
+     * @param out  Receives the encoded image, it isn't closed
+     * @throws IOException if the image couldn't be encoded
+     */
+    public void encode(BufferedImage image, OutputStream out) throws IOException {
+        if (indexedColour) {
+            BufferedImage indexed = toIndexed(image);
+            if (indexed != null) {
+                image = indexed;
+            }
+        }
+        ImageWriter writer = borrow();
+        try (ImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param(writer));
+        } finally {
+            writer.reset();
+            writers.offer(writer);
+        }
+    }
+
+    private ImageWriter borrow() throws IOException {
+        ImageWriter writer = writers.poll();
+        if (writer == null) {
+            writer = provider != null ? provider.createWriterInstance()
+                    : ImageIO.getImageWritersByFormatName(format).next();
+        }
+        return writer;
+    }
+
+    private ImageWriteParam param(ImageWriter writer) {
+        if (compressionLevel == DEFAULT_COMPRESSION) {
+            return null;
+        }
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (!param.canWriteCompressed()) {
+            return null;
+        }
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        String[] types = param.getCompressionTypes();
+        if (types != null && param.getCompressionType() == null) {
+            param.setCompressionType(types[0]);
+        }
+        //The JDK's PNG writer uses a deflate level of 9 * (1 - quality)
+        param.setCompressionQuality((9 - compressionLevel) / 9f);
+        return param;
+    }
+
+    /**
+     * Copies an image into an exact palette, so nothing is lost
+     * @return the palette image, or null if there are more than 256 colours
+     */
+    static BufferedImage toIndexed(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        Map<Integer, Integer> palette = new HashMap<>();
+        int[] colours = new int[256];
+        boolean alpha = false;
+        int last = 0, lastIndex = -1;
+        for (int i = 0; i < pixels.length; i++) {
+            int argb = pixels[i];
+            //Overlays are drawn in runs, so most pixels match the one before
+            if (argb != last || lastIndex < 0) {
+                Integer index = palette.get(argb);
+                if (index == null) {
+                    if (palette.size() == colours.length) {
+                        return null;
+                    }
+                    index = palette.size();
+                    palette.put(argb, index);
+                    colours[index] = argb;
+                    alpha |= (argb >>> 24) != 0xff;
+                }
+                last = argb;
+                lastIndex = index;
+            }
+            pixels[i] = lastIndex;
+        }
+
+        int size = palette.size();
+        int bits = size <= 2 ? 1 : size <= 4 ? 2 : size <= 16 ? 4 : 8;
+        IndexColorModel model = new IndexColorModel(bits, size, colours, 0, alpha, -1, DataBuffer.TYPE_BYTE);
+        BufferedImage indexed = new BufferedImage(width, height,
+                bits == 8 ? BufferedImage.TYPE_BYTE_INDEXED : BufferedImage.TYPE_BYTE_BINARY, model);
+        indexed.getRaster().setSamples(0, 0, width, height, 0, pixels);
+        return indexed;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    /** The file suffix for the format, without the dot */
+    public String getExtension() {
+        return extension;
+    }
+
+    /** The MIME type of the format, e.g. for an HTTP response */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public boolean isIndexedColour() {
+        return indexedColour;
+    }
+}
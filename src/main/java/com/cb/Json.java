@@ -0,0 +1,19 @@
+package com.cb;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * The one ObjectMapper shared by the processors. ObjectMapper and ObjectReader are thread safe once
+ * configured, and building them is far more expensive than using them, so they're made once here.
+ */
+final class Json {
+    static final ObjectMapper MAPPER = new ObjectMapper();
+    static final JsonFactory FACTORY = MAPPER.getFactory();
+    static final ObjectReader AREA_READER = MAPPER.readerFor(Area.class);
+    static final ObjectReader ZONE_READER = MAPPER.readerFor(Zone.class);
+
+    private Json() {
+    }
+}
@@ -0,0 +1,197 @@
+package com.cb;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A zone read with only what rendering and incremental renders use: its id, geometry and dates. The rest, location
+ * references, street names, policy ids and so on, stay in the mapped file as the zone's byte range and are
+ * decoded the first time one is asked for, with their strings interned across zones.
+ * <p>
+ * Decoded attributes are held softly, so a pass over every zone, e.g. writing a snapshot, doesn't keep them all.
+ * The file must not be rewritten in place while its zones are in use.
+ */
+final class LeanZone extends Zone {
+
+    private static final ObjectReader ATTRIBUTES_READER = Json.MAPPER.readerFor(Attributes.class);
+
+    private final MappedFile file;
+    private final long position;
+    private final int length;
+    private final Map<String, String> strings;
+    private SoftReference<Attributes> attributes;
+
+    private LeanZone(String curbZoneId, Geometry geometry, long publishedDate, long lastUpdatedDate, long startDate,
+                     MappedFile file, long position, int length, Map<String, String> strings) {
+        super(curbZoneId, geometry, publishedDate, lastUpdatedDate, startDate, null, null, null, null, null, null, 0);
+        this.file = file;
+        this.position = position;
+        this.length = length;
+        this.strings = strings;
+    }
+
+    /**
+     * Reads a zone's eager fields and skips the rest
+     * @param parser  A parser whose current token is the zone's START_OBJECT, left on its END_OBJECT
+     * @param file  The file the parser reads
+     * @param base  Where in the file the parser's byte offsets count from
+     * @param strings  Interns strings across the zones of a file, thread safe if zones are read in parallel
+     * @return the zone
+     */
+    static LeanZone read(JsonParser parser, MappedFile file, long base, Map<String, String> strings) throws IOException {
+        long start = base + parser.currentTokenLocation().getByteOffset();
+        String id = null;
+        Geometry geometry = null;
+        long published = 0, lastUpdated = 0, startDate = 0;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "curb_zone_id":
+                    id = parser.getValueAsString();
+                    break;
+                case "geometry":
+                    if (value == JsonToken.START_OBJECT) {
+                        geometry = GeometryDeserializer.read(parser);
+                    }
+                    break;
+                case "published_date":
+                    published = parser.getValueAsLong();
+                    break;
+                case "last_updated_date":
+                    lastUpdated = parser.getValueAsLong();
+                    break;
+                case "start_date":
+                    startDate = parser.getValueAsLong();
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        long end = base + parser.currentTokenLocation().getByteOffset() + 1;
+        return new LeanZone(id, geometry, published, lastUpdated, startDate, file, start, (int) (end - start), strings);
+    }
+
+    private synchronized Attributes attributes() {
+        Attributes a = attributes != null ? attributes.get() : null;
+        if (a == null) {
+            byte[] bytes = new byte[length];
+            file.get(position, bytes, 0, length);
+            try {
+                a = ATTRIBUTES_READER.readValue(bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Can't decode zone " + getCurbZoneId(), e);
+            }
+            a.intern(strings);
+            attributes = new SoftReference<>(a);
+        }
+        return a;
+    }
+
+    @Override
+    public List<Map<String, Object>> getLocationReferences() {
+        return attributes().locationReferences;
+    }
+
+    @Override
+    public String getStreetName() {
+        return attributes().streetName;
+    }
+
+    @Override
+    public String getCrossStreetStartName() {
+        return attributes().crossStreetStartName;
+    }
+
+    @Override
+    public String getCrossStreetEndName() {
+        return attributes().crossStreetEndName;
+    }
+
+    @Override
+    public List<String> getCurbPolicyIds() {
+        return attributes().curbPolicyIds;
+    }
+
+    @Override
+    public String getParkingAngle() {
+        return attributes().parkingAngle;
+    }
+
+    @Override
+    public int getNumSpaces() {
+        return attributes().numSpaces;
+    }
+
+    private static String intern(String s, Map<String, String> strings) {
+        if (s == null) {
+            return null;
+        }
+        String interned = strings.putIfAbsent(s, s);
+        return interned != null ? interned : s;
+    }
+
+    /**
+     * The fields of a zone which aren't read eagerly, the geometry is skipped
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    static final class Attributes {
+        @JsonProperty("location_references")
+        List<Map<String, Object>> locationReferences;
+
+        @JsonProperty("street_name")
+        String streetName;
+
+        @JsonProperty("cross_street_start_name")
+        String crossStreetStartName;
+
+        @JsonProperty("cross_street_end_name")
+        String crossStreetEndName;
+
+        @JsonProperty("curb_policy_ids")
+        List<String> curbPolicyIds;
+
+        @JsonProperty("parking_angle")
+        String parkingAngle;
+
+        @JsonProperty("num_spaces")
+        int numSpaces;
+
+        void intern(Map<String, String> strings) {
+            streetName = LeanZone.intern(streetName, strings);
+            crossStreetStartName = LeanZone.intern(crossStreetStartName, strings);
+            crossStreetEndName = LeanZone.intern(crossStreetEndName, strings);
+            parkingAngle = LeanZone.intern(parkingAngle, strings);
+            if (curbPolicyIds != null) {
+                List<String> ids = new ArrayList<>(curbPolicyIds.size());
+                for (String id : curbPolicyIds) {
+                    ids.add(LeanZone.intern(id, strings));
+                }
+                curbPolicyIds = ids;
+            }
+            if (locationReferences != null) {
+                List<Map<String, Object>> references = new ArrayList<>(locationReferences.size());
+                for (Map<String, Object> reference : locationReferences) {
+                    Map<String, Object> interned = new LinkedHashMap<>();
+                    //Only the keys, values such as ref_id are mostly unique so would only grow the table
+                    for (Map.Entry<String, Object> e : reference.entrySet()) {
+                        interned.put(LeanZone.intern(e.getKey(), strings), e.getValue());
+                    }
+                    references.add(interned);
+                }
+                locationReferences = references;
+            }
+        }
+    }
+}
@@ -1,23 +1,42 @@
 package com.cb;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 public class Main {
     public static void main(String[] args) throws Throwable {
         new Main(args);
     }
+    /**
+     * @param args  Optionally the zones and areas files, and --stats to print the tile cache and metrics at the end
+     */
     public Main(String[] args) throws Throwable {
-        if(args==null || args.length==0){
-            parse(new FileInputStream("zones.json"),new FileInputStream("areas.json"),true, true);
-        }else{
-            parse(new FileInputStream(args[0]),new FileInputStream(args[1]),true, true);
+        String zones = "zones.json", areas = "areas.json";
+        RenderOptions options = new RenderOptions();
+        List<String> files = new ArrayList<>();
+        if(args!=null){
+            for(String arg:args){
+                if(arg.equals("--stats")){
+                    options.setStats(true);
+                }else{
+                    files.add(arg);
+                }
+            }
+        }
+        if(files.size()>=2){
+            zones = files.get(0);
+            areas = files.get(1);
         }
+        parse(Paths.get(zones),Paths.get(areas),true, true, options);
     }
 
     public Main() {
@@ -32,36 +51,207 @@ public class Main {
      * @throws Throwable
      */
     public void parse(InputStream zones, InputStream areas, boolean createImages, boolean straight) throws Throwable{
+        parse(zones, areas, createImages, straight, new RenderOptions());
+    }
+
+    /**
+     * As above but with control over the threads rendering and encoding the areas
+     * @param zones  An inputstream of a GeoJSON file of Zones
+     * @param areas  An inputstream of a GeoJSON file of Areas
+     * @param createImages  Shall we write images to disk
+     * @param straight  Draw zones from start to end rather than point-to-point
+     * @param options  The pipeline settings
+     * @throws Throwable
+     */
+    public void parse(InputStream zones, InputStream areas, boolean createImages, boolean straight,
+                      RenderOptions options) throws Throwable{
 
         // Map to store zones for quick lookup
         Map<String, Zone> zonesMap = new HashMap<>();
+        // And a spatial index of them if areas are to find their zones by location
+        ZoneIndex.Builder zoneIndex = options.getZoneResolution()!=ZoneResolution.IDS ? new ZoneIndex.Builder() : null;
+
+        ZoneProcessor.processZones(zones, collect(zonesMap, zoneIndex));
+
+        render(zoneIndex, options, (pipeline, index) -> pipeline.run(areas, zonesMap, index, createImages, straight, 20));
+
+        zones.close();
+        areas.close();
+    }
 
-        ZoneProcessor.processZones(zones, zone -> zonesMap.put(zone.getCurbZoneId(), zone));
-
-        int[] N = {0};
-        final MapRenderer mr = new MapRenderer();
-        // Process areas one-by-one and associate zones
-        AreaProcessor.processAreas(areas, zonesMap, area -> {
-            try {
-                String type = area.getGeometry().getType();
-                if (type.equals("Polygon")) {
-                    int imageNum = N[0]++;
-                    BufferedImage image = mr.renderMap(area, 20, straight);
-                    if(createImages){
-                        File output = new File("area_and_zones_"+imageNum+".png");
-                        ImageIO.write(image, "png", output);
-                        System.out.println("#"+imageNum+", Image saved: " + output.getAbsolutePath());
-                    }else{
-                        System.out.println("#"+imageNum+", Didn't save: " + image.getWidth()+"x"+image.getHeight());
-                    }
+    /**
+     * Parses files, which are memory mapped. Unless the options say otherwise the zones are loaded from a
+     * binary snapshot beside zones.json when there's a current one, and one is written after parsing when not.
+     * With a zone store the zones are looked up in a mapped file instead.
+     * @param zones  A GeoJSON file of Zones
+     * @param areas  A GeoJSON file of Areas
+     * @param createImages  Shall we write images to disk
+     * @param straight  Draw zones from start to end rather than point-to-point
+     * @param options  The pipeline settings
+     * @throws Throwable
+     */
+    public void parse(Path zones, Path areas, boolean createImages, boolean straight,
+                      RenderOptions options) throws Throwable{
+
+        ZoneIndex.Builder zoneIndex = options.getZoneResolution()!=ZoneResolution.IDS ? new ZoneIndex.Builder() : null;
+
+        if(options.isZoneStore()){
+            Path path = ZoneStore.pathFor(zones);
+            if(!ZoneStore.isValid(path, zones)){
+                ZoneStore.build(zones, path);
+            }
+            try(ZoneStore store = ZoneStore.open(path)){
+                if(zoneIndex!=null){
+                    //The spatial index holds its zones on the heap, only lookups by id stay off it
+                    store.forEach(zoneIndex::add);
                 }
-            }catch(Throwable t){
-                t.printStackTrace();
+                render(zoneIndex, options, (pipeline, index) ->
+                        pipeline.run(MappedFile.open(areas), store, index, createImages, straight, 20));
             }
+            return;
+        }
+
+        Map<String, Zone> zonesMap = new HashMap<>();
+        if(options.isZoneSnapshots()){
+            loadZones(zones, options, collect(zonesMap, zoneIndex));
+        }else{
+            parseZones(zones, options, collect(zonesMap, zoneIndex));
+        }
+
+        render(zoneIndex, options, (pipeline, index) ->
+                pipeline.run(MappedFile.open(areas), zonesMap::get, index, createImages, straight, 20));
+    }
+
+    /**
+     * Loads zones from the snapshot of zones.json if it's current, otherwise parses zones.json and snapshots it
+     * @param zones  A GeoJSON file of Zones
+     * @param options  How to parse zones.json
+     * @param consumer  Receives each zone
+     * @throws Exception if neither can be read
+     */
+    static void loadZones(Path zones, RenderOptions options, ZoneConsumer consumer) throws Exception {
+        Path snapshot = ZoneSnapshot.pathFor(zones);
+        if(ZoneSnapshot.isValid(snapshot, zones)){
+            ZoneSnapshot.load(snapshot, consumer);
+            return;
+        }
+        //Taken before parsing, so if zones.json changes during the parse the snapshot isn't written as current
+        long size = Files.size(zones), modified = Files.getLastModifiedTime(zones).toMillis();
+        List<Zone> parsed = new ArrayList<>();
+        parseZones(zones, options, zone -> {
+            parsed.add(zone);
+            consumer.accept(zone);
         });
+        try{
+            ZoneSnapshot.write(parsed, zones, size, modified, snapshot);
+        }catch(IOException e){
+            //Not fatal, the next run parses the JSON again
+            System.err.println("Couldn't write zone snapshot "+snapshot+": "+e);
+        }
+    }
 
-        zones.close();
-        areas.close();
+    /**
+     * Parses a file of zones, in parallel if the options have parse threads, and leanly if they say so
+     */
+    static void parseZones(Path zones, RenderOptions options, ZoneConsumer consumer) throws Exception {
+        //Mapping avoids a read syscall and copy per buffer fill, which adds up on multi-gigabyte exports
+        MappedFile file = MappedFile.open(zones);
+        if(options.getParseThreads()==0){
+            if(options.isLeanZones()){
+                ZoneProcessor.processZonesLean(file, consumer);
+                return;
+            }
+            try(InputStream in = file.stream()){
+                ZoneProcessor.processZones(in, consumer);
+            }
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(options.getParseThreads());
+        try{
+            if(options.isLeanZones()){
+                ZoneProcessor.processZonesLean(file, pool, options.isParseOrdered(), consumer);
+            }else{
+                ZoneProcessor.processZones(file, pool, options.isParseOrdered(), consumer);
+            }
+        }finally{
+            pool.shutdownNow();
+        }
+    }
+
+    private static ZoneConsumer collect(Map<String, Zone> zonesMap, ZoneIndex.Builder zoneIndex) {
+        return zone -> {
+            zonesMap.put(zone.getCurbZoneId(), zone);
+            if(zoneIndex!=null){
+                zoneIndex.add(zone);
+            }
+        };
+    }
+
+    /**
+     * Runs a pipeline over the areas, from whichever source they're read
+     */
+    @FunctionalInterface
+    private interface AreaRun {
+        int run(RenderPipeline pipeline, ZoneIndex zoneIndex) throws Exception;
+    }
+
+    /**
+     * Process areas one-by-one and associate zones, rendering them in parallel
+     */
+    private void render(ZoneIndex.Builder zoneIndex, RenderOptions options, AreaRun areas) throws Exception {
+        final MapRenderer mr = options.getTileSource()!=null ? new MapRenderer(options.getTileSource()) : new MapRenderer();
+        RenderPipeline pipeline = new RenderPipeline(mr, options, new ConsoleListener());
+        int failures = areas.run(pipeline, zoneIndex!=null ? zoneIndex.build() : null);
+        report(mr, failures, options);
+    }
+
+    private static void report(MapRenderer mr, int failures, RenderOptions options) {
+        if(failures>0){
+            System.err.println(failures+" area(s) failed");
+        }
+
+        //Kept off stdout, which only has a line per area
+        if(options.isStats()){
+            System.err.println(mr.getTileCache());
+            System.err.println(Metrics.global());
+        }
+    }
+
+    /**
+     * Reports progress on the console
+     */
+    static class ConsoleListener implements RenderListener {
+        @Override
+        public void rendered(int imageNum, Area area, int width, int height, File output) {
+            if(output!=null){
+                System.out.println("#"+imageNum+", Image saved: " + output.getAbsolutePath());
+            }else{
+                System.out.println("#"+imageNum+", Didn't save: " + width+"x"+height);
+            }
+        }
+
+        @Override
+        public void renderedTiles(int imageNum, Area area, int tiles, File directory) {
+            if(directory!=null){
+                System.out.println("#"+imageNum+", "+tiles+" tiles saved: " + directory.getAbsolutePath());
+            }else{
+                System.out.println("#"+imageNum+", Didn't save: " + tiles+" tiles");
+            }
+        }
 
+        @Override
+        public void renderedLevel(int imageNum, Area area, int zoom, int width, int height, File output) {
+            System.out.println("#"+imageNum+", z"+zoom+" saved: " + output.getAbsolutePath());
+        }
+
+        @Override
+        public void skipped(int imageNum, Area area, File output) {
+            System.out.println("#"+imageNum+", Unchanged: " + output.getAbsolutePath());
+        }
+
+        @Override
+        public void failed(int imageNum, Area area, Throwable t) {
+            System.err.println("#"+imageNum+", Area "+area.getCurbAreaId()+" failed: "+t);
+        }
     }
 }
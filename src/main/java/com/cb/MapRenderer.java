@@ -1,10 +1,12 @@
 package com.cb;
-import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.geom.Path2D;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * This class deals with creating the graphics
@@ -13,20 +15,89 @@ public class MapRenderer {
 
     private static final int TILE_SIZE = 256;
 
+    //How many tiles renderTiles loads ahead of the one it's drawing
+    private static final int FETCH_AHEAD = 4;
+
+    static final Color BACKGROUND = new Color(200, 200, 200);
+    static final Color AREA_COLOR = new Color(0, 255, 0, 255);
+    static final Color CURB_COLOR = new Color(255, 0, 0, 255);
+    static final BasicStroke STROKE = new BasicStroke(2);
+
+    //Vertices within half a pixel of the simplified line make no visible difference
+    public static final double DEFAULT_TOLERANCE = 0.5;
+
+    private final TileCache tileCache;
+    private volatile double tolerance = DEFAULT_TOLERANCE;
+
+    //How a mosaic gets the tiles it hasn't composed, prefetched as drawTiles does
+    private final TileMosaic.TileFetcher mosaicFetcher = new TileMosaic.TileFetcher() {
+        @Override
+        public CompletableFuture<BufferedImage> fetch(int zoom, int x, int y) {
+            return fetchTile(zoom, x, y);
+        }
+
+        @Override
+        public void prefetch(int zoom, int minX, int minY, int maxX, int maxY) {
+            tileCache.prefetch(zoom, minX, minY, maxX, maxY);
+        }
+    };
+
     /**
-     * Sets the tile bounds given the gps coordinates
-     * @param shape A list of gps pairs
+     * Renders with the tiles bundled in the jar
+     */
+    public MapRenderer() {
+        this(TileSource.classpath());
+    }
+
+    /**
+     * @param tileSource  Where tiles come from, cached with the default budget
+     */
+    public MapRenderer(TileSource tileSource) {
+        this(new TileCache(TileCache.DEFAULT_MAX_BYTES, tileSource));
+    }
+
+    /**
+     * @param tileCache  A cache which may be shared with other renderers
+     */
+    public MapRenderer(TileCache tileCache) {
+        this.tileCache = tileCache;
+    }
+
+    public TileCache getTileCache() {
+        return tileCache;
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * @param tolerance  How far in pixels simplifying may move the outline and curbs, 0 only removes vertices
+     *                   which land on the same pixel as the one before
+     */
+    public void setTolerance(double tolerance) {
+        if (!(tolerance >= 0)) {
+            throw new IllegalArgumentException("tolerance must be at least 0: " + tolerance);
+        }
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Sets the tile bounds given the pixel coordinates
+     * @param pixels Interleaved pixel x/y pairs
      * @param b The bounds to set max/min
-     * @param zoom  The zoom level
      */
-    private void setTileRange(List<List<Double>> shape, Bounds b, int zoom){
-        for(List<Double> xy:shape){
-            int [] tileXY = CoordinateUtils.toTileNumbers(xy.get(0),xy.get(1),zoom);
-            if(tileXY[0]<b.minX) b.minX=tileXY[0];
-            else if(tileXY[0]>b.maxX) b.maxX=tileXY[0];
-            if(tileXY[1]<b.minY) b.minY=tileXY[1];
-            else if(tileXY[1]>b.maxY) b.maxY=tileXY[1];
+    private void setTileRange(int[] pixels, Bounds b){
+        if(pixels.length==0){
+            return;
         }
+        //Dividing is monotonic, so the tiles of the extreme pixels are the extreme tiles
+        int[] range = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+        CoordinateUtils.bounds(pixels, 0, pixels.length, range);
+        b.minX = Math.min(b.minX, range[0] / TILE_SIZE);
+        b.minY = Math.min(b.minY, range[1] / TILE_SIZE);
+        b.maxX = Math.max(b.maxX, range[2] / TILE_SIZE);
+        b.maxY = Math.max(b.maxY, range[3] / TILE_SIZE);
     }
 
     /**
@@ -44,155 +115,329 @@ public class MapRenderer {
      * @return the image
      */
     public BufferedImage renderMap(Area area, int zoom, boolean straight) {
+        return renderMap(area, zoom, straight, null);
+    }
+
+    /**
+     * As above, drawing on a canvas from a pool, which the caller releases once it's done with the image
+     * @param area  The Area object
+     * @param zoom  The chosen zoom level
+     * @param straight  Draw zones from start to end rather than point-to-point
+     * @param canvasPool  Where the canvas comes from, or null for a new one
+     * @return the image
+     */
+    public BufferedImage renderMap(Area area, int zoom, boolean straight, CanvasPool canvasPool) {
+        return renderMap(area, zoom, straight, canvasPool, null);
+    }
+
+    /**
+     * As above, starting the canvas from base tiles composed once for a batch of areas.
+     * The image is the same as without the mosaic
+     * @param area  The Area object
+     * @param zoom  The chosen zoom level
+     * @param straight  Draw zones from start to end rather than point-to-point
+     * @param canvasPool  Where the canvas comes from, or null for a new one
+     * @param mosaic  Base tiles shared with other areas, or null to draw them onto the canvas
+     * @return the image
+     */
+    public BufferedImage renderMap(Area area, int zoom, boolean straight, CanvasPool canvasPool, TileMosaic mosaic) {
+        Metrics metrics = Metrics.global();
+        RenderContext context = RenderContext.get();
+        long start = System.nanoTime();
 
         //We need to know the bounds so that correct tiles can be used
         Bounds bounds = new Bounds();
 
-        //Find the max XY tile numbers
-        List<List<Double>> polygon = area.getGeometry().getCoordinates();
-        setTileRange(polygon,bounds,zoom);
+        //Project every vertex once, only the outer ring of the area is drawn
+        Geometry polygon = area.getGeometry();
+        int[] areaPoints = computePoints(polygon,0,polygon.getRingEnd(0),zoom);
 
         List<Zone> zones = area.getCurbZones();
-        for (Zone zone : zones) {
-            List<List<Double>> zoneCoordinates = zone.getGeometry().getCoordinates();
-            setTileRange(zoneCoordinates,bounds,zoom);
-        }
+        List<int[]> zonePoints = context.zonePoints;
+        //The scratch lists are the thread's, and the canvas is only the caller's once drawn, whatever is thrown
+        BufferedImage bim = null;
+        boolean drawn = false;
+        try {
+            for (Zone zone : zones) {
+                Geometry zoneGeometry = zone.getGeometry();
+                zonePoints.add(computePoints(zoneGeometry,0,zoneGeometry.getVertexCount(),zoom));
+            }
 
-        List<Point> areaPoints = new ArrayList<>();
-        //Create pixel points for the area
-        for(List<Double> gps:polygon){
-            computePoints(gps,areaPoints,bounds,zoom);
-        }
+            //Find the max XY tile numbers
+            setTileRange(areaPoints,bounds);
+            for (int[] zp : zonePoints) {
+                setTileRange(zp,bounds);
+            }
+
+            //Make the pixels relative to the top left tile
+            toCanvas(areaPoints,bounds);
+            for (int[] zp : zonePoints) {
+                toCanvas(zp,bounds);
+            }
+            areaPoints = Simplifier.simplify(areaPoints, tolerance);
+            start = metrics.record(Metrics.Stage.PROJECT, start);
+            //Fetching and concatenating are timed as their own stages, so are taken off drawing
+            long excluded = 0;
+
+            //Create the canvas
+            int width = ((bounds.maxX-bounds.minX)+1)*TILE_SIZE, height = ((bounds.maxY-bounds.minY)+1)*TILE_SIZE;
+            bim = canvasPool!=null ? canvasPool.acquire(width, height)
+                    : new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            metrics.add(Metrics.Counter.CANVAS_PIXELS, (long) bim.getWidth() * bim.getHeight());
+
+            //A pooled canvas is painted over completely, so what it last held doesn't matter
+            Graphics2D g = canvasPool!=null ? canvasPool.graphics(bim) : bim.createGraphics();
+            if (mosaic != null) {
+                excluded += mosaic.paint(bim, zoom, bounds.minX, bounds.minY, bounds.maxX, bounds.maxY, mosaicFetcher);
+            } else {
+                excluded += drawTiles(g, bim, zoom, bounds, context.tiles);
+            }
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+            g.setColor(AREA_COLOR);
+            g.setStroke(STROKE);
+            drawArea(g,areaPoints,context.path,bim.getWidth(),bim.getHeight());
+
+            g.setColor(CURB_COLOR);
+
+            long concatenate = System.nanoTime();
+            List<int[]> curbs = concatenateLines(zonePoints);
+            excluded += metrics.record(Metrics.Stage.CONCATENATE, concatenate) - concatenate;
+            for(int[] line:curbs){
+                if(straight) {
+                    drawStraightLine(g, line, context.path);
+                }else {
+                    drawArea(g, Simplifier.simplify(line, tolerance), context.path, bim.getWidth(), bim.getHeight());
+                }
+            }
 
-        List<List<Point>> zonePoints = new ArrayList<>();
-        //Create pixel points for the zones
-        for (Zone zone : zones) {
-            List<List<Double>> zoneCoordinates = zone.getGeometry().getCoordinates();
-            List<Point> zp = new ArrayList<>();
-            for(List<Double> gps:zoneCoordinates) {
-                computePoints(gps,zp,bounds,zoom);
+            if(canvasPool==null){
+                g.dispose();
+            }
+            metrics.recordNanos(Metrics.Stage.DRAW, System.nanoTime() - start - excluded);
+            drawn = true;
+            return bim;
+        } finally {
+            zonePoints.clear();
+            context.tiles.clear();
+            if (!drawn && canvasPool != null) {
+                canvasPool.release(bim);
             }
-            zonePoints.add(zp);
         }
+    }
 
-        //Create the canvas
-        BufferedImage bim =  new BufferedImage(((bounds.maxX-bounds.minX)+1)*TILE_SIZE,
-                ((bounds.maxY-bounds.minY)+1)*TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g = bim.createGraphics();
-        g.setPaint ( new Color ( 200, 200, 200) );
+    /**
+     * Fills the canvas with the background and draws the tiles of the bounds onto it
+     * @param tiles  Scratch list for the tile futures
+     * @return the nanoseconds spent waiting for tiles
+     */
+    private long drawTiles(Graphics2D g, BufferedImage bim, int zoom, Bounds bounds,
+                           List<CompletableFuture<BufferedImage>> tiles) {
+        //Ask for every tile up front so they load in parallel while earlier ones are drawn
+        tileCache.prefetch(zoom, bounds.minX, bounds.minY, bounds.maxX, bounds.maxY);
+        for (int x = bounds.minX; x <= bounds.maxX; x++) {
+            for (int y = bounds.minY; y <= bounds.maxY; y++) {
+                tiles.add(fetchTile(zoom, x, y));
+            }
+        }
+        g.setPaint(BACKGROUND);
         g.fillRect ( 0, 0, bim.getWidth(), bim.getHeight() );
-        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        int X=0, Y;
+        long waited = 0;
+        int X=0, Y, T=0;
 
         for (int x = bounds.minX; x <= bounds.maxX; x++) {
             Y=0;
             for (int y = bounds.minY; y <= bounds.maxY; y++) {
-                try {
-                    BufferedImage tile = getTile(zoom, x, y);
+                long fetch = System.nanoTime();
+                BufferedImage tile = awaitTile(tiles.get(T++));
+                waited += System.nanoTime() - fetch;
+                if (tile != null) {
                     g.drawImage(tile, X * TILE_SIZE, Y * TILE_SIZE, null);
-                }catch(Throwable t){
-                    t.printStackTrace();
                 }
                 Y++;
             }
             X++;
         }
+        return waited;
+    }
 
-        g.setColor(new Color(0, 255, 0, 255));
-        g.setStroke(new BasicStroke(2));
-        drawArea(g,areaPoints);
-
-        g.setColor(new Color(255,0,0,255));
-        g.setStroke(new BasicStroke(2));
-
-        for(List<Point> line:concatenateLines(zonePoints)){
+    /**
+     * Renders an area as standard 256x256 tiles rather than one canvas, so memory use doesn't depend on the
+     * size of the area. Only tiles that the outline or curbs pass through are produced, each with the base tile
+     * underneath and the overlays clipped to it, in x then y order. The pixels match the same region of renderMap.
+     * @param area  The Area object
+     * @param zoom  The chosen zoom level
+     * @param straight  Draw zones from start to end rather than point-to-point
+     * @param sink  Receives each tile. The image is reused for the next tile so must be consumed before returning
+     * @return the number of tiles produced
+     * @throws IOException if the sink fails
+     */
+    public int renderTiles(Area area, int zoom, boolean straight, TileSink sink) throws IOException {
+        Metrics metrics = Metrics.global();
+        long start = System.nanoTime();
+
+        //Absolute pixel coordinates, tiles are drawn by translating to them
+        Geometry polygon = area.getGeometry();
+        int[] areaPoints = computePoints(polygon,0,polygon.getRingEnd(0),zoom);
+        List<int[]> zonePoints = new ArrayList<>();
+        for (Zone zone : area.getCurbZones()) {
+            Geometry zoneGeometry = zone.getGeometry();
+            zonePoints.add(computePoints(zoneGeometry,0,zoneGeometry.getVertexCount(),zoom));
+        }
+        areaPoints = Simplifier.simplify(areaPoints, tolerance);
+        start = metrics.record(Metrics.Stage.PROJECT, start);
+        List<int[]> lines = concatenateLines(zonePoints);
+        start = metrics.record(Metrics.Stage.CONCATENATE, start);
+        //Fetching and the sink are timed elsewhere, so are taken off drawing
+        long excluded = 0;
+
+        //Straight curbs are drawn from first to last point, the rest are simplified like the outline
+        List<int[]> curbs = new ArrayList<>();
+        //Which tiles the strokes reach
+        TreeSet<Long> tiles = new TreeSet<>();
+        markTiles(areaPoints, tiles);
+        for(int[] line:lines){
             if(straight) {
-                drawStraightLine(g, line);
+                int last = line.length-2;
+                line = new int[]{line[0], line[1], line[last], line[last+1]};
             }else {
-                drawArea(g, line);
+                line = Simplifier.simplify(line, tolerance);
+            }
+            curbs.add(line);
+            markTiles(line, tiles);
+        }
+        Path2D.Double path = RenderContext.get().path;
+
+        BufferedImage bim = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+        metrics.add(Metrics.Counter.CANVAS_PIXELS, (long) TILE_SIZE * TILE_SIZE);
+        //Keep a few tiles loading ahead of the one being drawn, without holding the whole area's tiles
+        Deque<CompletableFuture<BufferedImage>> ahead = new ArrayDeque<>();
+        Iterator<Long> fetching = tiles.iterator();
+        for (long tile : tiles) {
+            while (ahead.size() <= FETCH_AHEAD && fetching.hasNext()) {
+                long next = fetching.next();
+                ahead.add(fetchTile(zoom, (int) (next >> 32), (int) next));
+            }
+            int x = (int) (tile >> 32), y = (int) tile;
+            Graphics2D g = bim.createGraphics();
+            g.setPaint(BACKGROUND);
+            g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            long fetch = System.nanoTime();
+            BufferedImage base = awaitTile(ahead.poll());
+            excluded += System.nanoTime() - fetch;
+            if (base != null) {
+                g.drawImage(base, 0, 0, null);
             }
+            g.translate(-(double) x * TILE_SIZE, -(double) y * TILE_SIZE);
+            g.setStroke(STROKE);
+            g.setColor(AREA_COLOR);
+            //Only the segments reaching this tile are stroked
+            int left = x * TILE_SIZE, top = y * TILE_SIZE;
+            path.reset();
+            g.draw(areaPath(areaPoints, path, left, top, left + TILE_SIZE, top + TILE_SIZE));
+            g.setColor(CURB_COLOR);
+            for (int[] curb : curbs) {
+                path.reset();
+                if (straight) {
+                    if (visible(curb, 0, left, top, left + TILE_SIZE, top + TILE_SIZE)) {
+                        g.draw(straightPath(curb, path));
+                    }
+                } else {
+                    g.draw(areaPath(curb, path, left, top, left + TILE_SIZE, top + TILE_SIZE));
+                }
+            }
+            g.dispose();
+            long sinking = System.nanoTime();
+            sink.accept(zoom, x, y, bim);
+            excluded += System.nanoTime() - sinking;
+        }
+        metrics.recordNanos(Metrics.Stage.DRAW, System.nanoTime() - start - excluded);
+        return tiles.size();
+    }
+
+    //How far past a segment its stroke and antialiasing can reach, in pixels
+    private static final int STROKE_MARGIN = 2;
+
+    /**
+     * Adds the tiles which a polyline's stroke touches. Each segment is walked a tile column at a time so the
+     * work is proportional to the tiles touched, not the area of the segment's bounding box.
+     * @param points  Interleaved absolute pixel x/y pairs
+     * @param tiles  Receives x << 32 | y of each tile
+     */
+    private void markTiles(int[] points, Set<Long> tiles) {
+        if (points.length == 2) {
+            markSegment(points[0], points[1], points[0], points[1], tiles);
+        }
+        for (int i = 2; i < points.length; i += 2) {
+            markSegment(points[i-2], points[i-1], points[i], points[i+1], tiles);
         }
+    }
 
-        g.dispose();
-        return bim;
+    private void markSegment(double x1, double y1, double x2, double y2, Set<Long> tiles) {
+        if (x1 > x2) {
+            double t = x1; x1 = x2; x2 = t;
+            t = y1; y1 = y2; y2 = t;
+        }
+        int m = STROKE_MARGIN;
+        long firstCol = Math.floorDiv((long) Math.floor(x1) - m, TILE_SIZE);
+        long lastCol = Math.floorDiv((long) Math.ceil(x2) + m, TILE_SIZE);
+        for (long col = firstCol; col <= lastCol; col++) {
+            //The part of the segment within this column, widened by the margin
+            double left = Math.max(x1, col * TILE_SIZE - m);
+            double right = Math.min(x2, (col + 1) * TILE_SIZE + m);
+            double ya = y1, yb = y2;
+            if (x2 > x1) {
+                ya = y1 + (y2 - y1) * (left - x1) / (x2 - x1);
+                yb = y1 + (y2 - y1) * (right - x1) / (x2 - x1);
+            }
+            long firstRow = Math.floorDiv((long) Math.floor(Math.min(ya, yb)) - m, TILE_SIZE);
+            long lastRow = Math.floorDiv((long) Math.ceil(Math.max(ya, yb)) + m, TILE_SIZE);
+            for (long row = Math.max(0, firstRow); row <= lastRow; row++) {
+                if (col >= 0) {
+                    tiles.add((col << 32) | row);
+                }
+            }
+        }
     }
 
     /**
-     * Converts gps coordinates to tile XY coordinates
+     * Converts gps coordinates to pixel coordinates
      * @param gps  The gps points
-     * @param dest  The destination container
-     * @param bounds  The bounds
+     * @param from  The first vertex
+     * @param to  The vertex after the last
      * @param zoom  The zoom level
+     * @return interleaved x/y pixel pairs
      */
-    private void computePoints(List<Double> gps, List<Point> dest, Bounds bounds, int zoom){
-        int[] pixelCoord = CoordinateUtils.toPixelCoordinates(gps.get(0), gps.get(1), zoom);
-        int x = pixelCoord[0] - (bounds.minX * TILE_SIZE);
-        int y = pixelCoord[1] - (bounds.minY * TILE_SIZE);
-        dest.add(new Point(x,y));
+    private int[] computePoints(Geometry gps, int from, int to, int zoom){
+        int[] dest = new int[(to-from)*2];
+        CoordinateUtils.project(gps.getCoordinates(), from, to, zoom, dest, null);
+        return dest;
     }
 
+    /**
+     * Moves pixel coordinates so they're relative to the top left tile of the canvas
+     * @param pixels  Interleaved x/y pixel pairs, updated in place
+     * @param bounds  The bounds
+     */
+    private void toCanvas(int[] pixels, Bounds bounds){
+        int originX = bounds.minX * TILE_SIZE;
+        int originY = bounds.minY * TILE_SIZE;
+        for(int i=0; i<pixels.length; i+=2){
+            pixels[i] -= originX;
+            pixels[i+1] -= originY;
+        }
+    }
 
     /**
      * Concatenate the lines (Zones) associated with the Area. This is needed so we can get a straight line
      * from start to end. Basically we're piecing together curbettes and creating curbs
-     * @param lines curbettes
+     * @param lines curbettes as interleaved x/y pixel pairs
      * @return a concatenated list of connected curbettes
+     * @see CurbAssembler
      */
-    private List<List<Point>> concatenateLines(List<List<Point>> lines) {
-        // Use a map for quick look up of start/end points
-        Map<Point, List<Point>> startMap = new HashMap<>();
-        Map<Point, List<Point>> endMap = new HashMap<>();
-        for (List<Point> line : lines) {
-            Point start = line.get(0);
-            Point end = line.get(line.size() - 1);
-            startMap.put(start, line);
-            endMap.put(end, line);
-        }
-
-        // Dups
-        Set<List<Point>> visited = new HashSet<>();
-
-        List<List<Point>> result = new ArrayList<>();
-
-        for (List<Point> line : lines) {
-            if (!visited.contains(line)) {
-                visited.add(line);
-
-                List<Point> connectedLine = new ArrayList<>(line);
-
-                // Starters
-                Point end = connectedLine.get(connectedLine.size() - 1);
-                while (startMap.containsKey(end)) {
-                    List<Point> nextLine = startMap.get(end);
-                    if (visited.contains(nextLine)){
-                        break;
-                    }
-                    visited.add(nextLine);
-                    //Don't need to duplicate
-                    connectedLine.addAll(nextLine.subList(1, nextLine.size()));
-                    end = connectedLine.get(connectedLine.size() - 1);
-                }
-
-                // Trailers
-                Point start = connectedLine.get(0);
-                while (endMap.containsKey(start)) {
-                    List<Point> prevLine = endMap.get(start);
-                    if (visited.contains(prevLine)){
-                        break;
-                    }
-                    visited.add(prevLine);
-                    // Again, don't need to duplicate the connection point
-                    List<Point> toAdd = new ArrayList<>(prevLine.subList(0, prevLine.size() - 1));
-                    toAdd.addAll(connectedLine);
-                    connectedLine = toAdd;
-                    start = connectedLine.get(0);
-                }
-
-                result.add(connectedLine);
-            }
-        }
-
-        return result;
+    List<int[]> concatenateLines(List<int[]> lines) {
+        return CurbAssembler.assemble(lines);
     }
 
 
@@ -200,54 +445,105 @@ public class MapRenderer {
      * Draws a straight line which is the start point and end point of a list of Points onto the BufferedImage
      * @param g  The graphics object
      * @param points The concatenated curb
+     * @param path  Reused for the line
      */
-    private void drawStraightLine(Graphics2D g, List<Point> points){
+    private void drawStraightLine(Graphics2D g, int[] points, Path2D.Double path){
+        path.reset();
+        g.draw(straightPath(points, path));
+    }
 
-        Path2D.Double path = new Path2D.Double();
-        Point first  = points.get(0);
-        Point last = points.get(points.size()-1);
+    private Path2D straightPath(int[] points, Path2D.Double path){
+        int last = points.length-2;
 
-        path.moveTo(first.getX(), first.getY());
-        path.lineTo(last.getX(), last.getY());
+        path.moveTo(points[0], points[1]);
+        path.lineTo(points[last], points[last+1]);
 
         path.closePath();
-        g.draw(path);
-
+        return path;
     }
 
     /**
      * Draws a shape onto the BufferedImage
      * @param g  The graphics object
      * @param points The Area
+     * @param path  Reused for the shape
      */
-    private void drawArea(Graphics2D g, List<Point> points){
-
-        Path2D.Double path = new Path2D.Double();
-        boolean firstPoint = true;
+    private void drawArea(Graphics2D g, int[] points, Path2D.Double path, int width, int height){
+        path.reset();
+        g.draw(areaPath(points, path, 0, 0, width, height));
+    }
 
-        for (Point xy : points) {
-            if (firstPoint) {
-                path.moveTo(xy.getX(), xy.getY());
-                firstPoint = false;
-            } else {
-                path.lineTo(xy.getX(), xy.getY());
-                path.moveTo(xy.getX(), xy.getY());
+    /**
+     * Builds the segments of a polyline which reach a rectangle, each as its own subpath.
+     * Segments beyond the reach of their stroke are left out, so the cost of stroking depends on what's visible
+     * @param points  Interleaved x/y pixel pairs
+     * @param path  Receives the segments, it should be empty
+     * @param minX  The left of the rectangle
+     * @param minY  The top of the rectangle
+     * @param maxX  The right of the rectangle
+     * @param maxY  The bottom of the rectangle
+     * @return path
+     */
+    private Path2D areaPath(int[] points, Path2D.Double path, int minX, int minY, int maxX, int maxY){
+        if (points.length == 2) {
+            if (visible(points, 0, minX, minY, maxX, maxY)) {
+                path.moveTo(points[0], points[1]);
+                path.closePath();
             }
+            return path;
         }
-        path.closePath();
-        g.draw(path);
+        boolean drawn = false;
+        for (int i = 2; i < points.length; i += 2) {
+            if (visible(points, i - 2, minX, minY, maxX, maxY)) {
+                //A moveTo straight after another replaces it, so consecutive segments share their point
+                path.moveTo(points[i-2], points[i-1]);
+                path.lineTo(points[i], points[i+1]);
+                path.moveTo(points[i], points[i+1]);
+                drawn = true;
+            }
+        }
+        if (drawn) {
+            path.closePath();
+        }
+        return path;
+    }
 
+    /**
+     * @param i  The index of the x of the segment's first point, the segment ends at the next point if there is one
+     * @return true if the stroke of the segment can reach the rectangle
+     */
+    private static boolean visible(int[] points, int i, int minX, int minY, int maxX, int maxY){
+        int j = Math.min(i + 2, points.length - 2);
+        int m = STROKE_MARGIN;
+        return Math.max(points[i], points[j]) >= minX - m && Math.min(points[i], points[j]) <= maxX + m
+                && Math.max(points[i+1], points[j+1]) >= minY - m && Math.min(points[i+1], points[j+1]) <= maxY + m;
     }
 
     /**
-     * Gets a single tile from cache
+     * Starts getting a single tile from cache
      * @param zoom  Zoom level (0 to 20+)
      * @param x  The x coordinate
      * @param y  The y coordinate
      * @return The tile at x,y,x
      */
-    private BufferedImage getTile(int zoom, int x, int y) throws Throwable {
-        String name = "/"+zoom+"-"+x+"-"+y+".jpeg";
-        return ImageIO.read(getClass().getResourceAsStream(name));
+    private CompletableFuture<BufferedImage> fetchTile(int zoom, int x, int y) {
+        Metrics metrics = Metrics.global();
+        metrics.add(Metrics.Counter.TILES_REQUESTED, 1);
+        long start = System.nanoTime();
+        return tileCache.getAsync(zoom, x, y).whenComplete((tile, t) -> metrics.record(Metrics.Stage.TILE_FETCH, start));
+    }
+
+    /**
+     * A missing tile leaves the background showing rather than failing the area
+     * @return the tile, or null if it couldn't be loaded
+     */
+    static BufferedImage awaitTile(CompletableFuture<BufferedImage> tile) {
+        try {
+            return tile.join();
+        } catch (CompletionException e) {
+            //Usually a tile beyond those available, which is common enough at the edges not to be worth a trace
+            Metrics.global().add(Metrics.Counter.TILES_MISSING, 1);
+            return null;
+        }
     }
 }
@@ -0,0 +1,140 @@
+package com.cb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only memory mapped file. A single mapping is limited to 2GB so larger files are mapped as
+ * consecutive 1GB segments and reads cross between them transparently.
+ * Streams read straight out of the page cache into the caller's buffer, so feeding one to Jackson
+ * costs one copy rather than a read syscall plus a copy per buffer fill.
+ */
+public class MappedFile {
+
+    static final int SEGMENT_BITS = 30;
+    static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+    private final MappedByteBuffer[] segments;
+    private final long size;
+
+    private MappedFile(MappedByteBuffer[] segments, long size) {
+        this.segments = segments;
+        this.size = size;
+    }
+
+    /**
+     * Maps the whole of a file. The mapping stays valid after this returns as the channel isn't needed
+     * once mapped, it's released when this is garbage collected.
+     * @param path  The file
+     * @return the mapped file
+     * @throws IOException if it can't be opened or mapped
+     */
+    public static MappedFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int count = (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+            MappedByteBuffer[] segments = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long position = (long) i << SEGMENT_BITS;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, size - position));
+            }
+            return new MappedFile(segments, size);
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @param position  Offset into the file
+     * @return the byte at that offset
+     */
+    public byte get(long position) {
+        return segments[(int) (position >>> SEGMENT_BITS)].get((int) (position & (SEGMENT_SIZE - 1)));
+    }
+
+    /**
+     * @param position  Offset into the file, a multiple of 8 so it can't straddle two segments
+     * @return the big endian long at that offset
+     */
+    public long getLong(long position) {
+        return segments[(int) (position >>> SEGMENT_BITS)].getLong((int) (position & (SEGMENT_SIZE - 1)));
+    }
+
+    /**
+     * Copies bytes out of the file
+     * @param position  Offset into the file
+     * @param dest  The destination
+     * @param offset  Offset into dest
+     * @param length  The number of bytes, which must all be within the file
+     */
+    public void get(long position, byte[] dest, int offset, int length) {
+        while (length > 0) {
+            MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_BITS)];
+            int within = (int) (position & (SEGMENT_SIZE - 1));
+            int n = Math.min(length, segment.limit() - within);
+            segment.get(within, dest, offset, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * @return a stream of the whole file
+     */
+    public InputStream stream() {
+        return stream(0, size);
+    }
+
+    /**
+     * Streams part of the file. Any number of streams can be open at once, they don't share a position.
+     * @param from  The first byte
+     * @param to  The byte after the last
+     * @return a stream of the range
+     */
+    public InputStream stream(long from, long to) {
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("[" + from + ", " + to + ") of " + size);
+        }
+        return new InputStream() {
+            private long position = from;
+
+            @Override
+            public int read() {
+                return position < to ? get(position++) & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                if (position >= to) {
+                    return -1;
+                }
+                int n = (int) Math.min(len, to - position);
+                get(position, b, off, n);
+                position += n;
+                return n;
+            }
+
+            @Override
+            public long skip(long n) {
+                long skipped = Math.max(0, Math.min(n, to - position));
+                position += skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                return (int) Math.min(Integer.MAX_VALUE, to - position);
+            }
+        };
+    }
+}
@@ -0,0 +1,156 @@
+package com.cb;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms and counters for each stage of rendering, shared by the whole process.
+ * Stages are timed per area (per tile for fetching) so the cost is a couple of System.nanoTime calls each.
+ * Comparing TILE_FETCH with DRAW and ENCODE shows whether a run is waiting on tile I/O or on the CPU.
+ */
+public final class Metrics {
+
+    public enum Stage {
+        /** Deserializing a zone */
+        PARSE_ZONE,
+        /** Deserializing an area */
+        PARSE_AREA,
+        /** Finding an area's zones */
+        ASSOCIATE,
+        /** Projecting an area and its zones to pixels */
+        PROJECT,
+        /** Getting a base tile, from the cache or loaded */
+        TILE_FETCH,
+        /** Joining curbettes into curbs */
+        CONCATENATE,
+        /** Compositing tiles and drawing the overlays, excluding fetching and concatenating */
+        DRAW,
+        /** Downsampling a render to the shallower zooms of a pyramid */
+        DOWNSAMPLE,
+        /** Encoding an image */
+        ENCODE,
+        /** Writing an encoded image to the output */
+        WRITE
+    }
+
+    public enum Counter {
+        AREAS_RENDERED,
+        AREAS_FAILED,
+        TILES_REQUESTED,
+        /** Tiles which weren't cached */
+        TILES_LOADED,
+        /** Tiles which couldn't be loaded, leaving the background in their place */
+        TILES_MISSING,
+        CANVAS_PIXELS,
+        BYTES_WRITTEN
+    }
+
+    private static final Metrics GLOBAL = new Metrics();
+
+    private final Histogram[] histograms = new Histogram[Stage.values().length];
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+
+    Metrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+    }
+
+    public static Metrics global() {
+        return GLOBAL;
+    }
+
+    /**
+     * @param stage  The stage which began at start
+     * @param start  The System.nanoTime the stage began
+     * @return now, so consecutive stages can be timed from one clock read
+     */
+    public long record(Stage stage, long start) {
+        long now = System.nanoTime();
+        histograms[stage.ordinal()].record(now - start);
+        return now;
+    }
+
+    /**
+     * @param stage  The stage
+     * @param nanos  How long it took
+     */
+    public void recordNanos(Stage stage, long nanos) {
+        histograms[stage.ordinal()].record(nanos);
+    }
+
+    public void add(Counter counter, long n) {
+        counters[counter.ordinal()].add(n);
+    }
+
+    public Histogram get(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    public long get(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    public void reset() {
+        for (Histogram h : histograms) {
+            h.reset();
+        }
+        for (LongAdder c : counters) {
+            c.reset();
+        }
+    }
+
+    /**
+     * @return stages (count, mean, percentiles and max in milliseconds) and counters by lower case name,
+     *         ready for serializing
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> stages = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            Histogram h = get(stage);
+            Map<String, Object> s = new LinkedHashMap<>();
+            s.put("count", h.getCount());
+            s.put("mean_ms", h.getMean() / 1e6);
+            s.put("p50_ms", h.getValueAtPercentile(50) / 1e6);
+            s.put("p90_ms", h.getValueAtPercentile(90) / 1e6);
+            s.put("p99_ms", h.getValueAtPercentile(99) / 1e6);
+            s.put("max_ms", h.getMax() / 1e6);
+            s.put("total_ms", h.getMean() * h.getCount() / 1e6);
+            stages.put(stage.name().toLowerCase(Locale.ROOT), s);
+        }
+        Map<String, Object> counts = new LinkedHashMap<>();
+        for (Counter counter : Counter.values()) {
+            counts.put(counter.name().toLowerCase(Locale.ROOT), get(counter));
+        }
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("stages", stages);
+        snapshot.put("counters", counts);
+        return snapshot;
+    }
+
+    /**
+     * @return one line with the p50/p99 of each stage that's been used, and the counters
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Metrics[");
+        for (Stage stage : Stage.values()) {
+            Histogram h = get(stage);
+            if (h.getCount() > 0) {
+                sb.append(String.format(Locale.ROOT, "%s n=%d p50=%.2fms p99=%.2fms total=%.0fms, ",
+                        stage.name().toLowerCase(Locale.ROOT), h.getCount(), h.getValueAtPercentile(50) / 1e6,
+                        h.getValueAtPercentile(99) / 1e6, h.getMean() * h.getCount() / 1e6));
+            }
+        }
+        for (Counter counter : Counter.values()) {
+            sb.append(counter.name().toLowerCase(Locale.ROOT)).append('=').append(get(counter)).append(", ");
+        }
+        sb.setLength(sb.length() - 2);
+        return sb.append(']').toString();
+    }
+}
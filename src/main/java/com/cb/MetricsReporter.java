@@ -0,0 +1,144 @@
+package com.cb;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Publishes Metrics, either periodically while rendering or once at the end
+ */
+@FunctionalInterface
+public interface MetricsReporter {
+
+    /**
+     * @param metrics  The metrics to publish
+     * @throws IOException if they couldn't be published
+     */
+    void report(Metrics metrics) throws IOException;
+
+    /**
+     * @param out  Receives one line per report
+     */
+    static MetricsReporter log(PrintStream out) {
+        return metrics -> out.println(Instant.now() + " " + metrics);
+    }
+
+    /**
+     * @param file  Replaced with a JSON snapshot of the metrics on each report
+     */
+    static MetricsReporter json(Path file) {
+        return metrics -> {
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("timestamp", Instant.now().toString());
+            json.putAll(metrics.snapshot());
+            Path parent = file.toAbsolutePath().getParent();
+            Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            try {
+                Json.MAPPER.writerWithDefaultPrettyPrinter().writeValue(temp.toFile(), json);
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        };
+    }
+
+    /**
+     * Registers an MXBean which reads the metrics live, so reporting does nothing
+     * @param metrics  The metrics to expose
+     * @param name  The ObjectName, e.g. com.cb:type=Metrics
+     * @throws JMException if the bean couldn't be registered
+     */
+    static MetricsReporter jmx(Metrics metrics, String name) throws JMException {
+        ObjectName objectName = new ObjectName(name);
+        if (!ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(metrics), objectName);
+        }
+        return m -> {
+        };
+    }
+
+    /**
+     * The view of Metrics published over JMX. Maps are keyed by lower case stage or counter name
+     */
+    interface MetricsMXBean {
+        Map<String, Long> getCounters();
+
+        Map<String, Long> getCounts();
+
+        Map<String, Double> getP50Millis();
+
+        Map<String, Double> getP99Millis();
+
+        Map<String, Double> getTotalMillis();
+
+        void reset();
+    }
+
+    class Bean implements MetricsMXBean {
+        private final Metrics metrics;
+
+        Bean(Metrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Map<String, Long> getCounters() {
+            Map<String, Long> map = new LinkedHashMap<>();
+            for (Metrics.Counter counter : Metrics.Counter.values()) {
+                map.put(counter.name().toLowerCase(Locale.ROOT), metrics.get(counter));
+            }
+            return map;
+        }
+
+        @Override
+        public Map<String, Long> getCounts() {
+            Map<String, Long> map = new LinkedHashMap<>();
+            for (Metrics.Stage stage : Metrics.Stage.values()) {
+                map.put(stage.name().toLowerCase(Locale.ROOT), metrics.get(stage).getCount());
+            }
+            return map;
+        }
+
+        @Override
+        public Map<String, Double> getP50Millis() {
+            return percentile(50);
+        }
+
+        @Override
+        public Map<String, Double> getP99Millis() {
+            return percentile(99);
+        }
+
+        @Override
+        public Map<String, Double> getTotalMillis() {
+            Map<String, Double> map = new LinkedHashMap<>();
+            for (Metrics.Stage stage : Metrics.Stage.values()) {
+                Histogram h = metrics.get(stage);
+                map.put(stage.name().toLowerCase(Locale.ROOT), h.getMean() * h.getCount() / 1e6);
+            }
+            return map;
+        }
+
+        private Map<String, Double> percentile(double p) {
+            Map<String, Double> map = new LinkedHashMap<>();
+            for (Metrics.Stage stage : Metrics.Stage.values()) {
+                map.put(stage.name().toLowerCase(Locale.ROOT), metrics.get(stage).getValueAtPercentile(p) / 1e6);
+            }
+            return map;
+        }
+
+        @Override
+        public void reset() {
+            metrics.reset();
+        }
+    }
+}
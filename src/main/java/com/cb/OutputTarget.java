@@ -0,0 +1,199 @@
+package com.cb;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Where encoded images are written. Names are relative and use / as the separator.
+ * Implementations are thread safe.
+ */
+public interface OutputTarget extends Closeable {
+
+    /**
+     * @param name  The name of the image, e.g. area_and_zones_0.png or area_and_zones_0/20/1/2.png
+     * @param data  The encoded image
+     * @throws IOException if it couldn't be written
+     */
+    void write(String name, byte[] data) throws IOException;
+
+    /**
+     * @param name  A name as passed to write
+     * @return where that name is written, for reporting
+     */
+    File locate(String name);
+
+    /**
+     * @param name  A name as passed to write, or the directory of an area's tiles
+     * @return true if it was written by an earlier run and is still there
+     */
+    boolean exists(String name);
+
+    /**
+     * Removes an image, or the directory of an area's tiles, if it's there
+     * @param name  A name as passed to write
+     * @throws IOException if it couldn't be removed
+     */
+    void delete(String name) throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    /**
+     * @param directory  The directory images are written under, sub directories are created as needed
+     */
+    static OutputTarget directory(Path directory) {
+        return new Directory(directory);
+    }
+
+    /**
+     * @param file  The zip file to create, it's complete once the target is closed
+     */
+    static OutputTarget zip(Path file) throws IOException {
+        return new Zip(file);
+    }
+
+    static Memory memory() {
+        return new Memory();
+    }
+
+    class Directory implements OutputTarget {
+        private final Path directory;
+
+        Directory(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public void write(String name, byte[] data) throws IOException {
+            Path path = directory.resolve(name);
+            Path parent = path.getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Files.write(path, data);
+        }
+
+        @Override
+        public File locate(String name) {
+            return directory.resolve(name).toFile();
+        }
+
+        @Override
+        public boolean exists(String name) {
+            return Files.exists(directory.resolve(name));
+        }
+
+        @Override
+        public void delete(String name) throws IOException {
+            Path path = directory.resolve(name);
+            if (Files.isDirectory(path)) {
+                //Children before their parents
+                try (Stream<Path> paths = Files.walk(path)) {
+                    for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                        Files.delete(p);
+                    }
+                }
+            } else {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Images are already compressed so entries are stored rather than deflated again
+     */
+    class Zip implements OutputTarget {
+        private final Path file;
+        private final ZipOutputStream zip;
+
+        Zip(Path file) throws IOException {
+            this.file = file;
+            OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16);
+            this.zip = new ZipOutputStream(out);
+        }
+
+        @Override
+        public synchronized void write(String name, byte[] data) throws IOException {
+            ZipEntry entry = new ZipEntry(name);
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.length);
+            entry.setCompressedSize(data.length);
+            entry.setCrc(crc.getValue());
+            zip.putNextEntry(entry);
+            zip.write(data);
+            zip.closeEntry();
+        }
+
+        @Override
+        public File locate(String name) {
+            return new File(file.toFile(), name);
+        }
+
+        /** Each run writes a new archive, so nothing is left from earlier runs */
+        @Override
+        public boolean exists(String name) {
+            return false;
+        }
+
+        @Override
+        public void delete(String name) {
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            zip.close();
+        }
+    }
+
+    /**
+     * Keeps images in memory, for tests or callers that send them somewhere else
+     */
+    class Memory implements OutputTarget {
+        private final Map<String, byte[]> images = Collections.synchronizedMap(new LinkedHashMap<>());
+
+        @Override
+        public void write(String name, byte[] data) {
+            images.put(name, data);
+        }
+
+        @Override
+        public File locate(String name) {
+            return new File(name);
+        }
+
+        @Override
+        public boolean exists(String name) {
+            synchronized (images) {
+                return images.containsKey(name) || images.keySet().stream().anyMatch(n -> n.startsWith(name + "/"));
+            }
+        }
+
+        @Override
+        public void delete(String name) {
+            synchronized (images) {
+                images.keySet().removeIf(n -> n.equals(name) || n.startsWith(name + "/"));
+            }
+        }
+
+        /** The images by name, in the order written */
+        public Map<String, byte[]> getImages() {
+            return images;
+        }
+    }
+}
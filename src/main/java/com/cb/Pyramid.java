@@ -0,0 +1,72 @@
+package com.cb;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Makes the shallower zooms of a render by downsampling it, each level averaging 2x2 blocks of the one above,
+ * which is far cheaper than fetching tiles and drawing again. A level covers the same ground as the render,
+ * so isn't aligned to that zoom's tile grid, and the overlay strokes thin with each level as they would in a
+ * scaled image.
+ */
+public final class Pyramid {
+
+    private Pyramid() {
+    }
+
+    /**
+     * @param top  The render at the deepest zoom, TYPE_INT_ARGB
+     * @param levels  How many shallower zooms to make
+     * @return the levels, one zoom shallower each
+     */
+    public static BufferedImage[] levels(BufferedImage top, int levels) {
+        BufferedImage[] result = new BufferedImage[levels];
+        BufferedImage above = top;
+        for (int i = 0; i < levels; i++) {
+            above = result[i] = halve(above);
+        }
+        return result;
+    }
+
+    /**
+     * Halves an image, rounding odd sizes up so the last row or column averages what it covers
+     * @param image  A TYPE_INT_ARGB image
+     * @return the half size image
+     */
+    public static BufferedImage halve(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB) {
+            throw new IllegalArgumentException("Expected a TYPE_INT_ARGB image, got type " + image.getType());
+        }
+        int width = image.getWidth(), height = image.getHeight();
+        int halfWidth = (width + 1) / 2, halfHeight = (height + 1) / 2;
+        BufferedImage half = new BufferedImage(halfWidth, halfHeight, BufferedImage.TYPE_INT_ARGB);
+        int[] src = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int[] dst = ((DataBufferInt) half.getRaster().getDataBuffer()).getData();
+
+        for (int y = 0; y < halfHeight; y++) {
+            int row0 = 2 * y * width;
+            int row1 = Math.min(2 * y + 1, height - 1) * width;
+            for (int x = 0; x < halfWidth; x++) {
+                int x0 = 2 * x, x1 = Math.min(2 * x + 1, width - 1);
+                dst[y * halfWidth + x] = average(src[row0 + x0], src[row0 + x1], src[row1 + x0], src[row1 + x1]);
+            }
+        }
+        return half;
+    }
+
+    /**
+     * Averages four non-premultiplied ARGB pixels, weighting colour by alpha so transparent pixels don't darken
+     */
+    private static int average(int p0, int p1, int p2, int p3) {
+        int a0 = p0 >>> 24, a1 = p1 >>> 24, a2 = p2 >>> 24, a3 = p3 >>> 24;
+        int alpha = a0 + a1 + a2 + a3;
+        if (alpha == 0) {
+            return 0;
+        }
+        int r = a0 * (p0 >> 16 & 0xff) + a1 * (p1 >> 16 & 0xff) + a2 * (p2 >> 16 & 0xff) + a3 * (p3 >> 16 & 0xff);
+        int g = a0 * (p0 >> 8 & 0xff) + a1 * (p1 >> 8 & 0xff) + a2 * (p2 >> 8 & 0xff) + a3 * (p3 >> 8 & 0xff);
+        int b = a0 * (p0 & 0xff) + a1 * (p1 & 0xff) + a2 * (p2 & 0xff) + a3 * (p3 & 0xff);
+        int half = alpha / 2;
+        return ((alpha + 2) / 4) << 24 | ((r + half) / alpha) << 16 | ((g + half) / alpha) << 8 | (b + half) / alpha;
+    }
+}
@@ -0,0 +1,34 @@
+package com.cb;
+
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Scratch objects a render thread reuses from one area to the next, so steady state rendering doesn't
+ * allocate them per area. Only used by the thread it belongs to.
+ */
+final class RenderContext {
+
+    private static final ThreadLocal<RenderContext> CONTEXT = ThreadLocal.withInitial(RenderContext::new);
+
+    //Reset before each shape, reset keeps the arrays it has grown
+    final Path2D.Double path = new Path2D.Double();
+    final List<int[]> zonePoints = new ArrayList<>();
+    final List<CompletableFuture<BufferedImage>> tiles = new ArrayList<>();
+
+    private RenderContext() {
+    }
+
+    /**
+     * @return the calling thread's context, cleared of the previous render
+     */
+    static RenderContext get() {
+        RenderContext context = CONTEXT.get();
+        context.zonePoints.clear();
+        context.tiles.clear();
+        return context;
+    }
+}
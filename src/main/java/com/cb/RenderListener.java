@@ -0,0 +1,57 @@
+package com.cb;
+
+import java.io.File;
+
+/**
+ * Receives the outcome of each area from the RenderPipeline. Calls are made from a single thread
+ * in image number order.
+ */
+public interface RenderListener {
+    /**
+     * @param imageNum  The sequence number of the area
+     * @param area  The area
+     * @param width  The width of the rendered image
+     * @param height  The height of the rendered image
+     * @param output  The file written, or null when images aren't being created
+     */
+    void rendered(int imageNum, Area area, int width, int height, File output);
+
+    /**
+     * Called instead of rendered when areas are rendered as tiles, which a listener of tiled renders must handle
+     * @param imageNum  The sequence number of the area
+     * @param area  The area
+     * @param tiles  The number of tiles rendered
+     * @param directory  The directory the z/x/y.png tiles were written under, or null when images aren't being created
+     */
+    default void renderedTiles(int imageNum, Area area, int tiles, File directory) {
+    }
+
+    /**
+     * Called after rendered for each shallower zoom of a pyramid, deepest first
+     * @param imageNum  The sequence number of the area
+     * @param area  The area
+     * @param zoom  The zoom of this level
+     * @param width  The width of the level
+     * @param height  The height of the level
+     * @param output  The file written
+     */
+    default void renderedLevel(int imageNum, Area area, int zoom, int width, int height, File output) {
+    }
+
+    /**
+     * Called instead of rendered when rendering incrementally and neither the area nor its zones have
+     * changed since the output was written
+     * @param imageNum  The sequence number of the area
+     * @param area  The area
+     * @param output  The existing output
+     */
+    default void skipped(int imageNum, Area area, File output) {
+    }
+
+    /**
+     * @param imageNum  The sequence number of the area
+     * @param area  The area
+     * @param t  What went wrong while rendering, encoding or writing it
+     */
+    void failed(int imageNum, Area area, Throwable t);
+}
@@ -0,0 +1,243 @@
+package com.cb;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What was rendered for each area on earlier runs, so an incremental run only renders areas whose
+ * geometry or zones have changed since. Kept as JSON beside the output.
+ * An area is rendered again when its last_updated_date or geometry changes, a zone is added, removed or has
+ * a new last_updated_date, the render settings change, or its output has gone.
+ */
+public class RenderManifest {
+
+    /**
+     * What an area's output was rendered from
+     */
+    public static class Entry {
+        @JsonProperty("last_updated_date")
+        private long lastUpdatedDate;
+
+        @JsonProperty("geometry_hash")
+        private long geometryHash;
+
+        //Zone id to its last_updated_date, sorted so entries compare equal whatever order the area lists them
+        @JsonProperty("zones")
+        private TreeMap<String, Long> zones = new TreeMap<>();
+
+        @JsonProperty("output")
+        private String output;
+
+        //SHA-256 of the image, absent for tiles
+        @JsonProperty("output_hash")
+        private String outputHash;
+
+        //The downsampled zooms written beside the output, if it's a pyramid
+        @JsonProperty("levels")
+        @JsonInclude(JsonInclude.Include.NON_EMPTY)
+        private List<String> levels = new ArrayList<>();
+
+        Entry() {
+        }
+
+        /**
+         * @param area  An area with its zones associated
+         */
+        Entry(Area area) {
+            lastUpdatedDate = area.getLastUpdatedDate();
+            geometryHash = area.getGeometry().contentHash();
+            if (area.getCurbZones() != null) {
+                for (Zone zone : area.getCurbZones()) {
+                    zones.put(zone.getCurbZoneId(), zone.getLastUpdatedDate());
+                }
+            }
+        }
+
+        /**
+         * @return true if this was rendered from the same area and zones as other
+         */
+        boolean sameSource(Entry other) {
+            return lastUpdatedDate == other.lastUpdatedDate && geometryHash == other.geometryHash
+                    && zones.equals(other.zones);
+        }
+
+        public long getLastUpdatedDate() {
+            return lastUpdatedDate;
+        }
+
+        public long getGeometryHash() {
+            return geometryHash;
+        }
+
+        public Map<String, Long> getZones() {
+            return zones;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        public String getOutputHash() {
+            return outputHash;
+        }
+
+        public List<String> getLevels() {
+            return levels;
+        }
+    }
+
+    @JsonProperty("settings")
+    private String settings;
+
+    @JsonProperty("areas")
+    private final Map<String, Entry> areas = new ConcurrentHashMap<>();
+
+    public RenderManifest() {
+    }
+
+    /**
+     * @param file  A manifest written by save
+     * @return the manifest, or an empty one if there's no file yet
+     * @throws IOException if the file couldn't be read
+     */
+    public static RenderManifest load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return new RenderManifest();
+        }
+        return Json.MAPPER.readValue(file.toFile(), RenderManifest.class);
+    }
+
+    /**
+     * Writes to a temporary file that replaces the manifest, so an interrupted save leaves the old one
+     * @param file  Where to save
+     * @throws IOException if it couldn't be written
+     */
+    public void save(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            //Sorted so the file diffs cleanly between runs
+            TreeMap<String, Object> sorted = new TreeMap<>();
+            sorted.put("settings", settings);
+            sorted.put("areas", new TreeMap<>(areas));
+            Json.MAPPER.writerWithDefaultPrettyPrinter().writeValue(temp.toFile(), sorted);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Outputs rendered with other settings can't be reused, so a change forgets every area's sources.
+     * Their outputs are still known so they can be cleaned up
+     * @param settings  A description of everything other than the area and zones that affects the output
+     */
+    public void applySettings(String settings) {
+        if (!Objects.equals(this.settings, settings)) {
+            for (Entry entry : areas.values()) {
+                entry.lastUpdatedDate = -1;
+                entry.geometryHash = 0;
+                entry.zones.clear();
+            }
+            this.settings = settings;
+        }
+    }
+
+    public String getSettings() {
+        return settings;
+    }
+
+    /**
+     * @param areaId  The area
+     * @param current  Describes the area as it is now
+     * @return true if the area's output was rendered from the same area and zones
+     */
+    public boolean isCurrent(String areaId, Entry current) {
+        Entry entry = areas.get(areaId);
+        return entry != null && entry.output != null && entry.sameSource(current);
+    }
+
+    /**
+     * Records an area's new output
+     * @param areaId  The area
+     * @param entry  What it was rendered from
+     * @param output  The name of the output
+     * @param encoded  The encoded image to hash, or null for tiles
+     */
+    public void rendered(String areaId, Entry entry, String output, byte[] encoded) {
+        rendered(areaId, entry, output, List.of(), encoded);
+    }
+
+    /**
+     * Records an area's new output along with the levels of its pyramid
+     * @param areaId  The area
+     * @param entry  What it was rendered from
+     * @param output  The name of the output
+     * @param levels  The names of the downsampled levels
+     * @param encoded  The encoded image to hash, or null for tiles
+     */
+    public void rendered(String areaId, Entry entry, String output, List<String> levels, byte[] encoded) {
+        entry.output = output;
+        entry.levels = new ArrayList<>(levels);
+        entry.outputHash = encoded != null ? sha256(encoded) : null;
+        areas.put(areaId, entry);
+    }
+
+    public Entry get(String areaId) {
+        return areas.get(areaId);
+    }
+
+    public Entry remove(String areaId) {
+        return areas.remove(areaId);
+    }
+
+    /**
+     * @return the entries by area id, live so don't modify it while rendering
+     */
+    public Map<String, Entry> getAreas() {
+        return areas;
+    }
+
+    /**
+     * Adds the areas of another manifest, e.g. to combine those of shards which each rendered some of the areas
+     * @param other  A manifest written with the same settings and none of the same areas
+     */
+    public void merge(RenderManifest other) {
+        if (settings == null) {
+            settings = other.settings;
+        } else if (other.settings != null && !settings.equals(other.settings)) {
+            throw new IllegalArgumentException("Manifests with different settings: " + settings + ", " + other.settings);
+        }
+        for (Map.Entry<String, Entry> e : other.areas.entrySet()) {
+            if (areas.putIfAbsent(e.getKey(), e.getValue()) != null) {
+                throw new IllegalArgumentException("Area " + e.getKey() + " is in more than one manifest");
+            }
+        }
+    }
+
+    static String sha256(byte[] data) {
+        try {
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            //Every JDK has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
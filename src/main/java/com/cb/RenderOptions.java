@@ -0,0 +1,377 @@
+package com.cb;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Settings for the area rendering pipeline
+ */
+public class RenderOptions {
+    private int renderThreads = Runtime.getRuntime().availableProcessors();
+    private int encodeThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private boolean virtualThreads;
+    private int maxInFlight = 2 * Runtime.getRuntime().availableProcessors();
+    private ZoneResolution zoneResolution = ZoneResolution.IDS;
+    private boolean zoneSnapshots = true;
+    private boolean zoneStore;
+    private boolean leanZones;
+    private boolean tiles;
+    private String format = "png";
+    private int compressionLevel = ImageEncoder.DEFAULT_COMPRESSION;
+    private boolean indexedColour;
+    private OutputTarget output;
+    private Path manifest;
+    private int checkpointInterval;
+    private Shard shard;
+    private MetricsReporter metricsReporter;
+    private Duration metricsInterval;
+    private TileSource tileSource;
+    private ZoomPolicy zoomPolicy;
+    private CanvasPool canvasPool;
+    private TileMosaic mosaic;
+    private VectorFormat vectorFormat;
+    private int parseThreads;
+    private boolean parseOrdered = true;
+    private int pyramidMinZoom = -1;
+    private boolean stats;
+
+    public int getRenderThreads() {
+        return renderThreads;
+    }
+
+    /**
+     * @param renderThreads  The number of threads running MapRenderer.renderMap
+     */
+    public void setRenderThreads(int renderThreads) {
+        if (renderThreads < 1) {
+            throw new IllegalArgumentException("renderThreads must be at least 1: " + renderThreads);
+        }
+        this.renderThreads = renderThreads;
+    }
+
+    public int getEncodeThreads() {
+        return encodeThreads;
+    }
+
+    /**
+     * @param encodeThreads  The number of threads PNG encoding rendered images
+     */
+    public void setEncodeThreads(int encodeThreads) {
+        if (encodeThreads < 1) {
+            throw new IllegalArgumentException("encodeThreads must be at least 1: " + encodeThreads);
+        }
+        this.encodeThreads = encodeThreads;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * @param virtualThreads  Run the render and encode stages on virtual threads. This needs Java 21+,
+     *                        older runtimes fall back to platform threads
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @param maxInFlight  The most areas parsed but not yet written. The parser blocks when this is reached
+     *                     which bounds the memory held by rendered images waiting to be encoded and written
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1: " + maxInFlight);
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    public ZoneResolution getZoneResolution() {
+        return zoneResolution;
+    }
+
+    /**
+     * @param zoneResolution  How areas find their zones, anything but IDS builds a spatial index of the zones
+     */
+    public void setZoneResolution(ZoneResolution zoneResolution) {
+        this.zoneResolution = zoneResolution;
+    }
+
+    public boolean isZoneSnapshots() {
+        return zoneSnapshots;
+    }
+
+    /**
+     * @param zoneSnapshots  When parsing files, load zones from a binary snapshot kept beside zones.json
+     *                       and write one when it's missing or out of date
+     */
+    public void setZoneSnapshots(boolean zoneSnapshots) {
+        this.zoneSnapshots = zoneSnapshots;
+    }
+
+    public boolean isZoneStore() {
+        return zoneStore;
+    }
+
+    /**
+     * @param zoneStore  When parsing files, look zones up in a memory mapped ZoneStore kept beside zones.json
+     *                   instead of holding them on the heap, building it when it's missing or out of date.
+     *                   Takes precedence over zone snapshots
+     */
+    public void setZoneStore(boolean zoneStore) {
+        this.zoneStore = zoneStore;
+    }
+
+    public boolean isLeanZones() {
+        return leanZones;
+    }
+
+    /**
+     * @param leanZones  When parsing zones.json, read only each zone's id, geometry and dates, decoding the rest
+     *                   from the file if it's asked for. Rendering uses nothing else, so this parses faster and
+     *                   holds far less per zone
+     */
+    public void setLeanZones(boolean leanZones) {
+        this.leanZones = leanZones;
+    }
+
+    public boolean isTiles() {
+        return tiles;
+    }
+
+    /**
+     * @param tiles  Render each area as 256x256 z/x/y tiles instead of one image covering it all,
+     *               which keeps memory flat however large an area is
+     */
+    public void setTiles(boolean tiles) {
+        this.tiles = tiles;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * @param format  The ImageIO format images are written in, png by default. Others such as webp
+     *                need their plugin on the classpath
+     */
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * @param compressionLevel  0 (fastest) to 9 (smallest), or ImageEncoder.DEFAULT_COMPRESSION for the writer's default
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < ImageEncoder.DEFAULT_COMPRESSION || compressionLevel > 9) {
+            throw new IllegalArgumentException("compressionLevel must be 0-9 or -1: " + compressionLevel);
+        }
+        this.compressionLevel = compressionLevel;
+    }
+
+    public boolean isIndexedColour() {
+        return indexedColour;
+    }
+
+    /**
+     * @param indexedColour  Write images with 256 colours or fewer as palette images, which are smaller
+     */
+    public void setIndexedColour(boolean indexedColour) {
+        this.indexedColour = indexedColour;
+    }
+
+    public OutputTarget getOutput() {
+        return output;
+    }
+
+    /**
+     * @param output  Where images are written, the working directory when null. The caller closes it
+     */
+    public void setOutput(OutputTarget output) {
+        this.output = output;
+    }
+
+    public Path getManifest() {
+        return manifest;
+    }
+
+    /**
+     * @param manifest  Render incrementally, recording what each area was rendered from in this file.
+     *                  Outputs are named after area ids, only areas that have changed are rendered and the
+     *                  outputs of areas that have gone are deleted. Null renders everything
+     */
+    public void setManifest(Path manifest) {
+        this.manifest = manifest;
+    }
+
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * @param checkpointInterval  Save the manifest after every this many areas are written, so a render that's
+     *                            killed resumes from there rather than from its last complete run, or 0 to only
+     *                            save it at the end
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        if (checkpointInterval < 0) {
+            throw new IllegalArgumentException("checkpointInterval can't be negative: " + checkpointInterval);
+        }
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public Shard getShard() {
+        return shard;
+    }
+
+    /**
+     * @param shard  Only render the areas this shard owns, or null for every area
+     */
+    public void setShard(Shard shard) {
+        this.shard = shard;
+    }
+
+    public MetricsReporter getMetricsReporter() {
+        return metricsReporter;
+    }
+
+    /**
+     * @param metricsReporter  Publishes Metrics.global() when a run finishes, and every metricsInterval during it
+     */
+    public void setMetricsReporter(MetricsReporter metricsReporter) {
+        this.metricsReporter = metricsReporter;
+    }
+
+    public Duration getMetricsInterval() {
+        return metricsInterval;
+    }
+
+    /**
+     * @param metricsInterval  How often to report while rendering, null to only report at the end
+     */
+    public void setMetricsInterval(Duration metricsInterval) {
+        if (metricsInterval != null && metricsInterval.toMillis() <= 0) {
+            throw new IllegalArgumentException("metricsInterval must be positive: " + metricsInterval);
+        }
+        this.metricsInterval = metricsInterval;
+    }
+
+    public TileSource getTileSource() {
+        return tileSource;
+    }
+
+    /**
+     * @param tileSource  Where base tiles come from, the tiles bundled in the jar when null
+     */
+    public void setTileSource(TileSource tileSource) {
+        this.tileSource = tileSource;
+    }
+
+    public ZoomPolicy getZoomPolicy() {
+        return zoomPolicy;
+    }
+
+    /**
+     * @param zoomPolicy  Chooses each area's zoom, when null every area is rendered at the zoom the pipeline is run with
+     */
+    public void setZoomPolicy(ZoomPolicy zoomPolicy) {
+        this.zoomPolicy = zoomPolicy;
+    }
+
+    public int getPyramidMinZoom() {
+        return pyramidMinZoom;
+    }
+
+    /**
+     * @param pyramidMinZoom  Also write each area at every zoom from the one it's rendered at down to this,
+     *                        downsampled from the render, or -1 for just the render. Not supported with tiles
+     */
+    public void setPyramidMinZoom(int pyramidMinZoom) {
+        if (pyramidMinZoom < -1) {
+            throw new IllegalArgumentException("pyramidMinZoom must be a zoom or -1: " + pyramidMinZoom);
+        }
+        this.pyramidMinZoom = pyramidMinZoom;
+    }
+
+    public CanvasPool getCanvasPool() {
+        return canvasPool;
+    }
+
+    /**
+     * @param canvasPool  Reuse canvases from this pool once they've been encoded, or null to allocate one per area
+     */
+    public void setCanvasPool(CanvasPool canvasPool) {
+        this.canvasPool = canvasPool;
+    }
+
+    public TileMosaic getMosaic() {
+        return mosaic;
+    }
+
+    /**
+     * @param mosaic  Start each canvas from base tiles composed once for the run, or null to draw them per area.
+     *                Areas are rendered in batches of maxInFlight, each sorted so those sharing tiles are
+     *                rendered together, though they're still numbered and written in the order they're parsed
+     */
+    public void setMosaic(TileMosaic mosaic) {
+        this.mosaic = mosaic;
+    }
+
+    public VectorFormat getVectorFormat() {
+        return vectorFormat;
+    }
+
+    /**
+     * @param vectorFormat  Write each area's outline and curbs as vectors rather than rendering images,
+     *                      or null for images. MVT writes tiles whether or not tiles is set
+     */
+    public void setVectorFormat(VectorFormat vectorFormat) {
+        this.vectorFormat = vectorFormat;
+    }
+
+    public int getParseThreads() {
+        return parseThreads;
+    }
+
+    /**
+     * @param parseThreads  When parsing files, deserialize chunks of them on this many threads,
+     *                      or 0 to stream them on the calling thread
+     */
+    public void setParseThreads(int parseThreads) {
+        if (parseThreads < 0) {
+            throw new IllegalArgumentException("parseThreads can't be negative: " + parseThreads);
+        }
+        this.parseThreads = parseThreads;
+    }
+
+    public boolean isParseOrdered() {
+        return parseOrdered;
+    }
+
+    /**
+     * @param parseOrdered  When parsing in parallel, number and render areas in file order.
+     *                      Otherwise they're taken as chunks finish, which keeps the parse threads busier
+     */
+    public void setParseOrdered(boolean parseOrdered) {
+        this.parseOrdered = parseOrdered;
+    }
+
+    public boolean isStats() {
+        return stats;
+    }
+
+    /**
+     * @param stats  Print the tile cache and metrics to stderr once Main has rendered the areas
+     */
+    public void setStats(boolean stats) {
+        this.stats = stats;
+    }
+}
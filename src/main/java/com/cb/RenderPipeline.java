@@ -0,0 +1,714 @@
+package com.cb;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders areas in stages joined by bounded queues:
+ * parse (calling thread) -> render (worker pool) -> encode (worker pool) -> write (single thread).
+ * Image numbers are handed out in parse order and results are written in that order, so the output
+ * is the same as rendering one area at a time.
+ */
+public class RenderPipeline {
+
+    private final MapRenderer renderer;
+    private final RenderOptions options;
+    private final RenderListener listener;
+    private final ImageEncoder encoder;
+    private final VectorRenderer vectors = new VectorRenderer();
+    private final OutputTarget output;
+    private final Metrics metrics = Metrics.global();
+
+    /**
+     * @param renderer  Shared by all render threads
+     * @param options  Thread, queue and output settings
+     * @param listener  Told about each area once it's been written or has failed
+     */
+    public RenderPipeline(MapRenderer renderer, RenderOptions options, RenderListener listener) {
+        this.renderer = renderer;
+        this.options = options;
+        this.listener = listener;
+        this.encoder = new ImageEncoder(options.getFormat(), options.getCompressionLevel(), options.isIndexedColour());
+        this.output = options.getOutput() != null ? options.getOutput() : OutputTarget.directory(Paths.get(""));
+        if (options.isTiles() && options.getPyramidMinZoom() >= 0) {
+            throw new IllegalArgumentException("Pyramids can't be made when rendering tiles");
+        }
+        VectorFormat vector = options.getVectorFormat();
+        if (vector != null && options.getPyramidMinZoom() >= 0) {
+            throw new IllegalArgumentException("Pyramids can't be made of vectors");
+        }
+        if (vector != null && vector != VectorFormat.MVT && options.isTiles()) {
+            throw new IllegalArgumentException(vector + " is one document per area, use MVT for tiles");
+        }
+        vectors.setTolerance(renderer.getTolerance());
+    }
+
+    /**
+     * A unit of work flowing through the stages
+     */
+    private static class Job {
+        final int imageNum;
+        final Area area;
+        int zoom;
+        BufferedImage image;
+        //The shallower zooms of a pyramid, deepest first
+        BufferedImage[] levels;
+        byte[][] encodedLevels;
+        List<String> levelNames = List.of();
+        int width, height;
+        int tiles = -1;
+        byte[] encoded;
+        Throwable error;
+        //The image, or directory of tiles, written for the area
+        String name;
+        //What the area was rendered from, when rendering incrementally
+        RenderManifest.Entry source;
+        boolean unchanged;
+
+        Job(int imageNum, Area area) {
+            this.imageNum = imageNum;
+            this.area = area;
+        }
+    }
+
+    //Tells a stage its upstream has finished
+    private static final Job END = new Job(-1, null);
+
+    /**
+     * Parses the areas on the calling thread and returns once every area has been written or reported as failed
+     * @param areas  GeoJSON of areas
+     * @param zonesMap  A Map of Zones
+     * @param createImages  Shall we write images to disk
+     * @param straight  Draw zones from start to end rather than point-to-point
+     * @param zoom  The zoom level, unless the options have a ZoomPolicy
+     * @return the number of areas which failed
+     * @throws Exception if the areas couldn't be parsed
+     */
+    public int run(InputStream areas, Map<String, Zone> zonesMap, boolean createImages, boolean straight, int zoom)
+            throws Exception {
+        return run(areas, zonesMap, null, createImages, straight, zoom);
+    }
+
+    /**
+     * As above, with a spatial index for when the options resolve zones spatially
+     * @param areas  GeoJSON of areas
+     * @param zonesMap  A Map of Zones
+     * @param zoneIndex  A spatial index of the zones, may be null if the options resolve zones by id
+     * @param createImages  Shall we write images to disk
+     * @param straight  Draw zones from start to end rather than point-to-point
+     * @param zoom  The zoom level, unless the options have a ZoomPolicy
+     * @return the number of areas which failed
+     * @throws Exception if the areas couldn't be parsed
+     */
+    public int run(InputStream areas, Map<String, Zone> zonesMap, ZoneIndex zoneIndex, boolean createImages,
+                   boolean straight, int zoom) throws Exception {
+        return run(areas, (ZoneLookup) zonesMap::get, zoneIndex, createImages, straight, zoom);
+    }
+
+    /**
+     * As above, finding zones by id in a ZoneLookup such as a ZoneStore
+     * @param areas  GeoJSON of areas
+     * @param zones  Finds Zones by id
+     * @param zoneIndex  A spatial index of the zones, may be null if the options resolve zones by id
+     * @param createImages  Shall we write images to disk
+     * @param straight  Draw zones from start to end rather than point-to-point
+     * @param zoom  The zoom level, unless the options have a ZoomPolicy
+     * @return the number of areas which failed
+     * @throws Exception if the areas couldn't be parsed
+     */
+    public int run(InputStream areas, ZoneLookup zones, ZoneIndex zoneIndex, boolean createImages,
+                   boolean straight, int zoom) throws Exception {
+        return run(consumer -> AreaProcessor.processAreas(areas, zones, zoneIndex, options.getZoneResolution(), consumer),
+                createImages, straight, zoom);
+    }
+
+    /**
+     * As above, parsing a mapped file of areas in parallel when the options have parse threads
+     * @param areas  GeoJSON of areas
+     * @param zones  Finds Zones by id, from several threads when parsing in parallel
+     * @param zoneIndex  A spatial index of the zones, may be null if the options resolve zones by id
+     * @param createImages  Shall we write images to disk
+     * @param straight  Draw zones from start to end rather than point-to-point
+     * @param zoom  The zoom level, unless the options have a ZoomPolicy
+     * @return the number of areas which failed
+     * @throws Exception if the areas couldn't be parsed
+     */
+    public int run(MappedFile areas, ZoneLookup zones, ZoneIndex zoneIndex, boolean createImages,
+                   boolean straight, int zoom) throws Exception {
+        if (options.getParseThreads() == 0) {
+            try (InputStream in = areas.stream()) {
+                return run(in, zones, zoneIndex, createImages, straight, zoom);
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool(options.getParseThreads());
+        try {
+            return run(consumer -> AreaProcessor.processAreas(areas, zones, zoneIndex, options.getZoneResolution(),
+                    pool, options.isParseOrdered(), consumer), createImages, straight, zoom);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Parses areas into a consumer
+     */
+    @FunctionalInterface
+    private interface AreaSource {
+        void parse(AreaConsumer consumer) throws Exception;
+    }
+
+    private int run(AreaSource areas, boolean createImages, boolean straight, int zoom) throws Exception {
+        int renderThreads = options.getRenderThreads();
+        int encodeThreads = createImages ? options.getEncodeThreads() : 0;
+        int capacity = options.getMaxInFlight();
+
+        //Every area holds a permit from parse until written, which bounds the reorder buffer as well as the queues
+        Semaphore inFlight = new Semaphore(capacity);
+        BlockingQueue<Job> renderQueue = new ArrayBlockingQueue<>(capacity + renderThreads);
+        BlockingQueue<Job> encodeQueue = new ArrayBlockingQueue<>(capacity + encodeThreads);
+        BlockingQueue<Job> writeQueue = new ArrayBlockingQueue<>(capacity + 1);
+
+        RenderManifest manifest = null;
+        if (createImages && options.getManifest() != null) {
+            manifest = RenderManifest.load(options.getManifest());
+            //Base tiles from a loader that isn't a TileSource have no description that lasts between runs
+            TileLoader base = renderer.getTileCache().getLoader();
+            manifest.applySettings("zoom=" + (options.getZoomPolicy() != null ? options.getZoomPolicy() : zoom)
+                    + " pyramid=" + options.getPyramidMinZoom() + " straight=" + straight + " tiles=" + options.isTiles()
+                    + " tolerance=" + renderer.getTolerance()
+                    + (base instanceof TileSource ? " base=" + base : "")
+                    + " format=" + encoder.getFormat() + " compression=" + encoder.getCompressionLevel()
+                    + " indexed=" + encoder.isIndexedColour()
+                    + (options.getVectorFormat() != null ? " vector=" + options.getVectorFormat() : ""));
+        }
+        RenderManifest incremental = manifest;
+        Set<String> seen = new HashSet<>();
+        //Areas another shard renders, which may have been this one's before moving
+        Set<String> elsewhere = new HashSet<>();
+
+        ThreadFactory factory = threadFactory(options.isVirtualThreads());
+        List<Thread> threads = new ArrayList<>();
+
+        AtomicInteger rendering = new AtomicInteger(renderThreads);
+        for (int i = 0; i < renderThreads; i++) {
+            threads.add(factory.newThread(() -> {
+                try {
+                    Job job;
+                    while ((job = renderQueue.take()) != END) {
+                        if (isTiled()) {
+                            renderTiles(job, createImages, straight);
+                            writeQueue.put(job);
+                            continue;
+                        }
+                        if (options.getVectorFormat() != null) {
+                            renderVector(job, straight);
+                            writeQueue.put(job);
+                            continue;
+                        }
+                        try {
+                            job.image = renderer.renderMap(job.area, job.zoom, straight, options.getCanvasPool(),
+                                    options.getMosaic());
+                            job.width = job.image.getWidth();
+                            job.height = job.image.getHeight();
+                            if (!createImages) {
+                                release(job);
+                            } else if (!job.levelNames.isEmpty()) {
+                                long start = System.nanoTime();
+                                job.levels = Pyramid.levels(job.image, job.levelNames.size());
+                                metrics.record(Metrics.Stage.DOWNSAMPLE, start);
+                            }
+                        } catch (Throwable t) {
+                            job.error = t;
+                        }
+                        (createImages && job.error == null ? encodeQueue : writeQueue).put(job);
+                    }
+                    //The last renderer out closes the next stage
+                    if (rendering.decrementAndGet() == 0) {
+                        if (createImages) {
+                            for (int n = 0; n < encodeThreads; n++) {
+                                encodeQueue.put(END);
+                            }
+                        } else {
+                            writeQueue.put(END);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+
+        AtomicInteger encoding = new AtomicInteger(encodeThreads);
+        for (int i = 0; i < encodeThreads; i++) {
+            threads.add(factory.newThread(() -> {
+                try {
+                    Job job;
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 20);
+                    while ((job = encodeQueue.take()) != END) {
+                        try {
+                            long start = System.nanoTime();
+                            bytes.reset();
+                            encoder.encode(job.image, bytes);
+                            job.encoded = bytes.toByteArray();
+                            if (job.levels != null) {
+                                job.encodedLevels = new byte[job.levels.length][];
+                                for (int l = 0; l < job.levels.length; l++) {
+                                    bytes.reset();
+                                    encoder.encode(job.levels[l], bytes);
+                                    job.encodedLevels[l] = bytes.toByteArray();
+                                }
+                            }
+                            metrics.record(Metrics.Stage.ENCODE, start);
+                        } catch (Throwable t) {
+                            job.error = t;
+                        }
+                        release(job);
+                        job.levels = null;
+                        writeQueue.put(job);
+                    }
+                    if (encoding.decrementAndGet() == 0) {
+                        writeQueue.put(END);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+
+        int[] failures = {0};
+        int checkpointInterval = incremental != null ? options.getCheckpointInterval() : 0;
+        threads.add(factory.newThread(() -> {
+            //Jobs arrive out of order from the pools, hold them back until it's their turn
+            PriorityQueue<Job> pending = new PriorityQueue<>((a, b) -> Integer.compare(a.imageNum, b.imageNum));
+            int next = 0;
+            try {
+                Job job;
+                while ((job = writeQueue.take()) != END) {
+                    pending.add(job);
+                    while (!pending.isEmpty() && pending.peek().imageNum == next) {
+                        Job written = pending.poll();
+                        try {
+                            if (!write(written, createImages, incremental)) {
+                                failures[0]++;
+                            }
+                        } catch (Throwable t) {
+                            //A listener threw, losing the writer would leave every other stage waiting on it
+                            failures[0]++;
+                            System.err.println("#" + written.imageNum + ", listener failed: " + t);
+                        } finally {
+                            next++;
+                            inFlight.release();
+                        }
+                        if (checkpointInterval > 0 && next % checkpointInterval == 0) {
+                            checkpoint(incremental);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+
+        for (Thread t : threads) {
+            t.start();
+        }
+        ScheduledExecutorService reporting = scheduleReports();
+
+        int[] N = {0};
+        //With a mosaic, areas are held back and sorted so those sharing tiles render together. The batch is queued
+        //once full and before an unchanged area goes to the writer, so every area numbered after the first held
+        //back is held back too. The writer can write all those before it and release their permits, so parsing
+        //only ever waits for permits the batch doesn't hold, and a batch of maxInFlight is queued before that
+        List<Job> batch = options.getMosaic() != null && !isTiled() && options.getVectorFormat() == null
+                ? new ArrayList<>(capacity) : null;
+        boolean parsed = false;
+        try {
+            Shard shard = options.getShard();
+            areas.parse(area -> {
+                String type = area.getGeometry().getType();
+                if (shard != null && !shard.owns(area)) {
+                    if (incremental != null && area.getCurbAreaId() != null) {
+                        elsewhere.add(area.getCurbAreaId());
+                    }
+                    return;
+                }
+                if (type.equals("Polygon")) {
+                    try {
+                        inFlight.acquire();
+                        Job job = new Job(N[0]++, area);
+                        job.zoom = options.getZoomPolicy() != null ? options.getZoomPolicy().zoomFor(area) : zoom;
+                        String id = area.getCurbAreaId();
+                        if (incremental != null && id != null) {
+                            //Named after the area so the output can be found again on the next run
+                            name(job, "area_" + id.replaceAll("[^A-Za-z0-9._-]", "_"));
+                            job.source = new RenderManifest.Entry(area);
+                            seen.add(id);
+                            if (incremental.isCurrent(id, job.source) && exists(job)) {
+                                //Straight to the writer so it's reported in order, after the areas before it
+                                job.unchanged = true;
+                                if (batch != null) {
+                                    queue(batch, renderQueue);
+                                }
+                                writeQueue.put(job);
+                                return;
+                            }
+                        } else {
+                            name(job, "area_and_zones_" + job.imageNum);
+                        }
+                        if (batch == null) {
+                            renderQueue.put(job);
+                        } else {
+                            batch.add(job);
+                            if (batch.size() >= capacity) {
+                                queue(batch, renderQueue);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while queueing area " + area.getCurbAreaId(), e);
+                    }
+                }
+            });
+            parsed = true;
+        } finally {
+            //Drain whatever was queued, even if the parse failed part way through
+            if (batch != null) {
+                queue(batch, renderQueue);
+            }
+            for (int i = 0; i < renderThreads; i++) {
+                renderQueue.put(END);
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            if (reporting != null) {
+                reporting.shutdownNow();
+            }
+            if (options.getMetricsReporter() != null) {
+                report();
+            }
+            if (manifest != null) {
+                //Only a complete parse says which areas have gone
+                if (parsed) {
+                    deleteStale(manifest, seen, elsewhere);
+                }
+                manifest.save(options.getManifest());
+            }
+        }
+        return failures[0];
+    }
+
+    /**
+     * Saves the manifest part way through, only on the writer thread as that's the one changing it
+     */
+    private void checkpoint(RenderManifest manifest) {
+        try {
+            manifest.save(options.getManifest());
+        } catch (IOException e) {
+            //The next checkpoint or the end of the run tries again
+            System.err.println("Couldn't checkpoint " + options.getManifest() + ": " + e);
+        }
+    }
+
+    /**
+     * Queues a batch for rendering, nearby areas together, and empties it
+     */
+    private static void queue(List<Job> batch, BlockingQueue<Job> renderQueue) throws InterruptedException {
+        //Stable, so areas in the same region keep their parse order
+        batch.sort(Comparator.comparingLong(job -> TileMosaic.order(job.area, job.zoom)));
+        for (Job job : batch) {
+            renderQueue.put(job);
+        }
+        batch.clear();
+    }
+
+    /**
+     * @return the thread reporting metrics while the run's in progress, or null if they're only reported at the end
+     */
+    private ScheduledExecutorService scheduleReports() {
+        Duration interval = options.getMetricsInterval();
+        if (options.getMetricsReporter() == null || interval == null) {
+            return null;
+        }
+        ScheduledExecutorService reporting = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        long millis = interval.toMillis();
+        reporting.scheduleAtFixedRate(this::report, millis, millis, TimeUnit.MILLISECONDS);
+        return reporting;
+    }
+
+    private void report() {
+        try {
+            options.getMetricsReporter().report(metrics);
+        } catch (Throwable t) {
+            //Losing a report mustn't stop the render
+            System.err.println("Couldn't report metrics: " + t);
+        }
+    }
+
+    /**
+     * Lets go of a job's canvas, returning it to the pool if there is one
+     */
+    private void release(Job job) {
+        if (options.getCanvasPool() != null) {
+            options.getCanvasPool().release(job.image);
+        }
+        job.image = null;
+    }
+
+    /**
+     * Names the image, or directory of tiles, and the levels of its pyramid
+     * @param base  The name without a suffix
+     */
+    private void name(Job job, String base) {
+        if (isTiled()) {
+            job.name = base;
+            return;
+        }
+        VectorFormat vector = options.getVectorFormat();
+        job.name = base + "." + (vector != null ? vector.getExtension() : encoder.getExtension());
+        int minZoom = options.getPyramidMinZoom();
+        if (minZoom >= 0 && minZoom < job.zoom) {
+            List<String> levels = new ArrayList<>();
+            for (int z = job.zoom - 1; z >= minZoom; z--) {
+                levels.add(base + "_z" + z + "." + encoder.getExtension());
+            }
+            job.levelNames = levels;
+        }
+    }
+
+    /**
+     * @return true if everything a job would write is already there
+     */
+    private boolean exists(Job job) {
+        if (!output.exists(job.name)) {
+            return false;
+        }
+        for (String level : job.levelNames) {
+            if (!output.exists(level)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the outputs of areas which are no longer in the input. Those now rendered by another shard are only
+     * forgotten, as their outputs are shared and that shard writes over them
+     */
+    private void deleteStale(RenderManifest manifest, Set<String> seen, Set<String> elsewhere) throws IOException {
+        for (String id : new ArrayList<>(manifest.getAreas().keySet())) {
+            if (!seen.contains(id)) {
+                RenderManifest.Entry entry = manifest.remove(id);
+                if (elsewhere.contains(id)) {
+                    continue;
+                }
+                output.delete(entry.getOutput());
+                for (String level : entry.getLevels()) {
+                    output.delete(level);
+                }
+            }
+        }
+    }
+
+    /**
+     * Renders an area as tiles, encoding and writing each one as it's drawn so only one is held at a time
+     */
+    private void renderTiles(Job job, boolean createImages, boolean straight) {
+        String directory = job.name;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+        try {
+            if (createImages && job.source != null) {
+                //Tiles the area no longer covers would otherwise be left behind
+                output.delete(directory);
+            }
+            if (options.getVectorFormat() == VectorFormat.MVT) {
+                job.tiles = vectors.renderTiles(job.area, job.zoom, straight, (z, x, y, tile) -> {
+                    if (createImages) {
+                        long start = System.nanoTime();
+                        output.write(directory + "/" + z + "/" + x + "/" + y + "." + VectorFormat.MVT.getExtension(), tile);
+                        metrics.record(Metrics.Stage.WRITE, start);
+                        metrics.add(Metrics.Counter.BYTES_WRITTEN, tile.length);
+                    }
+                });
+            } else {
+                job.tiles = renderer.renderTiles(job.area, job.zoom, straight, (z, x, y, tile) -> {
+                    if (createImages) {
+                        long start = System.nanoTime();
+                        bytes.reset();
+                        encoder.encode(tile, bytes);
+                        start = metrics.record(Metrics.Stage.ENCODE, start);
+                        output.write(directory + "/" + z + "/" + x + "/" + y + "." + encoder.getExtension(),
+                                bytes.toByteArray());
+                        metrics.record(Metrics.Stage.WRITE, start);
+                        metrics.add(Metrics.Counter.BYTES_WRITTEN, bytes.size());
+                    }
+                });
+            }
+        } catch (Throwable t) {
+            job.error = t;
+        }
+    }
+
+    /**
+     * Writes an area's overlays as one vector document, which is cheap enough not to need the encode stage
+     */
+    private void renderVector(Job job, boolean straight) {
+        try {
+            VectorRenderer.Overlay overlay = vectors.overlay(job.area, job.zoom, straight);
+            long start = System.nanoTime();
+            job.encoded = options.getVectorFormat() == VectorFormat.SVG ? vectors.svg(overlay)
+                    : vectors.json(job.area, overlay);
+            metrics.record(Metrics.Stage.ENCODE, start);
+            job.width = overlay.width();
+            job.height = overlay.height();
+        } catch (Throwable t) {
+            job.error = t;
+        }
+    }
+
+    /**
+     * @return true if areas are written as directories of tiles
+     */
+    private boolean isTiled() {
+        return options.isTiles() || options.getVectorFormat() == VectorFormat.MVT;
+    }
+
+    /**
+     * Writes a finished job and tells the listener
+     * @return false if the area failed
+     */
+    private boolean write(Job job, boolean createImages, RenderManifest manifest) {
+        if (job.unchanged) {
+            listener.skipped(job.imageNum, job.area, output.locate(job.name));
+            return true;
+        }
+        if (job.error == null && createImages && job.tiles < 0) {
+            try {
+                long start = System.nanoTime();
+                output.write(job.name, job.encoded);
+                long bytes = job.encoded.length;
+                if (job.encodedLevels != null) {
+                    for (int l = 0; l < job.encodedLevels.length; l++) {
+                        output.write(job.levelNames.get(l), job.encodedLevels[l]);
+                        bytes += job.encodedLevels[l].length;
+                    }
+                }
+                metrics.record(Metrics.Stage.WRITE, start);
+                metrics.add(Metrics.Counter.BYTES_WRITTEN, bytes);
+            } catch (Throwable t) {
+                job.error = t;
+            }
+        }
+        if (job.error == null && manifest != null && job.source != null) {
+            try {
+                record(manifest, job);
+            } catch (Throwable t) {
+                job.error = t;
+            }
+        }
+        job.encoded = null;
+        byte[][] levels = job.encodedLevels;
+        job.encodedLevels = null;
+        metrics.add(job.error == null ? Metrics.Counter.AREAS_RENDERED : Metrics.Counter.AREAS_FAILED, 1);
+        if (job.error == null && job.tiles >= 0) {
+            listener.renderedTiles(job.imageNum, job.area, job.tiles, createImages ? output.locate(job.name) : null);
+            return true;
+        }
+        if (job.error == null && createImages) {
+            listener.rendered(job.imageNum, job.area, job.width, job.height, output.locate(job.name));
+            if (levels != null) {
+                int width = job.width, height = job.height;
+                for (int l = 0; l < levels.length; l++) {
+                    width = (width + 1) / 2;
+                    height = (height + 1) / 2;
+                    listener.renderedLevel(job.imageNum, job.area, job.zoom - 1 - l, width, height,
+                            output.locate(job.levelNames.get(l)));
+                }
+            }
+            return true;
+        }
+        job.image = null;
+        if (job.error != null) {
+            listener.failed(job.imageNum, job.area, job.error);
+            return false;
+        }
+        listener.rendered(job.imageNum, job.area, job.width, job.height, null);
+        return true;
+    }
+
+    /**
+     * Remembers what an area's new output was rendered from, removing its old output if the name changed
+     */
+    private void record(RenderManifest manifest, Job job) throws IOException {
+        String id = job.area.getCurbAreaId();
+        RenderManifest.Entry previous = manifest.get(id);
+        manifest.rendered(id, job.source, job.name, job.levelNames, job.encoded);
+        if (previous != null && previous.getOutput() != null && !previous.getOutput().equals(job.name)) {
+            output.delete(previous.getOutput());
+        }
+        if (previous != null) {
+            for (String level : previous.getLevels()) {
+                if (!job.levelNames.contains(level)) {
+                    output.delete(level);
+                }
+            }
+        }
+    }
+
+    /**
+     * Virtual threads are only available from Java 21, so they're looked up reflectively to keep targeting 17
+     * @param virtual  Prefer virtual threads
+     * @return a factory of unstarted threads
+     */
+    static ThreadFactory threadFactory(boolean virtual) {
+        return threadFactory(virtual, "render-");
+    }
+
+    /**
+     * As above with the threads named prefix followed by a number
+     */
+    static ThreadFactory threadFactory(boolean virtual, String prefix) {
+        if (virtual) {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+                return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads aren't available on Java "
+                        + Runtime.version().feature() + ", using platform threads");
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
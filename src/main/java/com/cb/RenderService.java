@@ -0,0 +1,493 @@
+package com.cb;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Renders areas on request over HTTP, keeping the zones, areas and the renderer's tile cache loaded between
+ * requests rather than paying for them on every run. Endpoints:
+ * <ul>
+ *     <li>GET /areas/{id}.png - a loaded area, the extension is the options' format</li>
+ *     <li>GET /areas/{id}/tiles.zip - a loaded area as z/x/y tiles</li>
+ *     <li>POST /render - the area in the body, as in areas.json. Zones are found by id then spatially</li>
+ *     <li>GET /bbox?minLon=&amp;minLat=&amp;maxLon=&amp;maxLat= - a box and the zones within it</li>
+ *     <li>POST /reload - reads the zones and areas again</li>
+ *     <li>GET /status - counts and metrics as JSON</li>
+ * </ul>
+ * The renders take zoom and straight query parameters, the zoom otherwise coming from the options' ZoomPolicy, or 20.
+ * <p>
+ * Requests are handled on virtual threads where available, but at most maxConcurrent renders run at once. A
+ * request waits up to the timeout for its turn and its render, and gets a 503 or 504 if that runs out. A render
+ * covering more than maxTiles tiles, whose canvas would be too big to draw, gets a 400 if its zoom was asked for,
+ * otherwise it's drawn at the closest zoom out that fits.
+ * A reload builds the new zones and areas beside the old, which keep serving until they're swapped in.
+ */
+public class RenderService implements Closeable {
+
+    private static final int DEFAULT_ZOOM = 20;
+    private static final int MAX_ZOOM = 22;
+    //A 4096 pixel square canvas
+    private static final long DEFAULT_MAX_TILES = 256;
+
+    private final MapRenderer renderer;
+    private final RenderOptions options;
+    private final ImageEncoder encoder;
+    private final Duration timeout;
+    private final int maxConcurrent;
+    private final Semaphore permits;
+    private final ExecutorService renderers;
+    private final ExecutorService handlers;
+    private Path zonesPath;
+    private Path areasPath;
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyMap(), new ZoneIndex.Builder().build(),
+            Collections.emptyMap());
+    private HttpServer server;
+    private volatile long maxTiles = DEFAULT_MAX_TILES;
+
+    /**
+     * @param renderer  Renders the areas, its tile cache is shared by every request
+     * @param options  The format, canvas pool, mosaic, zoom policy and how zones are parsed
+     * @param maxConcurrent  The most renders at once
+     * @param timeout  How long a request may wait for and run its render
+     */
+    public RenderService(MapRenderer renderer, RenderOptions options, int maxConcurrent, Duration timeout) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent must be at least 1: " + maxConcurrent);
+        }
+        if (timeout.isNegative() || timeout.isZero()) {
+            throw new IllegalArgumentException("timeout must be positive: " + timeout);
+        }
+        this.renderer = renderer;
+        this.options = options;
+        this.encoder = new ImageEncoder(options.getFormat(), options.getCompressionLevel(), options.isIndexedColour());
+        this.timeout = timeout;
+        this.maxConcurrent = maxConcurrent;
+        this.permits = new Semaphore(maxConcurrent);
+        //Rendering is CPU bound so has its own bounded pool, the handlers mostly wait on it
+        this.renderers = Executors.newFixedThreadPool(maxConcurrent, RenderPipeline.threadFactory(false));
+        this.handlers = Executors.newCachedThreadPool(RenderPipeline.threadFactory(true, "http-"));
+    }
+
+    public long getMaxTiles() {
+        return maxTiles;
+    }
+
+    /**
+     * @param maxTiles  The most 256 pixel tiles a render may cover, which bounds the memory of its canvas
+     */
+    public void setMaxTiles(long maxTiles) {
+        if (maxTiles < 1) {
+            throw new IllegalArgumentException("maxTiles must be at least 1: " + maxTiles);
+        }
+        this.maxTiles = maxTiles;
+    }
+
+    /**
+     * Loads zones and areas, replacing any loaded before
+     * @param zones  A GeoJSON file of Zones
+     * @param areas  A GeoJSON file of Areas, or null to only render posted areas and boxes
+     * @throws Exception if either can't be read, in which case the previous ones are kept
+     */
+    public synchronized void load(Path zones, Path areas) throws Exception {
+        Map<String, Zone> zonesMap = new HashMap<>();
+        ZoneIndex.Builder zoneIndex = new ZoneIndex.Builder();
+        ZoneConsumer collect = zone -> {
+            zonesMap.put(zone.getCurbZoneId(), zone);
+            zoneIndex.add(zone);
+        };
+        if (options.isZoneSnapshots()) {
+            Main.loadZones(zones, options, collect);
+        } else {
+            Main.parseZones(zones, options, collect);
+        }
+        ZoneIndex index = zoneIndex.build();
+
+        Map<String, Area> areasMap = new LinkedHashMap<>();
+        if (areas != null) {
+            try (InputStream in = MappedFile.open(areas).stream()) {
+                AreaProcessor.processAreas(in, zonesMap::get, index, options.getZoneResolution(),
+                        area -> areasMap.put(area.getCurbAreaId(), area));
+            }
+        }
+        //Requests in progress keep the snapshot they started with
+        snapshot = new Snapshot(zonesMap, index, areasMap);
+        zonesPath = zones;
+        areasPath = areas;
+    }
+
+    /**
+     * Loads the files given to load again, e.g. after they've been replaced
+     * @throws Exception if they can't be read, in which case the previous ones are kept
+     */
+    public synchronized void reload() throws Exception {
+        if (zonesPath == null) {
+            throw new IllegalStateException("Nothing has been loaded");
+        }
+        load(zonesPath, areasPath);
+    }
+
+    /**
+     * @param address  Where to listen, port 0 picks a free one
+     * @throws IOException if the server can't bind
+     */
+    public synchronized void start(InetSocketAddress address) throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("Already started");
+        }
+        server = HttpServer.create(address, 0);
+        server.setExecutor(handlers);
+        server.createContext("/areas/", handler("GET", this::area));
+        server.createContext("/render", handler("POST", this::posted));
+        server.createContext("/bbox", handler("GET", this::bbox));
+        server.createContext("/reload", handler("POST", this::reload));
+        server.createContext("/status", handler("GET", this::status));
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public int getZoneCount() {
+        return snapshot.zones.size();
+    }
+
+    public int getAreaCount() {
+        return snapshot.areas.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        handlers.shutdownNow();
+        renderers.shutdownNow();
+    }
+
+    private void area(HttpExchange exchange) throws IOException {
+        String id = exchange.getRequestURI().getPath().substring("/areas/".length());
+        boolean tiles = id.endsWith("/tiles.zip");
+        if (tiles) {
+            id = id.substring(0, id.length() - "/tiles.zip".length());
+        } else if (id.endsWith("." + encoder.getExtension())) {
+            id = id.substring(0, id.length() - encoder.getExtension().length() - 1);
+        }
+        Area area = snapshot.areas.get(id);
+        if (area == null) {
+            send(exchange, 404, "No area " + id);
+            return;
+        }
+        render(exchange, area, tiles);
+    }
+
+    private void posted(HttpExchange exchange) throws IOException {
+        Area area;
+        try (InputStream in = exchange.getRequestBody()) {
+            area = Json.AREA_READER.readValue(in);
+        } catch (IOException e) {
+            send(exchange, 400, "Can't read the area: " + e.getMessage());
+            return;
+        }
+        if (area.getGeometry() == null) {
+            send(exchange, 400, "The area has no geometry");
+            return;
+        }
+        Snapshot current = snapshot;
+        //A posted area may be new, so has no ids or ones which predate the loaded zones
+        area.setCurbZones(AreaProcessor.associateZones(area, current.zones::get, current.index,
+                ZoneResolution.IDS_THEN_SPATIAL));
+        render(exchange, area, false);
+    }
+
+    private void bbox(HttpExchange exchange) throws IOException {
+        Map<String, String> query = query(exchange);
+        double minLon = number(query, "minLon"), minLat = number(query, "minLat");
+        double maxLon = number(query, "maxLon"), maxLat = number(query, "maxLat");
+        if (!(minLon < maxLon && minLat < maxLat)) {
+            send(exchange, 400, "Give minLon, minLat, maxLon and maxLat with the minimums below the maximums");
+            return;
+        }
+        Geometry box = new Geometry("Polygon", new double[]{
+                minLon, minLat, maxLon, minLat, maxLon, maxLat, minLon, maxLat, minLon, minLat}, new int[]{0, 5});
+        Area area = new Area(null, box);
+        area.setCurbZones(snapshot.index.intersecting(box));
+        render(exchange, area, false);
+    }
+
+    private void reload(HttpExchange exchange) throws IOException {
+        try {
+            reload();
+        } catch (Exception e) {
+            send(exchange, 500, "Reload failed: " + e);
+            return;
+        }
+        Map<String, Object> counts = new LinkedHashMap<>();
+        counts.put("zones", getZoneCount());
+        counts.put("areas", getAreaCount());
+        send(exchange, 200, "application/json", Json.MAPPER.writeValueAsBytes(counts));
+    }
+
+    private void status(HttpExchange exchange) throws IOException {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("zones", getZoneCount());
+        status.put("areas", getAreaCount());
+        status.put("rendering", maxConcurrent - permits.availablePermits());
+        status.put("tileCache", renderer.getTileCache().toString());
+        status.put("metrics", Metrics.global().snapshot());
+        send(exchange, 200, "application/json", Json.MAPPER.writeValueAsBytes(status));
+    }
+
+    /**
+     * Renders an area within the timeout and sends it, or the reason it couldn't be
+     */
+    private void render(HttpExchange exchange, Area area, boolean tiles) throws IOException {
+        Map<String, String> query = query(exchange);
+        int zoom;
+        try {
+            zoom = query.containsKey("zoom") ? Integer.parseInt(query.get("zoom"))
+                    : options.getZoomPolicy() != null ? options.getZoomPolicy().zoomFor(area) : DEFAULT_ZOOM;
+        } catch (NumberFormatException e) {
+            send(exchange, 400, "zoom isn't a number: " + query.get("zoom"));
+            return;
+        }
+        if (zoom < 0 || zoom > MAX_ZOOM) {
+            send(exchange, 400, "zoom must be 0-" + MAX_ZOOM + ": " + zoom);
+            return;
+        }
+        long tileCount = ZoomPolicy.tileCount(area, zoom);
+        if (tileCount > maxTiles && query.containsKey("zoom")) {
+            send(exchange, 400, "At zoom " + zoom + " that's " + tileCount + " tiles, the most is " + maxTiles
+                    + ", zoom out");
+            return;
+        }
+        //A zoom the caller didn't ask for is stepped down until it fits, a single tile always does
+        while (tileCount > maxTiles) {
+            tileCount = ZoomPolicy.tileCount(area, --zoom);
+        }
+        boolean straight = Boolean.parseBoolean(query.getOrDefault("straight", "true"));
+        int z = zoom;
+        if (tiles) {
+            respond(exchange, "application/zip", () -> renderTiles(area, z, straight));
+        } else {
+            respond(exchange, encoder.getMimeType(), () -> renderImage(area, z, straight));
+        }
+    }
+
+    private byte[] renderImage(Area area, int zoom, boolean straight) throws IOException {
+        CanvasPool canvasPool = options.getCanvasPool();
+        BufferedImage image = renderer.renderMap(area, zoom, straight, canvasPool, options.getMosaic());
+        try {
+            long start = System.nanoTime();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+            encoder.encode(image, bytes);
+            Metrics.global().record(Metrics.Stage.ENCODE, start);
+            return bytes.toByteArray();
+        } finally {
+            if (canvasPool != null) {
+                canvasPool.release(image);
+            }
+        }
+    }
+
+    private byte[] renderTiles(Area area, int zoom, boolean straight) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            //Tiles are already compressed
+            zip.setLevel(0);
+            renderer.renderTiles(area, zoom, straight, (z, x, y, tile) -> {
+                zip.putNextEntry(new ZipEntry(z + "/" + x + "/" + y + "." + encoder.getExtension()));
+                encoder.encode(tile, zip);
+                zip.closeEntry();
+            });
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Waits for a render permit then the render, both within the timeout. The permit is given back when the render
+     * ends or the request times out, whichever is first, as the fixed pool of renderers still bounds what runs
+     */
+    private void respond(HttpExchange exchange, String contentType, Callable<byte[]> render) throws IOException {
+        Metrics metrics = Metrics.global();
+        long deadline = System.nanoTime() + timeout.toNanos();
+        try {
+            if (!permits.tryAcquire(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                send(exchange, 503, "Too many renders in progress");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            send(exchange, 503, "Interrupted");
+            return;
+        }
+        AtomicBoolean held = new AtomicBoolean(true);
+        Runnable release = () -> {
+            if (held.compareAndSet(true, false)) {
+                permits.release();
+            }
+        };
+        Future<byte[]> future;
+        try {
+            future = renderers.submit(() -> {
+                try {
+                    //A render whose request has already gone isn't started
+                    if (System.nanoTime() - deadline > 0) {
+                        throw new TimeoutException();
+                    }
+                    return render.call();
+                } finally {
+                    release.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            release.run();
+            send(exchange, 503, "Shutting down");
+            return;
+        }
+        try {
+            byte[] body = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            metrics.add(Metrics.Counter.AREAS_RENDERED, 1);
+            send(exchange, 200, contentType, body);
+        } catch (TimeoutException e) {
+            //Drawing can't be interrupted part way, so the render runs on in its renderer
+            release.run();
+            send(exchange, 504, "Render took longer than " + timeout);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                send(exchange, 504, "Render took longer than " + timeout);
+                return;
+            }
+            metrics.add(Metrics.Counter.AREAS_FAILED, 1);
+            send(exchange, 500, "Render failed: " + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            send(exchange, 503, "Interrupted");
+        }
+    }
+
+    private static HttpHandler handler(String method, HttpHandler handler) {
+        return exchange -> {
+            try {
+                if (!method.equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().set("Allow", method);
+                    send(exchange, 405, "Use " + method);
+                    return;
+                }
+                handler.handle(exchange);
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, e.getMessage());
+            } catch (Exception e) {
+                System.err.println(exchange.getRequestMethod() + " " + exchange.getRequestURI() + " failed: " + e);
+                //Unless the response had already begun, when closing the exchange is all that's left
+                if (exchange.getResponseCode() == -1) {
+                    send(exchange, 500, "Failed: " + e);
+                }
+            } finally {
+                exchange.close();
+            }
+        };
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> query = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null) {
+            return query;
+        }
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            query.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    private static double number(Map<String, String> query, String name) {
+        String value = query.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing " + name);
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " isn't a number: " + value);
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String message) throws IOException {
+        send(exchange, status, "text/plain; charset=utf-8", (message + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * What's loaded, replaced as a whole on reload
+     */
+    private static final class Snapshot {
+        final Map<String, Zone> zones;
+        final ZoneIndex index;
+        final Map<String, Area> areas;
+
+        Snapshot(Map<String, Zone> zones, ZoneIndex index, Map<String, Area> areas) {
+            this.zones = zones;
+            this.index = index;
+            this.areas = areas;
+        }
+    }
+
+    /**
+     * Serves zones.json and areas.json, or the files given, on port 8080 or the one given
+     */
+    public static void main(String[] args) throws Exception {
+        String zones = args.length >= 2 ? args[0] : "zones.json";
+        String areas = args.length >= 2 ? args[1] : "areas.json";
+        int port = args.length >= 3 ? Integer.parseInt(args[2]) : 8080;
+        RenderOptions options = new RenderOptions();
+        MapRenderer renderer = options.getTileSource() != null ? new MapRenderer(options.getTileSource()) : new MapRenderer();
+        RenderService service = new RenderService(renderer, options, Runtime.getRuntime().availableProcessors(),
+                Duration.ofSeconds(30));
+        service.load(Paths.get(zones), Paths.get(areas));
+        service.start(new InetSocketAddress(port));
+        System.out.println("Serving " + service.getAreaCount() + " areas and " + service.getZoneCount()
+                + " zones on port " + service.getPort());
+    }
+}
@@ -0,0 +1,107 @@
+package com.cb;
+
+import java.nio.file.Path;
+
+/**
+ * One of count deterministic partitions of the areas, so several processes can each render their own share of
+ * one input. Every process parses the whole file and keeps the areas its shard owns, which is cheap next to
+ * rendering, and the same area always lands on the same shard for the same count.
+ */
+public final class Shard {
+
+    /**
+     * What decides an area's shard
+     */
+    public enum Key {
+        /** The area's id, which spreads areas most evenly */
+        AREA_ID,
+        /**
+         * The tile at TILE_ZOOM under the centre of the area, which groups areas by neighbourhood so a shard tends to
+         * reuse its base tiles. Areas overlapping across a tile edge can still land on different shards
+         */
+        TILE
+    }
+
+    //Tiles about 2.4km across at the equator, bigger than most areas but small enough to spread a city
+    static final int TILE_ZOOM = 14;
+
+    private final int index;
+    private final int count;
+    private final Key key;
+
+    /**
+     * @param index  This shard, from 0
+     * @param count  How many shards there are
+     * @param key  What decides an area's shard
+     */
+    public Shard(int index, int count, Key key) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Shard " + index + " of " + count + " doesn't exist");
+        }
+        this.index = index;
+        this.count = count;
+        this.key = key;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public Key getKey() {
+        return key;
+    }
+
+    /**
+     * @param area  An area
+     * @return true if this shard renders it
+     */
+    public boolean owns(Area area) {
+        return of(area) == index;
+    }
+
+    /**
+     * @param area  An area
+     * @return the index of the shard which renders it
+     */
+    int of(Area area) {
+        long hash;
+        if (key == Key.TILE) {
+            double[] b = area.getGeometry().computeBounds();
+            int[] tile = CoordinateUtils.toTileNumbers((b[0] + b[2]) / 2, (b[1] + b[3]) / 2, TILE_ZOOM);
+            hash = mix(((long) tile[0] << 32) | tile[1]);
+        } else {
+            //String.hashCode is specified, so every process agrees
+            hash = mix(area.getCurbAreaId() != null ? area.getCurbAreaId().hashCode() : 0);
+        }
+        return (int) Math.floorMod(hash, (long) count);
+    }
+
+    /**
+     * Spreads nearby keys, e.g. neighbouring tiles, over the shards
+     */
+    private static long mix(long x) {
+        x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+        x = (x ^ (x >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return x ^ (x >>> 33);
+    }
+
+    /**
+     * @param manifest  The manifest of the whole render
+     * @return this shard's manifest beside it, e.g. manifest.shard-2-of-8.json
+     */
+    public Path manifestFor(Path manifest) {
+        String name = manifest.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        return manifest.resolveSibling(base + ".shard-" + index + "-of-" + count + ".json");
+    }
+
+    @Override
+    public String toString() {
+        return index + "/" + count + " by " + key;
+    }
+}
@@ -0,0 +1,197 @@
+package com.cb;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Renders a batch with several worker processes on one machine, each rendering one shard of the areas into the
+ * same output directory with a manifest of its own. Workers save their manifests as they go, so one that crashes
+ * is started again and skips what it had already written. Once every worker is done their manifests are merged
+ * into the one for the whole batch.
+ * <p>
+ * Separate processes rather than more threads keep a crash, or a heap exhausted by one shard, from losing the rest.
+ */
+public class ShardCoordinator {
+
+    //Areas a worker writes between saving its manifest
+    static final int CHECKPOINT_INTERVAL = 50;
+
+    private final Path zones;
+    private final Path areas;
+    private final Path outputDir;
+    private final Path manifest;
+    private final int shards;
+    private final Shard.Key key;
+    private int maxRestarts = 3;
+
+    /**
+     * @param zones  A GeoJSON file of Zones
+     * @param areas  A GeoJSON file of Areas
+     * @param outputDir  Where every worker writes its images
+     * @param manifest  The manifest of the whole batch, the workers' are beside it
+     * @param shards  How many workers to run at once
+     * @param key  What decides an area's shard
+     */
+    public ShardCoordinator(Path zones, Path areas, Path outputDir, Path manifest, int shards, Shard.Key key) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("There must be at least one shard: " + shards);
+        }
+        this.zones = zones;
+        this.areas = areas;
+        this.outputDir = outputDir;
+        this.manifest = manifest;
+        this.shards = shards;
+        this.key = key;
+    }
+
+    public int getMaxRestarts() {
+        return maxRestarts;
+    }
+
+    /**
+     * @param maxRestarts  How many times a worker that crashed is started again before the batch fails
+     */
+    public void setMaxRestarts(int maxRestarts) {
+        if (maxRestarts < 0) {
+            throw new IllegalArgumentException("maxRestarts can't be negative: " + maxRestarts);
+        }
+        this.maxRestarts = maxRestarts;
+    }
+
+    /**
+     * Runs a worker per shard until each has finished, then merges their manifests
+     * @return the merged manifest, which has also been saved
+     * @throws IOException if a worker kept crashing or a manifest couldn't be read or written
+     * @throws InterruptedException if interrupted while waiting for workers, which are then stopped
+     */
+    public RenderManifest run() throws IOException, InterruptedException {
+        Files.createDirectories(outputDir);
+        prepareZones();
+        //Split the cores between the workers rather than each sizing its pools for the whole machine
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / shards);
+        List<Process> workers = new ArrayList<>(shards);
+        int[] restarts = new int[shards];
+        //Workers are handled as they exit, so one that crashed restarts without waiting for the others
+        BlockingQueue<Integer> exited = new LinkedBlockingQueue<>();
+        try {
+            for (int i = 0; i < shards; i++) {
+                workers.add(start(i, threads, exited));
+            }
+            for (int running = shards; running > 0; ) {
+                int i = exited.take();
+                int exit = workers.get(i).exitValue();
+                if (exit == 0) {
+                    running--;
+                    continue;
+                }
+                if (restarts[i]++ == maxRestarts) {
+                    throw new IOException("Shard " + i + " of " + shards + " failed " + restarts[i]
+                            + " time(s), last with exit code " + exit);
+                }
+                System.err.println("Shard " + i + " of " + shards + " exited with " + exit + ", restarting");
+                workers.set(i, start(i, threads, exited));
+            }
+        } finally {
+            for (Process worker : workers) {
+                worker.destroy();
+            }
+        }
+        return merge();
+    }
+
+    /**
+     * Writes the snapshot of the zones if it isn't current, so the workers load it rather than each parsing zones.json
+     */
+    private void prepareZones() throws IOException {
+        try {
+            Main.loadZones(zones, new RenderOptions(), zone -> {
+            });
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Couldn't read " + zones, e);
+        }
+    }
+
+    /**
+     * Merges the workers' manifests into the batch's
+     */
+    RenderManifest merge() throws IOException {
+        RenderManifest merged = new RenderManifest();
+        for (int i = 0; i < shards; i++) {
+            merged.merge(RenderManifest.load(new Shard(i, shards, key).manifestFor(manifest)));
+        }
+        merged.save(manifest);
+        return merged;
+    }
+
+    /**
+     * Starts a worker, which puts its index on exited when it exits
+     */
+    private Process start(int index, int threads, BlockingQueue<Integer> exited) throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(command(index, threads));
+        builder.inheritIO();
+        Process worker = builder.start();
+        worker.onExit().thenRun(() -> exited.add(index));
+        return worker;
+    }
+
+    /**
+     * The command starting a worker, which a subclass may change, e.g. to give the JVM options
+     * @param index  The worker's shard
+     * @param threads  How many render and encode threads it should run
+     * @return the command and its arguments
+     */
+    protected List<String> command(int index, int threads) {
+        String java = ProcessHandle.current().info().command()
+                .orElse(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        return List.of(java, "-cp", System.getProperty("java.class.path"),
+                ShardCoordinator.class.getName(), "worker", String.valueOf(index), String.valueOf(shards), key.name(),
+                zones.toString(), areas.toString(), outputDir.toString(), manifest.toString(), String.valueOf(threads));
+    }
+
+    /**
+     * Renders one shard into a directory, saving its manifest as it goes
+     */
+    static void work(Shard shard, Path zones, Path areas, Path outputDir, Path manifest, int threads) throws Throwable {
+        RenderOptions options = new RenderOptions();
+        options.setRenderThreads(threads);
+        options.setEncodeThreads(threads);
+        options.setManifest(shard.manifestFor(manifest));
+        options.setCheckpointInterval(CHECKPOINT_INTERVAL);
+        options.setShard(shard);
+        try (OutputTarget output = OutputTarget.directory(outputDir)) {
+            options.setOutput(output);
+            new Main().parse(zones, areas, true, true, options);
+        }
+    }
+
+    /**
+     * Either coordinates: zones areas outputDir manifest shards [AREA_ID|TILE]
+     * <br>
+     * or, as started by a coordinator, works: worker index count key zones areas outputDir manifest threads
+     */
+    public static void main(String[] args) throws Throwable {
+        if (args.length == 9 && args[0].equals("worker")) {
+            Shard shard = new Shard(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Shard.Key.valueOf(args[3]));
+            work(shard, Paths.get(args[4]), Paths.get(args[5]), Paths.get(args[6]), Paths.get(args[7]),
+                    Integer.parseInt(args[8]));
+            return;
+        }
+        if (args.length < 5) {
+            System.err.println("Usage: ShardCoordinator zones.json areas.json outputDir manifest.json shards [AREA_ID|TILE]");
+            System.exit(1);
+        }
+        Shard.Key key = args.length >= 6 ? Shard.Key.valueOf(args[5]) : Shard.Key.AREA_ID;
+        ShardCoordinator coordinator = new ShardCoordinator(Paths.get(args[0]), Paths.get(args[1]),
+                Paths.get(args[2]), Paths.get(args[3]), Integer.parseInt(args[4]), key);
+        RenderManifest merged = coordinator.run();
+        System.out.println("Rendered " + merged.getAreas().size() + " areas in " + args[4] + " shards");
+    }
+}
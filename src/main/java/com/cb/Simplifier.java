@@ -0,0 +1,110 @@
+package com.cb;
+
+/**
+ * Thins projected lines before they're drawn. At high zooms many vertices land on the same pixel, e.g. the
+ * densely sampled rounded corners of areas, and others are so close to the line between their neighbours that
+ * drawing them changes nothing visible. Points are interleaved x/y pixel pairs and are never modified in place.
+ */
+public final class Simplifier {
+
+    private Simplifier() {
+    }
+
+    /**
+     * Removes points which repeat the pixel before them
+     * @param points  Interleaved x/y pixel pairs
+     * @return points without consecutive duplicates, the same array if there are none
+     */
+    public static int[] dedupe(int[] points) {
+        int length = 2;
+        for (int i = 2; i < points.length; i += 2) {
+            if (points[i] != points[i - 2] || points[i + 1] != points[i - 1]) {
+                length += 2;
+            }
+        }
+        if (points.length <= 2 || length == points.length) {
+            return points;
+        }
+        int[] result = new int[length];
+        result[0] = points[0];
+        result[1] = points[1];
+        int j = 2;
+        for (int i = 2; i < points.length; i += 2) {
+            if (points[i] != points[i - 2] || points[i + 1] != points[i - 1]) {
+                result[j++] = points[i];
+                result[j++] = points[i + 1];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes duplicate pixels then Douglas-Peucker simplifies, keeping the first and last points
+     * so joined curbs and closed rings stay joined
+     * @param points  Interleaved x/y pixel pairs
+     * @param tolerance  How far in pixels a removed point may be from the simplified line, 0 to only remove duplicates
+     * @return the simplified points, the same array if nothing was removed
+     */
+    public static int[] simplify(int[] points, double tolerance) {
+        int[] deduped = dedupe(points);
+        int n = deduped.length / 2;
+        if (tolerance <= 0 || n < 3) {
+            return deduped;
+        }
+        double limit = tolerance * tolerance;
+        boolean[] keep = new boolean[n];
+        keep[0] = keep[n - 1] = true;
+        int kept = 2;
+        //Ranges still to split, as first/last vertex pairs. Each split adds at most one, so n pairs is enough
+        int[] stack = new int[2 * n];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = n - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            double furthest = -1;
+            int index = -1;
+            for (int v = first + 1; v < last; v++) {
+                double d = distanceSquared(deduped, v, first, last);
+                if (d > furthest) {
+                    furthest = d;
+                    index = v;
+                }
+            }
+            if (index >= 0 && furthest > limit) {
+                keep[index] = true;
+                kept++;
+                stack[top++] = first;
+                stack[top++] = index;
+                stack[top++] = index;
+                stack[top++] = last;
+            }
+        }
+        if (kept == n) {
+            return deduped;
+        }
+        int[] result = new int[kept * 2];
+        int j = 0;
+        for (int v = 0; v < n; v++) {
+            if (keep[v]) {
+                result[j++] = deduped[v * 2];
+                result[j++] = deduped[v * 2 + 1];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the squared distance of vertex v from the segment between vertices a and b
+     */
+    private static double distanceSquared(int[] points, int v, int a, int b) {
+        double ax = points[a * 2], ay = points[a * 2 + 1];
+        double dx = points[b * 2] - ax, dy = points[b * 2 + 1] - ay;
+        double px = points[v * 2] - ax, py = points[v * 2 + 1] - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared > 0 ? Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSquared)) : 0;
+        double ex = px - t * dx, ey = py - t * dy;
+        return ex * ex + ey * ey;
+    }
+}
@@ -0,0 +1,316 @@
+package com.cb;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread safe LRU cache of decoded tiles keyed by zoom/x/y.
+ * Eviction is by the decoded size of the rasters. Concurrent requests for a tile that isn't cached yet
+ * share a single load, so the same tile is never decoded twice at the same time.
+ * Cached images are shared between callers and must be treated as read-only.
+ */
+public class TileCache {
+
+    /** Decoded 256x256 RGB tiles are ~192KB, so this holds several hundred of them */
+    public static final long DEFAULT_MAX_BYTES = 128L * 1024 * 1024;
+
+    /**
+     * Runs asynchronous loads and read-ahead. Shared by every cache since tile sources are bounded by I/O,
+     * not threads, and daemon so it never holds the JVM open
+     */
+    static final ThreadPoolExecutor IO = new ThreadPoolExecutor(16, 16, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "tile-io-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        IO.allowCoreThreadTimeOut(true);
+    }
+
+    private final long maxBytes;
+    private final TileLoader loader;
+
+    //Guarded by this
+    private final LinkedHashMap<Long, BufferedImage> tiles = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+
+    private final Map<Long, CompletableFuture<BufferedImage>> loading = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes  The upper bound of decoded raster bytes held
+     * @param loader  Loads a tile when it isn't cached
+     */
+    public TileCache(long maxBytes, TileLoader loader) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        this.loader = loader;
+    }
+
+    /**
+     * Gets a tile, loading it if it isn't cached. If another thread is already loading the tile then
+     * this waits for that load rather than starting another one.
+     * @param zoom  Zoom level (0 to 28)
+     * @param x  The x tile number
+     * @param y  The y tile number
+     * @return The decoded tile
+     * @throws IOException if the tile couldn't be loaded
+     */
+    public BufferedImage get(int zoom, int x, int y) throws IOException {
+        long key = key(zoom, x, y);
+        BufferedImage tile = lookup(key);
+        if (tile != null) {
+            return tile;
+        }
+
+        CompletableFuture<BufferedImage> future = new CompletableFuture<>();
+        CompletableFuture<BufferedImage> existing = loading.putIfAbsent(key, future);
+        if (existing != null) {
+            //Someone else is decoding it, piggyback on their load
+            hits.incrementAndGet();
+            return await(existing);
+        }
+
+        try {
+            //It may have landed between the lookup and claiming the load
+            tile = lookup(key);
+            if (tile == null) {
+                misses.incrementAndGet();
+                Metrics.global().add(Metrics.Counter.TILES_LOADED, 1);
+                tile = loader.load(zoom, x, y);
+                store(key, tile);
+            }
+            future.complete(tile);
+            return tile;
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+            throw t;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    /**
+     * Gets a tile without waiting for it to load, so many can be loaded at once. A TileSource loads it
+     * asynchronously, so a slow source such as a tile server isn't limited to the threads of the I/O pool,
+     * other loaders block one of those threads
+     * @param zoom  Zoom level (0 to 28)
+     * @param x  The x tile number
+     * @param y  The y tile number
+     * @return the decoded tile, completed straight away if it's cached
+     */
+    public CompletableFuture<BufferedImage> getAsync(int zoom, int x, int y) {
+        long key = key(zoom, x, y);
+        BufferedImage tile = lookup(key);
+        if (tile != null) {
+            return CompletableFuture.completedFuture(tile);
+        }
+        if (!(loader instanceof TileSource)) {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return get(zoom, x, y);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, IO);
+        }
+
+        CompletableFuture<BufferedImage> future = new CompletableFuture<>();
+        CompletableFuture<BufferedImage> existing = loading.putIfAbsent(key, future);
+        if (existing != null) {
+            hits.incrementAndGet();
+            return existing;
+        }
+        //It may have landed between the lookup and claiming the load
+        tile = lookup(key);
+        if (tile != null) {
+            loading.remove(key, future);
+            future.complete(tile);
+            return future;
+        }
+        misses.incrementAndGet();
+        Metrics.global().add(Metrics.Counter.TILES_LOADED, 1);
+        CompletableFuture<BufferedImage> load;
+        try {
+            load = ((TileSource) loader).loadAsync(zoom, x, y);
+        } catch (Throwable t) {
+            load = CompletableFuture.failedFuture(t);
+        }
+        load.whenComplete((loaded, t) -> {
+            //Stored before the load is released so a request in between finds one or the other
+            if (t == null) {
+                store(key, loaded);
+            }
+            loading.remove(key, future);
+            if (t == null) {
+                future.complete(loaded);
+            } else {
+                future.completeExceptionally(cause(t));
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Tells a TileSource which tiles of a range will be loaded, skipping the read-ahead if they're all cached
+     * @param zoom  Zoom level (0 to 28)
+     * @param minX  The first x tile number
+     * @param minY  The first y tile number
+     * @param maxX  The last x tile number
+     * @param maxY  The last y tile number
+     */
+    public void prefetch(int zoom, int minX, int minY, int maxX, int maxY) {
+        if (!(loader instanceof TileSource)) {
+            return;
+        }
+        synchronized (this) {
+            boolean cached = true;
+            for (int x = minX; x <= maxX && cached; x++) {
+                for (int y = minY; y <= maxY && cached; y++) {
+                    cached = tiles.containsKey(key(zoom, x, y));
+                }
+            }
+            if (cached) {
+                return;
+            }
+        }
+        ((TileSource) loader).prefetch(zoom, minX, minY, maxX, maxY);
+    }
+
+    private synchronized BufferedImage lookup(long key) {
+        BufferedImage tile = tiles.get(key);
+        if (tile != null) {
+            hits.incrementAndGet();
+        }
+        return tile;
+    }
+
+    private synchronized void store(long key, BufferedImage tile) {
+        BufferedImage previous = tiles.put(key, tile);
+        if (previous != null) {
+            bytes -= sizeOf(previous);
+        }
+        bytes += sizeOf(tile);
+
+        //Always keep the newest tile, even if it alone is over budget
+        Iterator<Map.Entry<Long, BufferedImage>> it = tiles.entrySet().iterator();
+        while (bytes > maxBytes && tiles.size() > 1) {
+            Map.Entry<Long, BufferedImage> eldest = it.next();
+            bytes -= sizeOf(eldest.getValue());
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static BufferedImage await(CompletableFuture<BufferedImage> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = cause(e);
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @return what an asynchronous load failed with, unwrapped from CompletionException and UncheckedIOException
+     */
+    private static Throwable cause(Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        if (t instanceof UncheckedIOException) {
+            t = t.getCause();
+        }
+        return t;
+    }
+
+    /**
+     * Packs zoom/x/y into a single key. Tile numbers at zoom z are below 2^z so 29 bits each is plenty.
+     */
+    static long key(int zoom, int x, int y) {
+        return ((long) zoom << 58) | ((long) x << 29) | y;
+    }
+
+    private static long sizeOf(BufferedImage image) {
+        DataBuffer db = image.getRaster().getDataBuffer();
+        return (long) db.getSize() * db.getNumBanks() * DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+    }
+
+    /** Drops every cached tile, the counters are kept */
+    public synchronized void clear() {
+        tiles.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return tiles.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return what loads the tiles which aren't cached
+     */
+    TileLoader getLoader() {
+        return loader;
+    }
+
+    @Override
+    public String toString() {
+        return "TileCache[tiles=" + size() + ", bytes=" + getBytes() + "/" + maxBytes + ", hits=" + getHits()
+                + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+    }
+}
@@ -0,0 +1,12 @@
+package com.cb;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Loads a single decoded tile, used by the TileCache on a miss
+ */
+@FunctionalInterface
+public interface TileLoader {
+    BufferedImage load(int zoom, int x, int y) throws IOException;
+}
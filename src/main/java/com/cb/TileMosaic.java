@@ -0,0 +1,230 @@
+package com.cb;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The base tiles composed once for a batch of areas. Neighbouring areas span mostly the same tiles, and without
+ * this each canvas is filled with the background and every tile drawn onto it again, converting the decoded tile's
+ * pixels each time. Here tiles are drawn once into square regions of ARGB pixels, as they'd be on a canvas, and a
+ * canvas starts as a row by row copy of the regions it overlaps, leaving only the overlays to draw.
+ * <p>
+ * Only the tiles some area has needed are composed, the rest of a region stays unset. Regions are kept up to a pixel
+ * budget, beyond which the least recently used is dropped. Thread safe.
+ */
+public final class TileMosaic {
+
+    //Regions are REGION_TILES tiles each way, 1024x1024 pixels
+    static final int REGION_TILES = 4;
+    private static final int TILE_SIZE = 256;
+    private static final int REGION_SIZE = REGION_TILES * TILE_SIZE;
+
+    //32M pixels, 128MB of ARGB
+    public static final long DEFAULT_MAX_PIXELS = 32L << 20;
+
+    private final long maxPixels;
+    private final Map<Long, Region> regions = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * @param maxPixels  The most pixels of regions to keep, at least one region's worth are always kept
+     */
+    public TileMosaic(long maxPixels) {
+        if (maxPixels < 0) {
+            throw new IllegalArgumentException("maxPixels can't be negative: " + maxPixels);
+        }
+        this.maxPixels = maxPixels;
+    }
+
+    public TileMosaic() {
+        this(DEFAULT_MAX_PIXELS);
+    }
+
+    /**
+     * Fetches a tile
+     */
+    @FunctionalInterface
+    interface TileFetcher {
+        CompletableFuture<BufferedImage> fetch(int zoom, int x, int y);
+
+        /**
+         * Says which tiles are about to be fetched, so a source can read them ahead together
+         */
+        default void prefetch(int zoom, int minX, int minY, int maxX, int maxY) {
+        }
+    }
+
+    /**
+     * Copies the composed tiles onto a canvas, composing any which haven't been
+     * @param canvas  A TYPE_INT_ARGB canvas whose top left is tile minX, minY
+     * @param zoom  Zoom level
+     * @param minX  The first tile across
+     * @param minY  The first tile down
+     * @param maxX  The last tile across
+     * @param maxY  The last tile down
+     * @param fetcher  Gets tiles which haven't been composed
+     * @return the nanoseconds spent waiting for tiles
+     */
+    long paint(BufferedImage canvas, int zoom, int minX, int minY, int maxX, int maxY, TileFetcher fetcher) {
+        if (canvas.getType() != BufferedImage.TYPE_INT_ARGB) {
+            throw new IllegalArgumentException("The canvas must be TYPE_INT_ARGB");
+        }
+        int[] pixels = ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData();
+        int stride = canvas.getWidth();
+        long waited = 0;
+        for (int rx = Math.floorDiv(minX, REGION_TILES); rx <= Math.floorDiv(maxX, REGION_TILES); rx++) {
+            for (int ry = Math.floorDiv(minY, REGION_TILES); ry <= Math.floorDiv(maxY, REGION_TILES); ry++) {
+                Region region = region(zoom, rx, ry);
+                int fromX = Math.max(minX, rx * REGION_TILES), toX = Math.min(maxX, rx * REGION_TILES + REGION_TILES - 1);
+                int fromY = Math.max(minY, ry * REGION_TILES), toY = Math.min(maxY, ry * REGION_TILES + REGION_TILES - 1);
+                waited += region.compose(zoom, fromX, fromY, toX, toY, fetcher);
+
+                //The overlap as pixel rows, from the region into the canvas
+                int width = (toX - fromX + 1) * TILE_SIZE;
+                int srcX = (fromX - rx * REGION_TILES) * TILE_SIZE, dstX = (fromX - minX) * TILE_SIZE;
+                int srcY = (fromY - ry * REGION_TILES) * TILE_SIZE, dstY = (fromY - minY) * TILE_SIZE;
+                for (int row = 0, rows = (toY - fromY + 1) * TILE_SIZE; row < rows; row++) {
+                    System.arraycopy(region.pixels, (srcY + row) * REGION_SIZE + srcX,
+                            pixels, (dstY + row) * stride + dstX, width);
+                }
+            }
+        }
+        return waited;
+    }
+
+    /**
+     * Orders areas so that those near each other, which share tiles, are rendered one after another
+     * @param area  An area
+     * @param zoom  The zoom it's rendered at
+     * @return the position along a Z-order curve of the region holding the centre of its bounds
+     */
+    static long order(Area area, int zoom) {
+        double[] b = area.getGeometry().computeBounds();
+        int[] tile = CoordinateUtils.toTileNumbers((b[0] + b[2]) / 2, (b[1] + b[3]) / 2, zoom);
+        int rx = Math.floorDiv(tile[0], REGION_TILES), ry = Math.floorDiv(tile[1], REGION_TILES);
+        long z = 0;
+        for (int bit = 0; bit < 29; bit++) {
+            z |= ((long) (rx >>> bit & 1) << (2 * bit)) | ((long) (ry >>> bit & 1) << (2 * bit + 1));
+        }
+        return ((long) zoom << 58) | z;
+    }
+
+    /**
+     * @return the region, created if it isn't held, which may drop others
+     */
+    private Region region(int zoom, int rx, int ry) {
+        long key = TileCache.key(zoom, rx, ry);
+        Region region = regions.get(key);
+        if (region == null) {
+            region = regions.computeIfAbsent(key, k -> new Region());
+            evict(region);
+        }
+        region.used = clock.incrementAndGet();
+        return region;
+    }
+
+    private synchronized void evict(Region keep) {
+        long perRegion = (long) REGION_SIZE * REGION_SIZE;
+        while ((long) regions.size() * perRegion > maxPixels && regions.size() > 1) {
+            Map.Entry<Long, Region> oldest = null;
+            for (Map.Entry<Long, Region> e : regions.entrySet()) {
+                if (e.getValue() != keep && (oldest == null || e.getValue().used < oldest.getValue().used)) {
+                    oldest = e;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            //A thread still copying from it keeps its reference until it's done
+            regions.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    /**
+     * @return the number of regions held
+     */
+    public int size() {
+        return regions.size();
+    }
+
+    /**
+     * Drops every region, e.g. once a batch is done
+     */
+    public void clear() {
+        regions.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "TileMosaic[regions=" + size() + ", pixels=" + (long) size() * REGION_SIZE * REGION_SIZE + "/" + maxPixels + "]";
+    }
+
+    /**
+     * REGION_TILES square tiles and which of them have been composed
+     */
+    private static final class Region {
+        final BufferedImage image = new BufferedImage(REGION_SIZE, REGION_SIZE, BufferedImage.TYPE_INT_ARGB);
+        final int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        final boolean[] composed = new boolean[REGION_TILES * REGION_TILES];
+        volatile long used;
+
+        /**
+         * Draws the tiles in the range which haven't been, as renderMap would on a canvas. Composed tiles are never
+         * drawn again, and taking the lock makes them visible to the copy which follows
+         * @return the nanoseconds spent waiting for tiles
+         */
+        synchronized long compose(int zoom, int fromX, int fromY, int toX, int toY, TileFetcher fetcher) {
+            int baseX = Math.floorDiv(fromX, REGION_TILES) * REGION_TILES;
+            int baseY = Math.floorDiv(fromY, REGION_TILES) * REGION_TILES;
+            List<int[]> missing = new ArrayList<>();
+            int minX = toX, minY = toY, maxX = fromX, maxY = fromY;
+            for (int x = fromX; x <= toX; x++) {
+                for (int y = fromY; y <= toY; y++) {
+                    if (!composed[(x - baseX) * REGION_TILES + (y - baseY)]) {
+                        missing.add(new int[]{x, y});
+                        minX = Math.min(minX, x);
+                        minY = Math.min(minY, y);
+                        maxX = Math.max(maxX, x);
+                        maxY = Math.max(maxY, y);
+                    }
+                }
+            }
+            if (missing.isEmpty()) {
+                return 0;
+            }
+            //Asked for together so they load in parallel
+            fetcher.prefetch(zoom, minX, minY, maxX, maxY);
+            List<CompletableFuture<BufferedImage>> tiles = new ArrayList<>(missing.size());
+            for (int[] tile : missing) {
+                tiles.add(fetcher.fetch(zoom, tile[0], tile[1]));
+            }
+            long waited = 0;
+            Graphics2D g = image.createGraphics();
+            try {
+                for (int i = 0; i < missing.size(); i++) {
+                    int x = missing.get(i)[0] - baseX, y = missing.get(i)[1] - baseY;
+                    long fetch = System.nanoTime();
+                    BufferedImage tile = MapRenderer.awaitTile(tiles.get(i));
+                    waited += System.nanoTime() - fetch;
+                    g.setPaint(MapRenderer.BACKGROUND);
+                    g.fillRect(x * TILE_SIZE, y * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+                    //A tile that didn't load is only background for now, and fetched again by the next area needing it
+                    if (tile != null) {
+                        g.drawImage(tile, x * TILE_SIZE, y * TILE_SIZE, null);
+                        composed[x * REGION_TILES + y] = true;
+                    }
+                }
+            } finally {
+                g.dispose();
+            }
+            return waited;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.cb;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Receives the tiles of an area from MapRenderer.renderTiles
+ */
+@FunctionalInterface
+public interface TileSink {
+    /**
+     * @param zoom  Zoom level
+     * @param x  The x tile number
+     * @param y  The y tile number
+     * @param tile  The tile, which is reused once this returns
+     * @throws IOException if the tile can't be stored
+     */
+    void accept(int zoom, int x, int y, BufferedImage tile) throws IOException;
+}
@@ -0,0 +1,105 @@
+package com.cb;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Somewhere base map tiles come from. Implementations are thread safe.
+ * Templates name tiles with {z}, {x} and {y}, e.g. {z}/{x}/{y}.png
+ */
+public interface TileSource extends TileLoader, Closeable {
+
+    /**
+     * Loads a tile without tying up the caller. The default loads it on a shared I/O pool
+     * @param zoom  Zoom level
+     * @param x  The x tile number
+     * @param y  The y tile number
+     * @return the decoded tile, or an IOException if it couldn't be loaded
+     */
+    default CompletableFuture<BufferedImage> loadAsync(int zoom, int x, int y) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return load(zoom, x, y);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, TileCache.IO);
+    }
+
+    /**
+     * Says the tiles in a range are about to be loaded, so a source can read them ahead in bulk.
+     * The default does nothing
+     * @param zoom  Zoom level
+     * @param minX  The first x tile number
+     * @param minY  The first y tile number
+     * @param maxX  The last x tile number
+     * @param maxY  The last y tile number
+     */
+    default void prefetch(int zoom, int minX, int minY, int maxX, int maxY) {
+    }
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    /**
+     * The tiles bundled in the jar, named /zoom-x-y.jpeg
+     */
+    static TileSource classpath() {
+        return classpath("/{z}-{x}-{y}.jpeg");
+    }
+
+    /**
+     * @param template  The resource name of a tile
+     */
+    static TileSource classpath(String template) {
+        return new BytesTileSource.Classpath(template);
+    }
+
+    /**
+     * @param root  The directory template is relative to
+     * @param template  The path of a tile, e.g. {z}/{x}/{y}.png
+     */
+    static TileSource directory(Path root, String template) {
+        return new BytesTileSource.Directory(root, template);
+    }
+
+    /**
+     * An MBTiles file, which needs an SQLite JDBC driver on the classpath
+     * @param file  The .mbtiles file
+     * @throws IOException if it can't be opened
+     */
+    static TileSource mbtiles(Path file) throws IOException {
+        return new BytesTileSource.MBTiles(file);
+    }
+
+    /**
+     * An XYZ tile server
+     * @param template  The URL of a tile, e.g. https://tiles.example.com/{z}/{x}/{y}.png
+     * @param maxConcurrent  The most requests in flight at once
+     */
+    static TileSource http(String template, int maxConcurrent) {
+        return new HttpTileSource(template, maxConcurrent);
+    }
+
+    /**
+     * Fills in a tile name template
+     */
+    static String expand(String template, int zoom, int x, int y) {
+        return template.replace("{z}", Integer.toString(zoom))
+                .replace("{x}", Integer.toString(x))
+                .replace("{y}", Integer.toString(y));
+    }
+
+    /**
+     * @return the URI of a tile
+     */
+    static URI uri(String template, int zoom, int x, int y) {
+        return URI.create(expand(template, zoom, x, y));
+    }
+}
@@ -0,0 +1,24 @@
+package com.cb;
+
+/**
+ * How VectorRenderer writes an area's overlays, the outline and curbs, for a client to draw itself
+ */
+public enum VectorFormat {
+    /** One SVG per area, the size of the canvas renderMap would draw */
+    SVG("svg"),
+    /** One compact JSON document per area, in the canvas's pixels */
+    JSON("json"),
+    /** Mapbox Vector Tiles, in z/x/y directories like raster tiles */
+    MVT("mvt");
+
+    private final String extension;
+
+    VectorFormat(String extension) {
+        this.extension = extension;
+    }
+
+    /** The file suffix, without the dot */
+    public String getExtension() {
+        return extension;
+    }
+}
@@ -0,0 +1,418 @@
+package com.cb;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes the overlays MapRenderer draws, the area's outline and its concatenated curbs, as vectors for a client
+ * to draw over base tiles itself. They're projected, concatenated and simplified as MapRenderer does, so line up
+ * with its images pixel for pixel, and are a few kilobytes rather than a canvas of ARGB.
+ */
+public class VectorRenderer {
+
+    private static final int TILE_SIZE = 256;
+    //Vector tile coordinates, 16 to a pixel
+    static final int EXTENT = 4096;
+    private static final int SCALE = EXTENT / TILE_SIZE;
+    //How far beyond its tile a line is kept so strokes meet across tile edges, 4 pixels
+    private static final int BUFFER = 4 * SCALE;
+
+    private volatile double tolerance = MapRenderer.DEFAULT_TOLERANCE;
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * @param tolerance  How far in pixels simplifying may move the outline and curbs, as MapRenderer.setTolerance
+     */
+    public void setTolerance(double tolerance) {
+        if (!(tolerance >= 0)) {
+            throw new IllegalArgumentException("tolerance must be at least 0: " + tolerance);
+        }
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * @param area  The Area object
+     * @param zoom  The chosen zoom level
+     * @param straight  Draw zones from start to end rather than point-to-point
+     * @param format  SVG or JSON, MVT is written by renderTiles
+     * @return the document
+     */
+    public byte[] render(Area area, int zoom, boolean straight, VectorFormat format) throws IOException {
+        Overlay overlay = overlay(area, zoom, straight);
+        switch (format) {
+            case SVG:
+                return svg(overlay);
+            case JSON:
+                return json(area, overlay);
+            default:
+                throw new IllegalArgumentException(format + " is written as tiles");
+        }
+    }
+
+    /**
+     * Writes the overlays as Mapbox Vector Tiles, with an outline and a curbs layer of line strings. Like
+     * MapRenderer.renderTiles only tiles the lines pass through are produced, in x then y order
+     * @param area  The Area object
+     * @param zoom  The chosen zoom level
+     * @param straight  Draw zones from start to end rather than point-to-point
+     * @param sink  Receives each tile
+     * @return the number of tiles produced
+     * @throws IOException if the sink fails
+     */
+    public int renderTiles(Area area, int zoom, boolean straight, VectorTileSink sink) throws IOException {
+        Overlay overlay = overlay(area, zoom, straight);
+        long start = System.nanoTime();
+        Map<Long, List<List<int[]>>> tiles = new TreeMap<>();
+        clip(overlay.outline, 0, tiles);
+        for (int[] curb : overlay.curbs) {
+            clip(curb, 1, tiles);
+        }
+        Metrics metrics = Metrics.global();
+        start = metrics.record(Metrics.Stage.DRAW, start);
+        for (Map.Entry<Long, List<List<int[]>>> tile : tiles.entrySet()) {
+            byte[] encoded = encodeTile(tile.getValue());
+            start = metrics.record(Metrics.Stage.ENCODE, start);
+            sink.accept(zoom, (int) (tile.getKey() >> 32), (int) (long) tile.getKey(), encoded);
+            start = System.nanoTime();
+        }
+        return tiles.size();
+    }
+
+    /**
+     * The overlays of an area in absolute pixels, with the tiles renderMap's canvas would span
+     */
+    static final class Overlay {
+        int zoom;
+        int[] outline;
+        List<int[]> curbs = new ArrayList<>();
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+
+        int width() {
+            return (maxX - minX + 1) * TILE_SIZE;
+        }
+
+        int height() {
+            return (maxY - minY + 1) * TILE_SIZE;
+        }
+
+        private void include(int[] points) {
+            for (int i = 0; i < points.length; i += 2) {
+                minX = Math.min(minX, points[i] >> 8);
+                maxX = Math.max(maxX, points[i] >> 8);
+                minY = Math.min(minY, points[i + 1] >> 8);
+                maxY = Math.max(maxY, points[i + 1] >> 8);
+            }
+        }
+    }
+
+    /**
+     * Projects and concatenates as MapRenderer does, simplifying the outline and any curbs which aren't straight
+     */
+    Overlay overlay(Area area, int zoom, boolean straight) {
+        Metrics metrics = Metrics.global();
+        long start = System.nanoTime();
+        Overlay overlay = new Overlay();
+        overlay.zoom = zoom;
+        Geometry polygon = area.getGeometry();
+        int[] outline = new int[polygon.getRingEnd(0) * 2];
+        CoordinateUtils.project(polygon.getCoordinates(), 0, polygon.getRingEnd(0), zoom, outline, null);
+        overlay.include(outline);
+        List<int[]> zonePoints = new ArrayList<>();
+        for (Zone zone : area.getCurbZones()) {
+            Geometry zoneGeometry = zone.getGeometry();
+            int[] points = new int[zoneGeometry.getVertexCount() * 2];
+            CoordinateUtils.project(zoneGeometry.getCoordinates(), 0, zoneGeometry.getVertexCount(), zoom, points, null);
+            overlay.include(points);
+            zonePoints.add(points);
+        }
+        overlay.outline = Simplifier.simplify(outline, tolerance);
+        start = metrics.record(Metrics.Stage.PROJECT, start);
+
+        for (int[] line : CurbAssembler.assemble(zonePoints)) {
+            if (straight) {
+                int last = line.length - 2;
+                overlay.curbs.add(new int[]{line[0], line[1], line[last], line[last + 1]});
+            } else {
+                overlay.curbs.add(Simplifier.simplify(line, tolerance));
+            }
+        }
+        metrics.record(Metrics.Stage.CONCATENATE, start);
+        return overlay;
+    }
+
+    /**
+     * An SVG the size of renderMap's canvas, in its pixels, with the strokes MapRenderer uses
+     */
+    byte[] svg(Overlay overlay) {
+        int originX = overlay.minX * TILE_SIZE, originY = overlay.minY * TILE_SIZE;
+        StringBuilder svg = new StringBuilder(256 + overlay.outline.length * 6);
+        svg.append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"").append(overlay.width())
+                .append("\" height=\"").append(overlay.height())
+                .append("\" viewBox=\"0 0 ").append(overlay.width()).append(' ').append(overlay.height()).append("\">\n");
+        //BasicStroke's defaults
+        svg.append("<g fill=\"none\" stroke-width=\"").append(MapRenderer.STROKE.getLineWidth())
+                .append("\" stroke-linecap=\"square\" stroke-linejoin=\"miter\">\n");
+        svg.append("<path stroke=\"").append(hex(MapRenderer.AREA_COLOR)).append("\" d=\"");
+        path(overlay.outline, originX, originY, svg);
+        svg.append("\"/>\n");
+        if (!overlay.curbs.isEmpty()) {
+            svg.append("<path stroke=\"").append(hex(MapRenderer.CURB_COLOR)).append("\" d=\"");
+            for (int[] curb : overlay.curbs) {
+                path(curb, originX, originY, svg);
+            }
+            svg.append("\"/>\n");
+        }
+        svg.append("</g>\n</svg>\n");
+        return svg.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void path(int[] points, int originX, int originY, StringBuilder d) {
+        for (int i = 0; i < points.length; i += 2) {
+            d.append(i == 0 ? 'M' : 'L').append(points[i] - originX).append(' ').append(points[i + 1] - originY);
+        }
+    }
+
+    private static String hex(Color c) {
+        return String.format("#%02x%02x%02x", c.getRed(), c.getGreen(), c.getBlue());
+    }
+
+    /**
+     * The area's id, its canvas as zoom, top left tile and size, and flat x/y arrays in the canvas's pixels
+     */
+    byte[] json(Area area, Overlay overlay) throws IOException {
+        int originX = overlay.minX * TILE_SIZE, originY = overlay.minY * TILE_SIZE;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + overlay.outline.length * 5);
+        try (JsonGenerator json = Json.FACTORY.createGenerator(bytes)) {
+            json.writeStartObject();
+            json.writeStringField("curb_area_id", area.getCurbAreaId());
+            json.writeNumberField("zoom", overlay.zoom);
+            json.writeNumberField("x", overlay.minX);
+            json.writeNumberField("y", overlay.minY);
+            json.writeNumberField("width", overlay.width());
+            json.writeNumberField("height", overlay.height());
+            json.writeFieldName("outline");
+            points(overlay.outline, originX, originY, json);
+            json.writeArrayFieldStart("curbs");
+            for (int[] curb : overlay.curbs) {
+                points(curb, originX, originY, json);
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void points(int[] points, int originX, int originY, JsonGenerator json) throws IOException {
+        json.writeStartArray();
+        for (int i = 0; i < points.length; i += 2) {
+            json.writeNumber(points[i] - originX);
+            json.writeNumber(points[i + 1] - originY);
+        }
+        json.writeEndArray();
+    }
+
+    /**
+     * Clips a line to each tile it passes within BUFFER of, adding the pieces to that tile's layer
+     * @param points  Absolute pixels
+     * @param layer  0 for the outline, 1 for curbs
+     * @param tiles  Each tile's layers, keyed by x then y
+     */
+    private static void clip(int[] points, int layer, Map<Long, List<List<int[]>>> tiles) {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < points.length; i += 2) {
+            minX = Math.min(minX, points[i]);
+            maxX = Math.max(maxX, points[i]);
+            minY = Math.min(minY, points[i + 1]);
+            maxY = Math.max(maxY, points[i + 1]);
+        }
+        int margin = BUFFER / SCALE;
+        for (int tx = (minX - margin) >> 8; tx <= (maxX + margin) >> 8; tx++) {
+            for (int ty = (minY - margin) >> 8; ty <= (maxY + margin) >> 8; ty++) {
+                List<int[]> pieces = clip(points, tx * TILE_SIZE, ty * TILE_SIZE);
+                if (!pieces.isEmpty()) {
+                    List<List<int[]>> layers = tiles.computeIfAbsent(((long) tx << 32) | ty,
+                            k -> List.of(new ArrayList<>(), new ArrayList<>()));
+                    layers.get(layer).addAll(pieces);
+                }
+            }
+        }
+    }
+
+    /**
+     * Liang-Barsky clips each segment to a tile and its buffer, joining segments which stay inside
+     * @param originX  The tile's left in pixels
+     * @param originY  The tile's top in pixels
+     * @return the pieces in tile coordinates, each with at least two distinct points
+     */
+    static List<int[]> clip(int[] points, int originX, int originY) {
+        List<int[]> pieces = new ArrayList<>();
+        IntList piece = new IntList();
+        double min = -BUFFER, max = EXTENT + BUFFER;
+        for (int i = 2; i < points.length; i += 2) {
+            double x0 = (points[i - 2] - originX) * (double) SCALE, y0 = (points[i - 1] - originY) * (double) SCALE;
+            double dx = (points[i] - originX) * (double) SCALE - x0, dy = (points[i + 1] - originY) * (double) SCALE - y0;
+            double[] t = {0, 1};
+            if (!(clipEdge(-dx, x0 - min, t) && clipEdge(dx, max - x0, t)
+                    && clipEdge(-dy, y0 - min, t) && clipEdge(dy, max - y0, t))) {
+                finish(piece, pieces);
+                continue;
+            }
+            if (t[0] > 0) {
+                //Entering, so not joined to what came before
+                finish(piece, pieces);
+            }
+            piece.add((int) Math.round(x0 + t[0] * dx), (int) Math.round(y0 + t[0] * dy));
+            piece.add((int) Math.round(x0 + t[1] * dx), (int) Math.round(y0 + t[1] * dy));
+            if (t[1] < 1) {
+                finish(piece, pieces);
+            }
+        }
+        finish(piece, pieces);
+        return pieces;
+    }
+
+    /**
+     * Narrows t to the part of a segment on the inside of one edge
+     * @return false if none of it is
+     */
+    private static boolean clipEdge(double p, double q, double[] t) {
+        if (p == 0) {
+            return q >= 0;
+        }
+        double r = q / p;
+        if (p < 0) {
+            if (r > t[1]) {
+                return false;
+            }
+            t[0] = Math.max(t[0], r);
+        } else {
+            if (r < t[0]) {
+                return false;
+            }
+            t[1] = Math.min(t[1], r);
+        }
+        return true;
+    }
+
+    private static void finish(IntList piece, List<int[]> pieces) {
+        if (piece.size > 0) {
+            int[] deduped = Simplifier.dedupe(piece.toArray());
+            if (deduped.length >= 4) {
+                pieces.add(deduped);
+            }
+            piece.size = 0;
+        }
+    }
+
+    /**
+     * Encodes a vector tile, version 2, of line string features
+     * @param layers  The outline's pieces then the curbs'
+     */
+    static byte[] encodeTile(List<List<int[]>> layers) {
+        Protobuf tile = new Protobuf();
+        String[] names = {"outline", "curbs"};
+        for (int l = 0; l < layers.size(); l++) {
+            if (layers.get(l).isEmpty()) {
+                continue;
+            }
+            Protobuf layer = new Protobuf();
+            layer.varintField(15, 2);
+            layer.bytesField(1, names[l].getBytes(StandardCharsets.UTF_8));
+            for (int[] line : layers.get(l)) {
+                Protobuf feature = new Protobuf();
+                //LINESTRING
+                feature.varintField(3, 2);
+                feature.bytesField(4, geometry(line));
+                layer.bytesField(2, feature.toByteArray());
+            }
+            layer.varintField(5, EXTENT);
+            tile.bytesField(3, layer.toByteArray());
+        }
+        return tile.toByteArray();
+    }
+
+    /**
+     * A MoveTo then a LineTo of the rest, as zigzag deltas, packed
+     */
+    private static byte[] geometry(int[] line) {
+        Protobuf geometry = new Protobuf();
+        int n = line.length / 2;
+        geometry.varint(command(1, 1));
+        geometry.varint(zigzag(line[0]));
+        geometry.varint(zigzag(line[1]));
+        geometry.varint(command(2, n - 1));
+        for (int i = 2; i < line.length; i += 2) {
+            geometry.varint(zigzag(line[i] - line[i - 2]));
+            geometry.varint(zigzag(line[i + 1] - line[i - 1]));
+        }
+        return geometry.toByteArray();
+    }
+
+    private static int command(int id, int count) {
+        return (id & 7) | (count << 3);
+    }
+
+    private static long zigzag(int n) {
+        return ((n << 1) ^ (n >> 31)) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Just enough of the protobuf wire format for vector tiles
+     */
+    private static final class Protobuf extends ByteArrayOutputStream {
+        void varint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void varintField(int field, long value) {
+            varint((long) field << 3);
+            varint(value);
+        }
+
+        void bytesField(int field, byte[] bytes) {
+            varint((long) field << 3 | 2);
+            varint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * A growable array of x/y pairs
+     */
+    private static final class IntList {
+        int[] data = new int[16];
+        int size;
+
+        void add(int x, int y) {
+            //A joined segment starts where the last ended
+            if (size >= 2 && data[size - 2] == x && data[size - 1] == y) {
+                return;
+            }
+            if (size + 2 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size++] = x;
+            data[size++] = y;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.cb;
+
+import java.io.IOException;
+
+/**
+ * Receives the vector tiles of an area from VectorRenderer.renderTiles
+ */
+@FunctionalInterface
+public interface VectorTileSink {
+    /**
+     * @param zoom  Zoom level
+     * @param x  The x tile number
+     * @param y  The y tile number
+     * @param tile  The encoded tile
+     * @throws IOException if the tile can't be stored
+     */
+    void accept(int zoom, int x, int y, byte[] tile) throws IOException;
+}
@@ -45,37 +45,78 @@ public class Zone {
     @JsonProperty("num_spaces")
     private int numSpaces;
 
+    public Zone() {
+    }
+
+    /**
+     * Used when zones are loaded from somewhere other than JSON, e.g. a ZoneSnapshot
+     */
+    Zone(String curbZoneId, Geometry geometry, long publishedDate, long lastUpdatedDate, long startDate,
+         List<Map<String, Object>> locationReferences, String streetName, String crossStreetStartName,
+         String crossStreetEndName, List<String> curbPolicyIds, String parkingAngle, int numSpaces) {
+        this.curbZoneId = curbZoneId;
+        this.geometry = geometry;
+        this.publishedDate = publishedDate;
+        this.lastUpdatedDate = lastUpdatedDate;
+        this.startDate = startDate;
+        this.locationReferences = locationReferences;
+        this.streetName = streetName;
+        this.crossStreetStartName = crossStreetStartName;
+        this.crossStreetEndName = crossStreetEndName;
+        this.curbPolicyIds = curbPolicyIds;
+        this.parkingAngle = parkingAngle;
+        this.numSpaces = numSpaces;
+    }
+
     public String getCurbZoneId() {
         return curbZoneId;
     }
 
-    public Geometry getGeometry() {
-        return geometry;
+    public long getPublishedDate() {
+        return publishedDate;
     }
 
-    public void setGeometry(Geometry geometry) {
-        this.geometry = geometry;
+    public long getLastUpdatedDate() {
+        return lastUpdatedDate;
+    }
+
+    public long getStartDate() {
+        return startDate;
+    }
+
+    public List<Map<String, Object>> getLocationReferences() {
+        return locationReferences;
     }
 
-    public static class Geometry {
-        private String type;
-        private List<List<Double>> coordinates;
+    public String getStreetName() {
+        return streetName;
+    }
 
-        public String getType() {
-            return type;
-        }
+    public String getCrossStreetStartName() {
+        return crossStreetStartName;
+    }
 
-        public void setType(String type) {
-            this.type = type;
-        }
+    public String getCrossStreetEndName() {
+        return crossStreetEndName;
+    }
 
-        public List<List<Double>> getCoordinates() {
-            return coordinates;
-        }
+    public List<String> getCurbPolicyIds() {
+        return curbPolicyIds;
+    }
 
-        public void setCoordinates(List<List<Double>> coordinates) {
-            this.coordinates = coordinates;
-        }
+    public String getParkingAngle() {
+        return parkingAngle;
     }
 
+    public int getNumSpaces() {
+        return numSpaces;
+    }
+
+    public Geometry getGeometry() {
+        return geometry;
+    }
+
+    public void setGeometry(Geometry geometry) {
+        this.geometry = geometry;
+    }
 }
@@ -0,0 +1,9 @@
+package com.cb;
+
+/**
+ * Receives each zone as it's parsed or loaded
+ */
+@FunctionalInterface
+interface ZoneConsumer {
+    void accept(Zone zone);
+}
@@ -0,0 +1,314 @@
+package com.cb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A static packed Hilbert R-tree over the bounding boxes of zones. Zones are sorted along a Hilbert curve
+ * through their box centres and packed NODE_SIZE to a node, level by level, so the whole tree is a
+ * couple of flat arrays and a query only visits nodes whose boxes overlap it.
+ */
+public class ZoneIndex {
+
+    private static final int NODE_SIZE = 16;
+
+    private final Zone[] zones;
+    //minLon, minLat, maxLon, maxLat per node, leaves first then each level up to the root
+    private final double[] boxes;
+    //For a leaf the zone it holds, for an inner node the index of its first child
+    private final int[] children;
+    //The end node index of each level, leaves are level 0
+    private final int[] levelEnds;
+
+    /**
+     * Collects zones, typically from ZoneProcessor.processZones, before packing them into an index
+     */
+    public static class Builder implements ZoneConsumer {
+        private final List<Zone> zones = new ArrayList<>();
+        private double[] boxes = new double[64];
+
+        @Override
+        public void accept(Zone zone) {
+            add(zone);
+        }
+
+        /**
+         * @param zone  A zone, those without any vertices are ignored
+         */
+        public void add(Zone zone) {
+            double[] bounds = zone.getGeometry().computeBounds();
+            if (Double.isNaN(bounds[0])) {
+                return;
+            }
+            int n = zones.size();
+            if ((n + 1) * 4 > boxes.length) {
+                boxes = Arrays.copyOf(boxes, boxes.length * 2);
+            }
+            System.arraycopy(bounds, 0, boxes, n * 4, 4);
+            zones.add(zone);
+        }
+
+        public ZoneIndex build() {
+            return new ZoneIndex(zones.toArray(new Zone[0]), boxes);
+        }
+    }
+
+    private ZoneIndex(Zone[] items, double[] itemBoxes) {
+        int n = items.length;
+
+        //Work out how many nodes each level needs
+        List<Integer> ends = new ArrayList<>();
+        int nodes = n;
+        ends.add(nodes);
+        for (int count = n; count > 1; ) {
+            count = (count + NODE_SIZE - 1) / NODE_SIZE;
+            nodes += count;
+            ends.add(nodes);
+        }
+        levelEnds = ends.stream().mapToInt(Integer::intValue).toArray();
+        boxes = new double[nodes * 4];
+        children = new int[nodes];
+        zones = items;
+
+        //Sort the leaves along the Hilbert curve, scaled over the extent of everything
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            minX = Math.min(minX, itemBoxes[i * 4]);
+            minY = Math.min(minY, itemBoxes[i * 4 + 1]);
+            maxX = Math.max(maxX, itemBoxes[i * 4 + 2]);
+            maxY = Math.max(maxY, itemBoxes[i * 4 + 3]);
+        }
+        double width = Math.max(maxX - minX, Double.MIN_VALUE), height = Math.max(maxY - minY, Double.MIN_VALUE);
+        long[] order = new long[n];
+        for (int i = 0; i < n; i++) {
+            int x = (int) (0xFFFF * ((itemBoxes[i * 4] + itemBoxes[i * 4 + 2]) / 2 - minX) / width);
+            int y = (int) (0xFFFF * ((itemBoxes[i * 4 + 1] + itemBoxes[i * 4 + 3]) / 2 - minY) / height);
+            //32 bits of curve position above 31 bits of item keeps the key positive
+            order[i] = (hilbert(x, y) << 31) | i;
+        }
+        Arrays.sort(order);
+        for (int i = 0; i < n; i++) {
+            int item = (int) (order[i] & Integer.MAX_VALUE);
+            System.arraycopy(itemBoxes, item * 4, boxes, i * 4, 4);
+            children[i] = item;
+        }
+
+        //Pack each level into the one above
+        int pos = 0;
+        int parent = n;
+        for (int level = 0; level < levelEnds.length - 1; level++) {
+            int end = levelEnds[level];
+            while (pos < end) {
+                int first = pos;
+                double nodeMinX = Double.POSITIVE_INFINITY, nodeMinY = Double.POSITIVE_INFINITY;
+                double nodeMaxX = Double.NEGATIVE_INFINITY, nodeMaxY = Double.NEGATIVE_INFINITY;
+                for (int i = 0; i < NODE_SIZE && pos < end; i++, pos++) {
+                    nodeMinX = Math.min(nodeMinX, boxes[pos * 4]);
+                    nodeMinY = Math.min(nodeMinY, boxes[pos * 4 + 1]);
+                    nodeMaxX = Math.max(nodeMaxX, boxes[pos * 4 + 2]);
+                    nodeMaxY = Math.max(nodeMaxY, boxes[pos * 4 + 3]);
+                }
+                boxes[parent * 4] = nodeMinX;
+                boxes[parent * 4 + 1] = nodeMinY;
+                boxes[parent * 4 + 2] = nodeMaxX;
+                boxes[parent * 4 + 3] = nodeMaxY;
+                children[parent] = first;
+                parent++;
+            }
+        }
+    }
+
+    public int size() {
+        return zones.length;
+    }
+
+    /**
+     * Finds the zones whose bounding boxes intersect a box
+     * @param minLon  West edge
+     * @param minLat  South edge
+     * @param maxLon  East edge
+     * @param maxLat  North edge
+     * @param consumer  Receives each zone found
+     */
+    public void search(double minLon, double minLat, double maxLon, double maxLat, Consumer<Zone> consumer) {
+        if (zones.length == 0) {
+            return;
+        }
+        //Pairs of node index and level still to visit
+        int[] stack = new int[64];
+        int top = 0;
+        int node = levelEnds[levelEnds.length - 1] - 1;
+        int level = levelEnds.length - 1;
+        while (true) {
+            //The root is visited as a single node, everything else as a run of siblings
+            int end = level == levelEnds.length - 1 ? node + 1 : Math.min(node + NODE_SIZE, levelEnds[level]);
+            for (int pos = node; pos < end; pos++) {
+                if (maxLon < boxes[pos * 4] || maxLat < boxes[pos * 4 + 1]
+                        || minLon > boxes[pos * 4 + 2] || minLat > boxes[pos * 4 + 3]) {
+                    continue;
+                }
+                if (level == 0) {
+                    consumer.accept(zones[children[pos]]);
+                } else {
+                    if (top + 2 > stack.length) {
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    }
+                    stack[top++] = children[pos];
+                    stack[top++] = level - 1;
+                }
+            }
+            if (top == 0) {
+                return;
+            }
+            level = stack[--top];
+            node = stack[--top];
+        }
+    }
+
+    /**
+     * @return the zones whose bounding boxes intersect the box
+     */
+    public List<Zone> search(double minLon, double minLat, double maxLon, double maxLat) {
+        List<Zone> result = new ArrayList<>();
+        search(minLon, minLat, maxLon, maxLat, result::add);
+        return result;
+    }
+
+    /**
+     * Finds the zones which actually touch a polygon, those crossing its boundary or lying within it.
+     * Every ring is used so zones inside a hole don't count.
+     * @param polygon  The polygon, e.g. an area's geometry
+     * @return the zones in the order they're held in the index
+     */
+    public List<Zone> intersecting(Geometry polygon) {
+        double[] b = polygon.computeBounds();
+        List<Zone> result = new ArrayList<>();
+        if (Double.isNaN(b[0])) {
+            return result;
+        }
+        search(b[0], b[1], b[2], b[3], zone -> {
+            if (intersects(polygon, zone.getGeometry())) {
+                result.add(zone);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return true if any vertex of the line is inside the polygon or any of its segments cross the polygon's edges
+     */
+    static boolean intersects(Geometry polygon, Geometry line) {
+        double[] p = polygon.getCoordinates();
+        double[] l = line.getCoordinates();
+        for (int i = 0; i < l.length; i += 2) {
+            if (contains(polygon, l[i], l[i + 1])) {
+                return true;
+            }
+        }
+        for (int r = 0; r < line.getRingCount(); r++) {
+            for (int i = line.getRingStart(r); i < line.getRingEnd(r) - 1; i++) {
+                for (int ring = 0; ring < polygon.getRingCount(); ring++) {
+                    for (int j = polygon.getRingStart(ring); j < polygon.getRingEnd(ring) - 1; j++) {
+                        if (segmentsIntersect(l[i * 2], l[i * 2 + 1], l[i * 2 + 2], l[i * 2 + 3],
+                                p[j * 2], p[j * 2 + 1], p[j * 2 + 2], p[j * 2 + 3])) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Even-odd point in polygon over all of the rings
+     */
+    static boolean contains(Geometry polygon, double x, double y) {
+        double[] p = polygon.getCoordinates();
+        boolean inside = false;
+        for (int ring = 0; ring < polygon.getRingCount(); ring++) {
+            int start = polygon.getRingStart(ring), end = polygon.getRingEnd(ring);
+            for (int i = start, j = end - 1; i < end; j = i++) {
+                double xi = p[i * 2], yi = p[i * 2 + 1], xj = p[j * 2], yj = p[j * 2 + 1];
+                if ((yi > y) != (yj > y) && x < (xj - xi) * (y - yi) / (yj - yi) + xi) {
+                    inside = !inside;
+                }
+            }
+        }
+        return inside;
+    }
+
+    private static boolean segmentsIntersect(double ax, double ay, double bx, double by,
+                                             double cx, double cy, double dx, double dy) {
+        double d1 = cross(cx, cy, dx, dy, ax, ay);
+        double d2 = cross(cx, cy, dx, dy, bx, by);
+        double d3 = cross(ax, ay, bx, by, cx, cy);
+        double d4 = cross(ax, ay, bx, by, dx, dy);
+        if (((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0)) && ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0))) {
+            return true;
+        }
+        //Touching or collinear
+        return (d1 == 0 && onSegment(cx, cy, dx, dy, ax, ay)) || (d2 == 0 && onSegment(cx, cy, dx, dy, bx, by))
+                || (d3 == 0 && onSegment(ax, ay, bx, by, cx, cy)) || (d4 == 0 && onSegment(ax, ay, bx, by, dx, dy));
+    }
+
+    private static double cross(double ax, double ay, double bx, double by, double px, double py) {
+        return (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+    }
+
+    private static boolean onSegment(double ax, double ay, double bx, double by, double px, double py) {
+        return Math.min(ax, bx) <= px && px <= Math.max(ax, bx) && Math.min(ay, by) <= py && py <= Math.max(ay, by);
+    }
+
+    /**
+     * The position of x,y along a Hilbert curve filling a 65536x65536 grid, after Flatbush
+     */
+    static long hilbert(int x, int y) {
+        int a = x ^ y;
+        int b = 0xFFFF ^ a;
+        int c = 0xFFFF ^ (x | y);
+        int d = x & (y ^ 0xFFFF);
+
+        int A = a | (b >> 1);
+        int B = (a >> 1) ^ a;
+        int C = ((c >> 1) ^ (b & (d >> 1))) ^ c;
+        int D = ((a & (c >> 1)) ^ (d >> 1)) ^ d;
+
+        a = A; b = B; c = C; d = D;
+        A = ((a & (a >> 2)) ^ (b & (b >> 2)));
+        B = ((a & (b >> 2)) ^ (b & ((a ^ b) >> 2)));
+        C ^= ((a & (c >> 2)) ^ (b & (d >> 2)));
+        D ^= ((b & (c >> 2)) ^ ((a ^ b) & (d >> 2)));
+
+        a = A; b = B; c = C; d = D;
+        A = ((a & (a >> 4)) ^ (b & (b >> 4)));
+        B = ((a & (b >> 4)) ^ (b & ((a ^ b) >> 4)));
+        C ^= ((a & (c >> 4)) ^ (b & (d >> 4)));
+        D ^= ((b & (c >> 4)) ^ ((a ^ b) & (d >> 4)));
+
+        a = A; b = B; c = C; d = D;
+        C ^= ((a & (c >> 8)) ^ (b & (d >> 8)));
+        D ^= ((b & (c >> 8)) ^ ((a ^ b) & (d >> 8)));
+
+        a = C ^ (C >> 1);
+        b = D ^ (D >> 1);
+
+        int i0 = x ^ y;
+        int i1 = b | (0xFFFF ^ (i0 | a));
+
+        i0 = (i0 | (i0 << 8)) & 0x00FF00FF;
+        i0 = (i0 | (i0 << 4)) & 0x0F0F0F0F;
+        i0 = (i0 | (i0 << 2)) & 0x33333333;
+        i0 = (i0 | (i0 << 1)) & 0x55555555;
+
+        i1 = (i1 | (i1 << 8)) & 0x00FF00FF;
+        i1 = (i1 | (i1 << 4)) & 0x0F0F0F0F;
+        i1 = (i1 | (i1 << 2)) & 0x33333333;
+        i1 = (i1 | (i1 << 1)) & 0x55555555;
+
+        return ((i1 << 1) | i0) & 0xFFFFFFFFL;
+    }
+}
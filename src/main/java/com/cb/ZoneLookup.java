@@ -0,0 +1,13 @@
+package com.cb;
+
+/**
+ * Finds zones by id. A Map's get fits, e.g. zonesMap::get, as does a ZoneStore.
+ */
+@FunctionalInterface
+public interface ZoneLookup {
+    /**
+     * @param curbZoneId  The id
+     * @return the zone, or null if there isn't one
+     */
+    Zone get(String curbZoneId);
+}
@@ -1,11 +1,12 @@
 package com.cb;
 
-import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Deals with parsing zones from the stream by deserializing the json
@@ -18,13 +19,10 @@ public class ZoneProcessor {
      * @throws Exception
      */
     public static void processZones(InputStream in, ZoneConsumer consumer) throws Exception {
-        ObjectMapper objectMapper = new ObjectMapper();
-        JsonFactory factory = objectMapper.getFactory();
-
-        try (JsonParser parser = factory.createParser(in)) {
+        try (JsonParser parser = Json.FACTORY.createParser(in)) {
 
             while (parser.nextToken() != null) {
-                String fieldName = parser.getCurrentName();
+                String fieldName = parser.currentName();
                 if ("zones".equals(fieldName)) {
                     parser.nextToken();
                     break;
@@ -32,16 +30,73 @@ public class ZoneProcessor {
             }
 
             if (parser.currentToken() == JsonToken.START_ARRAY) {
+                Metrics metrics = Metrics.global();
                 while (parser.nextToken() == JsonToken.START_OBJECT) {
-                    Zone zone = objectMapper.readValue(parser, Zone.class);
+                    long start = System.nanoTime();
+                    Zone zone = Json.ZONE_READER.readValue(parser);
+                    metrics.record(Metrics.Stage.PARSE_ZONE, start);
                     consumer.accept(zone);
                 }
             }
         }
     }
-}
 
-@FunctionalInterface
-interface ZoneConsumer {
-    void accept(Zone zone);
+    /**
+     * Parses zones in parallel, deserializing chunks of the file on a pool
+     * @param zones  GeoJSON of zones
+     * @param pool  Deserializes the zones
+     * @param ordered  Pass zones to the consumer in file order rather than as they're ready
+     * @param consumer  Consumer callback, called on the calling thread
+     * @throws Exception
+     */
+    public static void processZones(MappedFile zones, ForkJoinPool pool, boolean ordered, ZoneConsumer consumer)
+            throws Exception {
+        ChunkedJson.<Zone>parse(zones, "zones", Json.ZONE_READER, Metrics.Stage.PARSE_ZONE, zone -> zone,
+                pool, ordered, consumer::accept);
+    }
+
+    /**
+     * Streams zones reading only their ids, geometries and dates. Their other attributes are decoded from the
+     * file when first asked for, which needs the file to stay as it is while the zones are in use
+     * @param zones  GeoJSON of zones
+     * @param consumer  Consumer callback
+     * @throws Exception
+     */
+    public static void processZonesLean(MappedFile zones, ZoneConsumer consumer) throws Exception {
+        Map<String, String> strings = new ConcurrentHashMap<>();
+        try (JsonParser parser = Json.FACTORY.createParser(zones.stream())) {
+
+            while (parser.nextToken() != null) {
+                if ("zones".equals(parser.currentName())) {
+                    parser.nextToken();
+                    break;
+                }
+            }
+
+            if (parser.currentToken() == JsonToken.START_ARRAY) {
+                Metrics metrics = Metrics.global();
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    long start = System.nanoTime();
+                    Zone zone = LeanZone.read(parser, zones, 0, strings);
+                    metrics.record(Metrics.Stage.PARSE_ZONE, start);
+                    consumer.accept(zone);
+                }
+            }
+        }
+    }
+
+    /**
+     * As above, reading chunks of the file in parallel on a pool
+     * @param zones  GeoJSON of zones
+     * @param pool  Reads the zones
+     * @param ordered  Pass zones to the consumer in file order rather than as they're ready
+     * @param consumer  Consumer callback, called on the calling thread
+     * @throws Exception
+     */
+    public static void processZonesLean(MappedFile zones, ForkJoinPool pool, boolean ordered, ZoneConsumer consumer)
+            throws Exception {
+        Map<String, String> strings = new ConcurrentHashMap<>();
+        ChunkedJson.<Zone>parse(zones, "zones", (parser, position) -> LeanZone.read(parser, zones, position, strings),
+                Metrics.Stage.PARSE_ZONE, zone -> zone, pool, ordered, consumer::accept);
+    }
 }
@@ -0,0 +1,13 @@
+package com.cb;
+
+/**
+ * How AreaProcessor finds the zones belonging to an area
+ */
+public enum ZoneResolution {
+    /** Only the zones listed in curb_zone_ids */
+    IDS,
+    /** Only the zones a ZoneIndex finds touching the area's polygon */
+    SPATIAL,
+    /** The listed zones, topped up from a ZoneIndex when the list is missing or has ids which don't resolve */
+    IDS_THEN_SPATIAL
+}
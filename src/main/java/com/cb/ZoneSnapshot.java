@@ -0,0 +1,463 @@
+package com.cb;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * A binary snapshot of a parsed zone set, so warm restarts can skip the JSON parse.
+ * <p>
+ * The layout is columnar: one section per attribute holding that attribute for every zone, with strings
+ * interned into a single table and referred to by index, and the geometries as flat ring offset and
+ * coordinate arrays. A footer records where each section is along with the size, modification time and
+ * CRC32C of the zones.json it was made from, which decide whether the snapshot is still current.
+ * Each section is mapped and bulk copied into arrays, so loading is dominated by creating the Zone objects.
+ * <p>
+ * A single section is limited to 2GB, about 130 million vertices.
+ */
+public final class ZoneSnapshot {
+
+    static final int MAGIC = 0x43575A53; // CWZS
+    static final int VERSION = 1;
+
+    //Sections in file order
+    static final int STRING_OFFSETS = 0, STRING_BYTES = 1, IDS = 2, PUBLISHED = 3, LAST_UPDATED = 4, START = 5,
+            STREET = 6, CROSS_START = 7, CROSS_END = 8, PARKING_ANGLE = 9, NUM_SPACES = 10, LOCATION_REFERENCES = 11,
+            POLICY_COUNTS = 12, POLICIES = 13, GEOMETRY_TYPES = 14, RING_STARTS = 15, RINGS = 16, VERTEX_STARTS = 17,
+            COORDINATES = 18, SECTIONS = 19;
+
+    //magic, version, source size, mtime, hash, zones, strings, section count, sections, footer size, magic
+    private static final int FOOTER_SIZE = 4 + 4 + 8 + 8 + 8 + 4 + 4 + 4 + SECTIONS * 16 + 4 + 4;
+
+    private static final int NULL = -1;
+
+    private ZoneSnapshot() {
+    }
+
+    /**
+     * @param source  A zones.json
+     * @return where its snapshot is kept, alongside it
+     */
+    public static Path pathFor(Path source) {
+        return source.resolveSibling(source.getFileName() + ".cwz");
+    }
+
+    /**
+     * Writes a snapshot of zones parsed from source as it is now
+     * @see #write(Collection, Path, long, long, Path)
+     */
+    public static void write(Collection<Zone> zones, Path source, Path snapshot) throws IOException {
+        write(zones, source, Files.size(source), Files.getLastModifiedTime(source).toMillis(), snapshot);
+    }
+
+    /**
+     * Writes a snapshot of zones parsed from source. It's written to a temporary file and moved into place
+     * so a reader never sees a partial snapshot.
+     * @param zones  The zones
+     * @param source  The file they were parsed from
+     * @param size  The size of source, taken before it was parsed
+     * @param modified  Its modification time in milliseconds, taken before it was parsed
+     * @param snapshot  Where to write the snapshot
+     * @throws IOException if it can't be written, or source has changed since size and modified were taken
+     */
+    public static void write(Collection<Zone> zones, Path source, long size, long modified, Path snapshot) throws IOException {
+        //Hashed before checking, so the hash is of the file the zones came from unless the check fails
+        long hash = hash(source);
+        if (Files.size(source) != size || Files.getLastModifiedTime(source).toMillis() != modified) {
+            throw new IOException(source + " changed while its zones were parsed");
+        }
+
+        int n = zones.size();
+        Map<String, Integer> strings = new HashMap<>();
+        List<String> table = new ArrayList<>();
+
+        int[] ids = new int[n], street = new int[n], crossStart = new int[n], crossEnd = new int[n];
+        int[] parkingAngle = new int[n], numSpaces = new int[n], locationReferences = new int[n], types = new int[n];
+        long[] published = new long[n], lastUpdated = new long[n], start = new long[n];
+        int[] policyCounts = new int[n], ringStarts = new int[n + 1];
+        long[] vertexStarts = new long[n + 1];
+        int policyCount = 0, ringCount = 0;
+
+        int i = 0;
+        for (Zone zone : zones) {
+            ids[i] = intern(zone.getCurbZoneId(), strings, table);
+            published[i] = zone.getPublishedDate();
+            lastUpdated[i] = zone.getLastUpdatedDate();
+            start[i] = zone.getStartDate();
+            street[i] = intern(zone.getStreetName(), strings, table);
+            crossStart[i] = intern(zone.getCrossStreetStartName(), strings, table);
+            crossEnd[i] = intern(zone.getCrossStreetEndName(), strings, table);
+            parkingAngle[i] = intern(zone.getParkingAngle(), strings, table);
+            numSpaces[i] = zone.getNumSpaces();
+            locationReferences[i] = zone.getLocationReferences() == null ? NULL
+                    : intern(Json.MAPPER.writeValueAsString(zone.getLocationReferences()), strings, table);
+            //-1 tells a null list from an empty one
+            policyCounts[i] = zone.getCurbPolicyIds() == null ? NULL : zone.getCurbPolicyIds().size();
+            policyCount += Math.max(0, policyCounts[i]);
+            Geometry geometry = zone.getGeometry();
+            types[i] = intern(geometry.getType(), strings, table);
+            ringCount += geometry.getRingCount() + 1;
+            ringStarts[i + 1] = ringCount;
+            vertexStarts[i + 1] = vertexStarts[i] + geometry.getVertexCount();
+            i++;
+        }
+
+        int[] policies = new int[policyCount];
+        int[] rings = new int[ringCount];
+        i = 0;
+        int p = 0;
+        for (Zone zone : zones) {
+            if (zone.getCurbPolicyIds() != null) {
+                for (String policy : zone.getCurbPolicyIds()) {
+                    policies[p++] = intern(policy, strings, table);
+                }
+            }
+            Geometry geometry = zone.getGeometry();
+            for (int r = 0; r <= geometry.getRingCount(); r++) {
+                rings[ringStarts[i] + r] = r < geometry.getRingCount() ? geometry.getRingStart(r) : geometry.getVertexCount();
+            }
+            i++;
+        }
+
+        int[] stringOffsets = new int[table.size() + 1];
+        byte[][] encoded = new byte[table.size()][];
+        for (int s = 0; s < table.size(); s++) {
+            encoded[s] = table.get(s).getBytes(StandardCharsets.UTF_8);
+            stringOffsets[s + 1] = stringOffsets[s] + encoded[s].length;
+        }
+
+        //A temporary file of its own, as several processes sharing zones.json may write the snapshot at once
+        Path temp = Files.createTempFile(snapshot.toAbsolutePath().getParent(), snapshot.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            Writer out = new Writer(channel);
+            long[] sections = new long[SECTIONS * 2];
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+
+            out.begin(sections, STRING_OFFSETS).putInts(stringOffsets).end(sections, STRING_OFFSETS);
+            out.begin(sections, STRING_BYTES);
+            for (byte[] bytes : encoded) {
+                out.putBytes(bytes);
+            }
+            out.end(sections, STRING_BYTES);
+            out.begin(sections, IDS).putInts(ids).end(sections, IDS);
+            out.begin(sections, PUBLISHED).putLongs(published).end(sections, PUBLISHED);
+            out.begin(sections, LAST_UPDATED).putLongs(lastUpdated).end(sections, LAST_UPDATED);
+            out.begin(sections, START).putLongs(start).end(sections, START);
+            out.begin(sections, STREET).putInts(street).end(sections, STREET);
+            out.begin(sections, CROSS_START).putInts(crossStart).end(sections, CROSS_START);
+            out.begin(sections, CROSS_END).putInts(crossEnd).end(sections, CROSS_END);
+            out.begin(sections, PARKING_ANGLE).putInts(parkingAngle).end(sections, PARKING_ANGLE);
+            out.begin(sections, NUM_SPACES).putInts(numSpaces).end(sections, NUM_SPACES);
+            out.begin(sections, LOCATION_REFERENCES).putInts(locationReferences).end(sections, LOCATION_REFERENCES);
+            out.begin(sections, POLICY_COUNTS).putInts(policyCounts).end(sections, POLICY_COUNTS);
+            out.begin(sections, POLICIES).putInts(policies).end(sections, POLICIES);
+            out.begin(sections, GEOMETRY_TYPES).putInts(types).end(sections, GEOMETRY_TYPES);
+            out.begin(sections, RING_STARTS).putInts(ringStarts).end(sections, RING_STARTS);
+            out.begin(sections, RINGS).putInts(rings).end(sections, RINGS);
+            out.begin(sections, VERTEX_STARTS).putLongs(vertexStarts).end(sections, VERTEX_STARTS);
+            out.begin(sections, COORDINATES);
+            for (Zone zone : zones) {
+                out.putDoubles(zone.getGeometry().getCoordinates());
+            }
+            out.end(sections, COORDINATES);
+
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putLong(size);
+            out.putLong(modified);
+            out.putLong(hash);
+            out.putInt(n);
+            out.putInt(table.size());
+            out.putInt(SECTIONS);
+            for (long value : sections) {
+                out.putLong(value);
+            }
+            out.putInt(FOOTER_SIZE);
+            out.putInt(MAGIC);
+            out.flush();
+        } catch (Throwable t) {
+            Files.deleteIfExists(temp);
+            throw t;
+        }
+        Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int intern(String s, Map<String, Integer> strings, List<String> table) {
+        if (s == null) {
+            return NULL;
+        }
+        return strings.computeIfAbsent(s, k -> {
+            table.add(k);
+            return table.size() - 1;
+        });
+    }
+
+    /**
+     * Checks the snapshot exists, is a version this can read, and was made from source as it is now.
+     * The size and modification time are checked first, if only the time differs the source is hashed
+     * so a touched or copied file doesn't force a re-parse.
+     * @param snapshot  The snapshot
+     * @param source  The zones.json it should have been made from
+     * @return true if it can be loaded in place of parsing source
+     */
+    public static boolean isValid(Path snapshot, Path source) throws IOException {
+        if (!Files.isRegularFile(snapshot) || !Files.isRegularFile(source)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            ByteBuffer footer = footer(channel);
+            if (footer == null) {
+                return false;
+            }
+            long size = footer.getLong(8), modified = footer.getLong(16), hash = footer.getLong(24);
+            if (size != Files.size(source)) {
+                return false;
+            }
+            return modified == Files.getLastModifiedTime(source).toMillis() || hash == hash(source);
+        }
+    }
+
+    /**
+     * @return the footer, or null if this isn't a snapshot of the current version
+     */
+    private static ByteBuffer footer(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < 8 + FOOTER_SIZE) {
+            return null;
+        }
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+        channel.read(footer, size - FOOTER_SIZE);
+        footer.flip();
+        if (footer.getInt(0) != MAGIC || footer.getInt(4) != VERSION || footer.getInt(FOOTER_SIZE - 4) != MAGIC
+                || footer.getInt(FOOTER_SIZE - 8) != FOOTER_SIZE || footer.getInt(40) != SECTIONS) {
+            return null;
+        }
+        return footer;
+    }
+
+    /**
+     * CRC32C of a whole file, read through a mapping
+     */
+    static long hash(Path file) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MappedFile.SEGMENT_SIZE) {
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MappedFile.SEGMENT_SIZE, size - position)));
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * The sections of a snapshot, mapped
+     */
+    static class Sections {
+        final int zoneCount;
+        final int stringCount;
+        final MappedByteBuffer[] sections = new MappedByteBuffer[SECTIONS];
+
+        Sections(FileChannel channel) throws IOException {
+            ByteBuffer footer = footer(channel);
+            if (footer == null) {
+                throw new IOException("Not a version " + VERSION + " zone snapshot");
+            }
+            zoneCount = footer.getInt(32);
+            stringCount = footer.getInt(36);
+            for (int s = 0; s < SECTIONS; s++) {
+                long offset = footer.getLong(44 + s * 16), length = footer.getLong(52 + s * 16);
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("Snapshot section " + s + " is over 2GB");
+                }
+                sections[s] = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            }
+        }
+
+        int[] ints(int section) {
+            ByteBuffer b = sections[section].duplicate();
+            int[] values = new int[b.remaining() / 4];
+            b.asIntBuffer().get(values);
+            return values;
+        }
+
+        long[] longs(int section) {
+            ByteBuffer b = sections[section].duplicate();
+            long[] values = new long[b.remaining() / 8];
+            b.asLongBuffer().get(values);
+            return values;
+        }
+
+        String[] strings() {
+            int[] offsets = ints(STRING_OFFSETS);
+            ByteBuffer bytes = sections[STRING_BYTES];
+            String[] strings = new String[stringCount];
+            byte[] scratch = new byte[64];
+            for (int s = 0; s < stringCount; s++) {
+                int length = offsets[s + 1] - offsets[s];
+                if (scratch.length < length) {
+                    scratch = new byte[length];
+                }
+                bytes.get(offsets[s], scratch, 0, length);
+                strings[s] = new String(scratch, 0, length, StandardCharsets.UTF_8);
+            }
+            return strings;
+        }
+    }
+
+    /**
+     * Loads every zone of a snapshot. Repeated strings such as street names are the same String instances.
+     * Location references are decoded once per distinct value and shared between zones, so mustn't be modified.
+     * @param snapshot  The snapshot
+     * @param consumer  Receives each zone in the order they were written
+     * @throws IOException if it isn't a readable snapshot
+     */
+    public static void load(Path snapshot, ZoneConsumer consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            Sections s = new Sections(channel);
+            int n = s.zoneCount;
+            String[] strings = s.strings();
+            int[] ids = s.ints(IDS), street = s.ints(STREET), crossStart = s.ints(CROSS_START);
+            int[] crossEnd = s.ints(CROSS_END), parkingAngle = s.ints(PARKING_ANGLE), numSpaces = s.ints(NUM_SPACES);
+            int[] locationReferences = s.ints(LOCATION_REFERENCES), types = s.ints(GEOMETRY_TYPES);
+            int[] policyCounts = s.ints(POLICY_COUNTS), policies = s.ints(POLICIES);
+            int[] ringStarts = s.ints(RING_STARTS), rings = s.ints(RINGS);
+            long[] published = s.longs(PUBLISHED), lastUpdated = s.longs(LAST_UPDATED), start = s.longs(START);
+            long[] vertexStarts = s.longs(VERTEX_STARTS);
+            DoubleBuffer coordinates = s.sections[COORDINATES].duplicate().asDoubleBuffer();
+
+            List<?>[] decodedReferences = new List<?>[strings.length];
+            int policy = 0;
+            for (int i = 0; i < n; i++) {
+                List<String> policyIds = null;
+                if (policyCounts[i] != NULL) {
+                    policyIds = new ArrayList<>(policyCounts[i]);
+                    for (int p = 0; p < policyCounts[i]; p++) {
+                        policyIds.add(string(strings, policies[policy++]));
+                    }
+                }
+
+                int vertices = (int) (vertexStarts[i + 1] - vertexStarts[i]);
+                double[] coords = new double[vertices * 2];
+                coordinates.get((int) (vertexStarts[i] * 2), coords);
+                Geometry geometry = new Geometry(string(strings, types[i]), coords,
+                        Arrays.copyOfRange(rings, ringStarts[i], ringStarts[i + 1]));
+
+                consumer.accept(new Zone(string(strings, ids[i]), geometry, published[i], lastUpdated[i], start[i],
+                        references(strings, locationReferences[i], decodedReferences), string(strings, street[i]),
+                        string(strings, crossStart[i]), string(strings, crossEnd[i]), policyIds,
+                        string(strings, parkingAngle[i]), numSpaces[i]));
+            }
+        }
+    }
+
+    private static String string(String[] strings, int index) {
+        return index == NULL ? null : strings[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> references(String[] strings, int index, List<?>[] decoded) throws IOException {
+        if (index == NULL) {
+            return null;
+        }
+        if (decoded[index] == null) {
+            decoded[index] = Json.MAPPER.readValue(strings[index], new TypeReference<List<Map<String, Object>>>() {});
+        }
+        return (List<Map<String, Object>>) decoded[index];
+    }
+
+    /**
+     * Buffers big endian values into a channel, padding each section to 8 bytes
+     */
+    private static class Writer {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        long position() throws IOException {
+            return channel.position() + buffer.position();
+        }
+
+        Writer begin(long[] sections, int section) throws IOException {
+            while (position() % 8 != 0) {
+                ensure(1).put((byte) 0);
+            }
+            sections[section * 2] = position();
+            return this;
+        }
+
+        void end(long[] sections, int section) throws IOException {
+            sections[section * 2 + 1] = position() - sections[section * 2];
+        }
+
+        private ByteBuffer ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+            return buffer;
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4).putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(8).putLong(value);
+        }
+
+        Writer putInts(int[] values) throws IOException {
+            for (int value : values) {
+                ensure(4).putInt(value);
+            }
+            return this;
+        }
+
+        Writer putLongs(long[] values) throws IOException {
+            for (long value : values) {
+                ensure(8).putLong(value);
+            }
+            return this;
+        }
+
+        void putDoubles(double[] values) throws IOException {
+            for (double value : values) {
+                ensure(8).putDouble(value);
+            }
+        }
+
+        void putBytes(byte[] bytes) throws IOException {
+            for (int offset = 0; offset < bytes.length; ) {
+                int n = Math.min(bytes.length - offset, ensure(1).remaining());
+                buffer.put(bytes, offset, n);
+                offset += n;
+            }
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package com.cb;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Zones kept in a memory mapped file rather than on the heap, so the number of zones isn't limited by the heap
+ * and the garbage collector doesn't have to trace them. A Zone is only created when it's looked up.
+ * <p>
+ * The file is a run of records, one per zone, followed by an open addressing hash index of id to record offset.
+ * Each index slot is a long holding the record offset in the low 40 bits and 24 bits of the id's hash above,
+ * so most probes for other ids are rejected without reading their record. The index is sized to be at most
+ * half full, about 16 bytes a zone. It's built by streaming, so making a store doesn't need the zones in memory
+ * either. Like a ZoneSnapshot the footer records the zones.json it was made from.
+ */
+public final class ZoneStore implements ZoneLookup, Closeable {
+
+    static final int MAGIC = 0x43575A54; // CWZT
+    static final int VERSION = 1;
+
+    //magic, version, source size, mtime, hash, zones, index offset, slots, footer size, magic
+    private static final int FOOTER_SIZE = 4 + 4 + 8 + 8 + 8 + 8 + 8 + 8 + 4 + 4;
+    private static final int HEADER_SIZE = 8;
+
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private static final int NULL = -1;
+
+    private MappedFile file;
+    private final long zoneCount;
+    private final long indexOffset;
+    private final long slots;
+
+    private ZoneStore(MappedFile file, long zoneCount, long indexOffset, long slots) {
+        this.file = file;
+        this.zoneCount = zoneCount;
+        this.indexOffset = indexOffset;
+        this.slots = slots;
+    }
+
+    /**
+     * @param source  A zones.json
+     * @return where its store is kept, alongside it
+     */
+    public static Path pathFor(Path source) {
+        return source.resolveSibling(source.getFileName() + ".cwzs");
+    }
+
+    /**
+     * Streams the zones of source into a store, written to a temporary file and moved into place
+     * @param source  A GeoJSON file of zones
+     * @param store  Where to write the store
+     * @throws Exception if source can't be parsed, changes while it's being parsed, or the store can't be written
+     */
+    public static void build(Path source, Path store) throws Exception {
+        //Taken before parsing, so if source changes during the build the store isn't written as current
+        long size = Files.size(source), modified = Files.getLastModifiedTime(source).toMillis();
+        //A temporary file of its own, as several processes sharing zones.json may build the store at once
+        Path temp = Files.createTempFile(store.toAbsolutePath().getParent(), store.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            RecordWriter records = new RecordWriter(channel);
+            try (InputStream in = MappedFile.open(source).stream()) {
+                ZoneProcessor.processZones(in, zone -> {
+                    try {
+                        records.write(zone);
+                    } catch (IOException e) {
+                        throw new java.io.UncheckedIOException(e);
+                    }
+                });
+            }
+            records.flush();
+
+            long count = records.count;
+            long slots = Long.highestOneBit(Math.max(2, count * 2 - 1)) << 1;
+            long indexOffset = (records.position + 7) & ~7L;
+            buildIndex(channel, count, indexOffset, slots);
+
+            long hash = ZoneSnapshot.hash(source);
+            if (Files.size(source) != size || Files.getLastModifiedTime(source).toMillis() != modified) {
+                throw new IOException(source + " changed while its zones were stored");
+            }
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            footer.putInt(MAGIC).putInt(VERSION)
+                    .putLong(size)
+                    .putLong(modified)
+                    .putLong(hash)
+                    .putLong(count).putLong(indexOffset).putLong(slots)
+                    .putInt(FOOTER_SIZE).putInt(MAGIC);
+            footer.flip();
+            long position = indexOffset + slots * 8;
+            while (footer.hasRemaining()) {
+                position += channel.write(footer, position);
+            }
+            channel.force(false);
+        } catch (Throwable t) {
+            Files.deleteIfExists(temp);
+            throw t;
+        }
+        Files.move(temp, store, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads back each record's id and inserts its offset into an index mapped after the records
+     */
+    private static void buildIndex(FileChannel channel, long count, long indexOffset, long slots) throws IOException {
+        //1GB windows of 2^27 slots
+        int windowBits = MappedFile.SEGMENT_BITS - 3;
+        int windows = (int) ((slots + (1L << windowBits) - 1) >>> windowBits);
+        LongBuffer[] index = new LongBuffer[windows];
+        for (int w = 0; w < windows; w++) {
+            long first = (long) w << windowBits;
+            long length = Math.min(1L << windowBits, slots - first) * 8;
+            index[w] = channel.map(FileChannel.MapMode.READ_WRITE, indexOffset + first * 8, length).asLongBuffer();
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(channel.position(HEADER_SIZE)), 1 << 16));
+        long offset = HEADER_SIZE;
+        byte[] id = new byte[64];
+        for (long i = 0; i < count; i++) {
+            int length = in.readInt();
+            int idLength = in.readInt();
+            if (idLength == NULL) {
+                //A zone without an id can't be looked up, only reached by forEach
+                in.skipNBytes(length - 4);
+                offset += 4 + length;
+                continue;
+            }
+            if (id.length < idLength) {
+                id = new byte[idLength];
+            }
+            in.readFully(id, 0, idLength);
+            in.skipNBytes(length - 4 - idLength);
+
+            long hash = hash(id, 0, idLength);
+            long slot = hash & (slots - 1);
+            while (true) {
+                LongBuffer window = index[(int) (slot >>> windowBits)];
+                int within = (int) (slot & ((1L << windowBits) - 1));
+                if (window.get(within) == 0) {
+                    window.put(within, (hash >>> OFFSET_BITS) << OFFSET_BITS | (offset + 1));
+                    break;
+                }
+                slot = (slot + 1) & (slots - 1);
+            }
+            offset += 4 + length;
+        }
+    }
+
+    /**
+     * @param store  The store
+     * @param source  The zones.json it should have been made from
+     * @return true if the store is a readable version and was made from source as it is now
+     */
+    public static boolean isValid(Path store, Path source) throws IOException {
+        if (!Files.isRegularFile(store) || !Files.isRegularFile(source)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(store, StandardOpenOption.READ)) {
+            ByteBuffer footer = footer(channel);
+            if (footer == null || footer.getLong(8) != Files.size(source)) {
+                return false;
+            }
+            return footer.getLong(16) == Files.getLastModifiedTime(source).toMillis()
+                    || footer.getLong(24) == ZoneSnapshot.hash(source);
+        }
+    }
+
+    private static ByteBuffer footer(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE + FOOTER_SIZE) {
+            return null;
+        }
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+        channel.read(footer, size - FOOTER_SIZE);
+        if (footer.getInt(0) != MAGIC || footer.getInt(4) != VERSION || footer.getInt(FOOTER_SIZE - 4) != MAGIC
+                || footer.getInt(FOOTER_SIZE - 8) != FOOTER_SIZE) {
+            return null;
+        }
+        return footer;
+    }
+
+    /**
+     * @param store  A store written by build
+     * @return the store, mapped
+     * @throws IOException if it isn't a readable store
+     */
+    public static ZoneStore open(Path store) throws IOException {
+        ByteBuffer footer;
+        try (FileChannel channel = FileChannel.open(store, StandardOpenOption.READ)) {
+            footer = footer(channel);
+        }
+        if (footer == null) {
+            throw new IOException("Not a version " + VERSION + " zone store: " + store);
+        }
+        return new ZoneStore(MappedFile.open(store), footer.getLong(32), footer.getLong(40), footer.getLong(48));
+    }
+
+    /**
+     * Decodes a zone from the file. Each call creates a new Zone, callers wanting the same instance keep it
+     * @param curbZoneId  The id
+     * @return the zone, or null if there isn't one
+     */
+    @Override
+    public Zone get(String curbZoneId) {
+        if (curbZoneId == null) {
+            return null;
+        }
+        MappedFile file = mapped();
+        byte[] id = curbZoneId.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(id, 0, id.length);
+        long tag = hash >>> OFFSET_BITS;
+        long slot = hash & (slots - 1);
+        while (true) {
+            long value = file.getLong(indexOffset + slot * 8);
+            if (value == 0) {
+                return null;
+            }
+            if (value >>> OFFSET_BITS == tag) {
+                ByteBuffer record = record(file, (value & OFFSET_MASK) - 1);
+                if (sameId(record, id)) {
+                    return decode(record);
+                }
+            }
+            slot = (slot + 1) & (slots - 1);
+        }
+    }
+
+    /**
+     * Decodes every zone in the order they were stored
+     * @param consumer  Receives each zone
+     */
+    public void forEach(ZoneConsumer consumer) {
+        MappedFile file = mapped();
+        long offset = HEADER_SIZE;
+        for (long i = 0; i < zoneCount; i++) {
+            ByteBuffer record = record(file, offset);
+            offset += 4 + record.capacity();
+            consumer.accept(decode(record));
+        }
+    }
+
+    public long size() {
+        return zoneCount;
+    }
+
+    private MappedFile mapped() {
+        MappedFile file = this.file;
+        if (file == null) {
+            throw new IllegalStateException("ZoneStore is closed");
+        }
+        return file;
+    }
+
+    /**
+     * The mapping is released once this is unreachable, closing only stops further use
+     */
+    @Override
+    public void close() {
+        file = null;
+    }
+
+    private static ByteBuffer record(MappedFile file, long offset) {
+        byte[] length = new byte[4];
+        file.get(offset, length, 0, 4);
+        byte[] bytes = new byte[ByteBuffer.wrap(length).getInt()];
+        file.get(offset + 4, bytes, 0, bytes.length);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static boolean sameId(ByteBuffer record, byte[] id) {
+        if (record.getInt(0) != id.length) {
+            return false;
+        }
+        for (int i = 0; i < id.length; i++) {
+            if (record.get(4 + i) != id[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Zone decode(ByteBuffer record) {
+        String id = getString(record);
+        long published = record.getLong(), lastUpdated = record.getLong(), start = record.getLong();
+        String street = getString(record), crossStart = getString(record), crossEnd = getString(record);
+        String parkingAngle = getString(record);
+        int numSpaces = record.getInt();
+        List<Map<String, Object>> locationReferences = null;
+        String references = getString(record);
+        if (references != null) {
+            try {
+                locationReferences = Json.MAPPER.readValue(references, new TypeReference<List<Map<String, Object>>>() {});
+            } catch (IOException e) {
+                throw new IllegalStateException("Corrupt location references in zone " + id, e);
+            }
+        }
+        List<String> policies = null;
+        int policyCount = record.getInt();
+        if (policyCount != NULL) {
+            policies = new ArrayList<>(policyCount);
+            for (int p = 0; p < policyCount; p++) {
+                policies.add(getString(record));
+            }
+        }
+        String type = getString(record);
+        int[] rings = new int[record.getInt()];
+        record.asIntBuffer().get(rings);
+        record.position(record.position() + rings.length * 4);
+        double[] coordinates = new double[record.getInt() * 2];
+        record.asDoubleBuffer().get(coordinates);
+        return new Zone(id, new Geometry(type, coordinates, rings), published, lastUpdated, start, locationReferences,
+                street, crossStart, crossEnd, policies, parkingAngle, numSpaces);
+    }
+
+    private static String getString(ByteBuffer record) {
+        int length = record.getInt();
+        if (length == NULL) {
+            return null;
+        }
+        String s = new String(record.array(), record.position(), length, StandardCharsets.UTF_8);
+        record.position(record.position() + length);
+        return s;
+    }
+
+    /**
+     * 64 bit FNV-1a with a final mix, so both the low bits (slot) and high bits (tag) are well spread
+     */
+    static long hash(byte[] bytes, int offset, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            h = (h ^ (bytes[i] & 0xff)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Appends length prefixed records, one per zone
+     */
+    private static class RecordWriter {
+        private final OutputStream out;
+        private ByteBuffer record = ByteBuffer.allocate(1 << 12);
+        long position = HEADER_SIZE;
+        long count;
+
+        RecordWriter(FileChannel channel) throws IOException {
+            out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 20);
+            out.write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).array());
+        }
+
+        void write(Zone zone) throws IOException {
+            record.clear();
+            record.putInt(0);
+            putString(zone.getCurbZoneId());
+            ensure(24).putLong(zone.getPublishedDate()).putLong(zone.getLastUpdatedDate()).putLong(zone.getStartDate());
+            putString(zone.getStreetName());
+            putString(zone.getCrossStreetStartName());
+            putString(zone.getCrossStreetEndName());
+            putString(zone.getParkingAngle());
+            ensure(4).putInt(zone.getNumSpaces());
+            putString(zone.getLocationReferences() == null ? null
+                    : Json.MAPPER.writeValueAsString(zone.getLocationReferences()));
+            List<String> policies = zone.getCurbPolicyIds();
+            ensure(4).putInt(policies == null ? NULL : policies.size());
+            if (policies != null) {
+                for (String policy : policies) {
+                    putString(policy);
+                }
+            }
+            Geometry geometry = zone.getGeometry();
+            putString(geometry.getType());
+            ensure(4 + (geometry.getRingCount() + 1) * 4).putInt(geometry.getRingCount() + 1);
+            for (int r = 0; r < geometry.getRingCount(); r++) {
+                record.putInt(geometry.getRingStart(r));
+            }
+            record.putInt(geometry.getVertexCount());
+            double[] coordinates = geometry.getCoordinates();
+            ensure(4 + coordinates.length * 8).putInt(geometry.getVertexCount());
+            for (double c : coordinates) {
+                record.putDouble(c);
+            }
+            record.putInt(0, record.position() - 4);
+            out.write(record.array(), 0, record.position());
+            position += record.position();
+            count++;
+        }
+
+        private void putString(String s) {
+            if (s == null) {
+                ensure(4).putInt(NULL);
+                return;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            ensure(4 + bytes.length).putInt(bytes.length).put(bytes);
+        }
+
+        private ByteBuffer ensure(int bytes) {
+            if (record.remaining() < bytes) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(record.capacity() * 2, record.position() + bytes));
+                record.flip();
+                bigger.put(record);
+                record = bigger;
+            }
+            return record;
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.cb;
+
+/**
+ * Chooses the zoom each area is rendered at. An area's canvas covers every tile its outline and zones touch,
+ * so the same zoom that suits a block makes an enormous canvas for a district.
+ * The built in policies describe themselves in toString, which an incremental render keeps in its settings.
+ */
+@FunctionalInterface
+public interface ZoomPolicy {
+
+    /**
+     * @param area  An area with its zones associated
+     * @return the zoom to render it at
+     */
+    int zoomFor(Area area);
+
+    /**
+     * @param zoom  Every area's zoom
+     */
+    static ZoomPolicy fixed(int zoom) {
+        return new Budget(zoom, zoom, Long.MAX_VALUE, "fixed " + zoom);
+    }
+
+    /**
+     * The deepest zoom whose canvas has at most maxTiles base tiles, or minZoom if none do
+     * @param maxTiles  The most tiles a canvas may span
+     * @param minZoom  The shallowest zoom
+     * @param maxZoom  The deepest zoom
+     */
+    static ZoomPolicy maxTiles(long maxTiles, int minZoom, int maxZoom) {
+        return new Budget(minZoom, maxZoom, maxTiles, "tiles<=" + maxTiles + " z" + minZoom + "-" + maxZoom);
+    }
+
+    /**
+     * The deepest zoom whose canvas has at most maxPixels pixels, or minZoom if none do
+     * @param maxPixels  The most pixels a canvas may have
+     * @param minZoom  The shallowest zoom
+     * @param maxZoom  The deepest zoom
+     */
+    static ZoomPolicy maxPixels(long maxPixels, int minZoom, int maxZoom) {
+        return new Budget(minZoom, maxZoom, maxPixels / (256 * 256),
+                "pixels<=" + maxPixels + " z" + minZoom + "-" + maxZoom);
+    }
+
+    /**
+     * The number of base tiles renderMap's canvas spans for an area at a zoom
+     * @param area  An area with its zones associated
+     * @param zoom  The zoom
+     */
+    static long tileCount(Area area, int zoom) {
+        return Budget.tileCount(Budget.bounds(area), zoom);
+    }
+
+    /**
+     * Picks the deepest zoom within a tile budget
+     */
+    final class Budget implements ZoomPolicy {
+        private final int minZoom;
+        private final int maxZoom;
+        private final long maxTiles;
+        private final String description;
+
+        Budget(int minZoom, int maxZoom, long maxTiles, String description) {
+            if (minZoom < 0 || maxZoom < minZoom) {
+                throw new IllegalArgumentException("Bad zoom range " + minZoom + "-" + maxZoom);
+            }
+            if (maxTiles < 1) {
+                throw new IllegalArgumentException("The budget must allow at least one tile: " + description);
+            }
+            this.minZoom = minZoom;
+            this.maxZoom = maxZoom;
+            this.maxTiles = maxTiles;
+            this.description = description;
+        }
+
+        @Override
+        public int zoomFor(Area area) {
+            if (minZoom == maxZoom) {
+                return minZoom;
+            }
+            double[] bounds = bounds(area);
+            //Tiles grow fourfold a level, so search down from the deepest
+            for (int zoom = maxZoom; zoom > minZoom; zoom--) {
+                if (tileCount(bounds, zoom) <= maxTiles) {
+                    return zoom;
+                }
+            }
+            return minZoom;
+        }
+
+        /**
+         * @return minLon, minLat, maxLon, maxLat of the area's outer ring and its zones
+         */
+        static double[] bounds(Area area) {
+            double[] b = {Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+            Geometry polygon = area.getGeometry();
+            extend(b, polygon, polygon.getRingEnd(0));
+            if (area.getCurbZones() != null) {
+                for (Zone zone : area.getCurbZones()) {
+                    extend(b, zone.getGeometry(), zone.getGeometry().getVertexCount());
+                }
+            }
+            return b;
+        }
+
+        private static void extend(double[] b, Geometry geometry, int to) {
+            for (int v = 0; v < to; v++) {
+                b[0] = Math.min(b[0], geometry.getLon(v));
+                b[1] = Math.min(b[1], geometry.getLat(v));
+                b[2] = Math.max(b[2], geometry.getLon(v));
+                b[3] = Math.max(b[3], geometry.getLat(v));
+            }
+        }
+
+        static long tileCount(double[] bounds, int zoom) {
+            if (bounds[0] > bounds[2]) {
+                return 0;
+            }
+            //The projection is monotonic, so the corners give the same tile range as every vertex.
+            //Latitude increases northwards but tile y southwards
+            int[] topLeft = CoordinateUtils.toTileNumbers(bounds[0], bounds[3], zoom);
+            int[] bottomRight = CoordinateUtils.toTileNumbers(bounds[2], bounds[1], zoom);
+            return (long) (bottomRight[0] - topLeft[0] + 1) * (bottomRight[1] - topLeft[1] + 1);
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+}
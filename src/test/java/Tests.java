@@ -1,12 +1,60 @@
+import com.cb.Area;
+import com.cb.CanvasPool;
+import com.cb.CoordinateUtils;
+import com.cb.CurbAssembler;
+import com.cb.Geometry;
+import com.cb.Histogram;
+import com.cb.ImageEncoder;
 import com.cb.Main;
+import com.cb.MapRenderer;
+import com.cb.MappedFile;
+import com.cb.Metrics;
+import com.cb.MetricsReporter;
+import com.cb.OutputTarget;
+import com.cb.Pyramid;
+import com.cb.RenderListener;
+import com.cb.RenderManifest;
+import com.cb.RenderPipeline;
+import com.cb.RenderService;
+import com.cb.Shard;
+import com.cb.ShardCoordinator;
+import com.cb.Simplifier;
+import com.cb.RenderOptions;
+import com.cb.TileCache;
+import com.cb.TileMosaic;
+import com.cb.TileSource;
+import com.cb.VectorFormat;
+import com.cb.VectorRenderer;
+import com.cb.Zone;
+import com.cb.ZoneIndex;
+import com.cb.ZoneProcessor;
+import com.cb.ZoneResolution;
+import com.cb.ZoneSnapshot;
+import com.cb.ZoneStore;
+import com.cb.ZoomPolicy;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.TreeNode;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.Test;
 
+import javax.imageio.ImageIO;
+
+import java.awt.image.BufferedImage;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 public class Tests {
     @Test
@@ -73,6 +121,1684 @@ public class Tests {
         m.parse(new FileInputStream("zones.json"),new FileInputStream("areas.json"),true, false);
     }
 
+    @Test
+    public void tileCache() throws Throwable {
+        AtomicInteger loads = new AtomicInteger();
+        //Room for two 256x256 ARGB tiles
+        TileCache cache = new TileCache(2 * 256 * 256 * 4, (zoom, x, y) -> {
+            loads.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+        });
+
+        //Concurrent requests for the same tile share one decode
+        Thread[] threads = new Thread[8];
+        BufferedImage[] results = new BufferedImage[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            int n = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    results[n] = cache.get(20, 1, 1);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(1, loads.get());
+        for (BufferedImage image : results) {
+            assertSame(results[0], image);
+        }
+
+        cache.get(20, 1, 2);
+        cache.get(20, 1, 1);
+        cache.get(20, 1, 3);
+        //1-2 was least recently used
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.size());
+        cache.get(20, 1, 1);
+        assertEquals(3, loads.get());
+        log(cache);
+    }
+
+    @Test
+    public void flatGeometry() throws Throwable {
+        ObjectMapper objectMapper = new ObjectMapper();
+        Geometry polygon = objectMapper.readValue("{\"type\":\"Polygon\",\"coordinates\":"
+                + "[[[0,0],[4,0],[4,4],[0,0]],[[1,1],[2,1,9.5],[1,1]]]}", Geometry.class);
+        assertEquals("Polygon", polygon.getType());
+        assertEquals(2, polygon.getRingCount());
+        assertEquals(7, polygon.getVertexCount());
+        assertEquals(4, polygon.getRingStart(1));
+        assertEquals(7, polygon.getRingEnd(1));
+        assertEquals(2.0, polygon.getLon(5));
+        assertEquals(1.0, polygon.getLat(5));
+
+        Geometry line = objectMapper.readValue("{\"coordinates\":[[-122.5,37.7],[-122.4,37.8]],"
+                + "\"bbox\":[1,2,3,4],\"type\":\"LineString\"}", Geometry.class);
+        assertEquals(1, line.getRingCount());
+        assertArrayEquals(new double[]{-122.5, 37.7, -122.4, 37.8}, line.getCoordinates());
+
+        Geometry point = objectMapper.readValue("{\"type\":\"Point\",\"coordinates\":[1.5,2.5]}", Geometry.class);
+        assertEquals(1, point.getRingCount());
+        assertEquals(2.5, point.getLat(0));
+    }
+
+    @Test
+    public void batchProjection() {
+        double[] lonLat = {-122.48236501059944, 37.73450032539568, -122.4824, 37.7341, 0, 0, 179.9, -84.0};
+        int[] pixels = new int[lonLat.length];
+        int[] tiles = new int[lonLat.length];
+        CoordinateUtils.project(lonLat, 0, lonLat.length / 2, 20, pixels, tiles);
+        for (int i = 0; i < lonLat.length / 2; i++) {
+            double lon = lonLat[i * 2], lat = lonLat[i * 2 + 1];
+            assertArrayEquals(new int[]{pixels[i * 2], pixels[i * 2 + 1]}, CoordinateUtils.toPixelCoordinates(lon, lat, 20));
+            assertArrayEquals(new int[]{tiles[i * 2], tiles[i * 2 + 1]}, CoordinateUtils.toTileNumbers(lon, lat, 20));
+            //The classic slippy map formula
+            int xTile = (int) Math.floor((lon + 180) / 360 * (1 << 20));
+            int yTile = (int) Math.floor((1 - Math.log(Math.tan(Math.toRadians(lat)) + 1 / Math.cos(Math.toRadians(lat))) / Math.PI) / 2 * (1 << 20));
+            assertEquals(xTile, tiles[i * 2]);
+            assertEquals(yTile, tiles[i * 2 + 1]);
+        }
+        //A sub range lands at the start of the output
+        int[] second = new int[2];
+        CoordinateUtils.project(lonLat, 1, 2, 20, second, null);
+        assertEquals(pixels[2], second[0]);
+        assertEquals(pixels[3], second[1]);
+    }
+
+    @Test
+    public void mappedFile() throws Throwable {
+        File file = new File("areas.json");
+        byte[] expected = java.nio.file.Files.readAllBytes(file.toPath());
+        MappedFile mapped = MappedFile.open(file.toPath());
+        assertEquals(expected.length, mapped.size());
+        try (InputStream in = mapped.stream()) {
+            assertArrayEquals(expected, in.readAllBytes());
+        }
+        try (InputStream in = mapped.stream(10, 20)) {
+            assertEquals(expected[10] & 0xFF, in.read());
+            assertEquals(9, in.readAllBytes().length);
+        }
+    }
+
+    @Test
+    public void zoneIndex() throws Throwable {
+        ObjectMapper objectMapper = new ObjectMapper();
+        ZoneIndex.Builder builder = new ZoneIndex.Builder();
+        //A grid of short lines, enough for a few levels of the tree
+        for (int x = 0; x < 100; x++) {
+            for (int y = 0; y < 100; y++) {
+                builder.add(objectMapper.readValue("{\"curb_zone_id\":\"" + x + "," + y + "\",\"geometry\":"
+                        + "{\"type\":\"LineString\",\"coordinates\":[[" + x + "," + y + "],[" + x + ".5," + y + "]]}}", Zone.class));
+            }
+        }
+        ZoneIndex index = builder.build();
+        assertEquals(10000, index.size());
+        assertEquals(9, index.search(10.2, 10.9, 12.1, 13.1).size());
+        assertEquals(0, index.search(-5, -5, -1, -1).size());
+
+        //A triangle over the lower left corner, the diagonal clips the lines it passes
+        Geometry triangle = objectMapper.readValue("{\"type\":\"Polygon\",\"coordinates\":"
+                + "[[[-0.1,-0.1],[3.1,-0.1],[-0.1,3.1],[-0.1,-0.1]]]}", Geometry.class);
+        List<String> ids = new ArrayList<>();
+        for (Zone zone : index.intersecting(triangle)) {
+            ids.add(zone.getCurbZoneId());
+        }
+        Collections.sort(ids);
+        assertEquals(List.of("0,0", "0,1", "0,2", "0,3", "1,0", "1,1", "1,2", "2,0", "2,1", "3,0"), ids);
+    }
+
+    @Test
+    public void spatialZones() throws Throwable {
+        //Render with zones found by location rather than by id
+        RenderOptions options = new RenderOptions();
+        options.setZoneResolution(ZoneResolution.SPATIAL);
+        Main main = new Main();
+        main.parse(new FileInputStream("zones.json"), new FileInputStream("areas.json"), false, true, options);
+    }
+
+    @Test
+    public void zoneSnapshot() throws Throwable {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("snapshot");
+        java.nio.file.Path zones = dir.resolve("zones.json");
+        java.nio.file.Files.copy(new File("zones.json").toPath(), zones);
+        java.nio.file.Path snapshot = ZoneSnapshot.pathFor(zones);
+        RenderOptions options = new RenderOptions();
+
+        //The first run parses the JSON and writes the snapshot, the second loads it
+        Main main = new Main();
+        main.parse(zones, new File("areas.json").toPath(), false, true, options);
+        assertTrue(ZoneSnapshot.isValid(snapshot, zones));
+        long written = java.nio.file.Files.getLastModifiedTime(snapshot).toMillis();
+        main.parse(zones, new File("areas.json").toPath(), false, true, options);
+        assertEquals(written, java.nio.file.Files.getLastModifiedTime(snapshot).toMillis());
+
+        //Processes sharing zones.json may write the snapshot at once, each through a temporary file of its own
+        List<Zone> sample = new ArrayList<>(sampleZones().values());
+        Thread[] writers = new Thread[4];
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Thread(() -> {
+                try {
+                    for (int n = 0; n < 10; n++) {
+                        ZoneSnapshot.write(sample, zones, snapshot);
+                    }
+                } catch (Throwable t) {
+                    errors.add(t);
+                }
+            });
+            writers[i].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(List.of(), errors);
+        assertTrue(ZoneSnapshot.isValid(snapshot, zones));
+        ZoneIndex.Builder loaded = new ZoneIndex.Builder();
+        ZoneSnapshot.load(snapshot, loaded);
+        assertEquals(sample.size(), loaded.build().search(-180, -90, 180, 90).size());
+        try (java.util.stream.Stream<java.nio.file.Path> files = java.nio.file.Files.list(dir)) {
+            assertEquals(0, files.filter(f -> f.toString().endsWith(".tmp")).count());
+        }
+
+        //Only touching the source still matches on the hash
+        java.nio.file.Files.setLastModifiedTime(zones, java.nio.file.attribute.FileTime.fromMillis(written + 60000));
+        assertTrue(ZoneSnapshot.isValid(snapshot, zones));
+        //Changing it doesn't
+        java.nio.file.Files.write(zones, "{\"zones\":[]}".getBytes());
+        assertFalse(ZoneSnapshot.isValid(snapshot, zones));
+
+        //A null id or policy id round trips as null
+        java.nio.file.Files.write(zones, zonesWithoutIds().getBytes());
+        List<Zone> unnamed = new ArrayList<>();
+        for (JsonNode node : new ObjectMapper().readTree(zones.toFile()).get("zones")) {
+            unnamed.add(new ObjectMapper().treeToValue(node, Zone.class));
+        }
+        ZoneSnapshot.write(unnamed, zones, snapshot);
+        ZoneIndex.Builder reloaded = new ZoneIndex.Builder();
+        ZoneSnapshot.load(snapshot, reloaded);
+        Map<String, Zone> byId = new HashMap<>();
+        for (Zone zone : reloaded.build().search(-180, -90, 180, 90)) {
+            byId.put(zone.getCurbZoneId(), zone);
+        }
+        assertEquals(2, byId.size());
+        assertTrue(byId.containsKey(unnamed.get(1).getCurbZoneId()));
+
+        //Zones parsed from a source that has changed since aren't snapshotted
+        long size = java.nio.file.Files.size(zones), modified = java.nio.file.Files.getLastModifiedTime(zones).toMillis();
+        java.nio.file.Files.write(zones, " ".getBytes(), java.nio.file.StandardOpenOption.APPEND);
+        assertThrows(IOException.class, () -> ZoneSnapshot.write(unnamed, zones, size, modified, snapshot));
+        assertFalse(ZoneSnapshot.isValid(snapshot, zones));
+        assertEquals(java.util.Arrays.asList(null, "p-1"), byId.get(null).getCurbPolicyIds());
+    }
+
+    @Test
+    public void zoneStore() throws Throwable {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("store");
+        java.nio.file.Path zones = dir.resolve("zones.json");
+        java.nio.file.Files.copy(new File("zones.json").toPath(), zones);
+        java.nio.file.Path path = ZoneStore.pathFor(zones);
+        ZoneStore.build(zones, path);
+        assertTrue(ZoneStore.isValid(path, zones));
+
+        try (ZoneStore store = ZoneStore.open(path)) {
+            for (Area area : sampleAreas()) {
+                for (Zone zone : area.getCurbZones()) {
+                    Zone stored = store.get(zone.getCurbZoneId());
+                    assertEquals(zone.getCurbZoneId(), stored.getCurbZoneId());
+                    assertEquals(zone.getLastUpdatedDate(), stored.getLastUpdatedDate());
+                    assertEquals(zone.getStreetName(), stored.getStreetName());
+                    assertEquals(zone.getCurbPolicyIds(), stored.getCurbPolicyIds());
+                    assertEquals(zone.getLocationReferences(), stored.getLocationReferences());
+                    assertArrayEquals(zone.getGeometry().getCoordinates(), stored.getGeometry().getCoordinates());
+                    assertEquals(zone.getGeometry().getRingCount(), stored.getGeometry().getRingCount());
+                }
+            }
+            assertNull(store.get("no such zone"));
+
+            RenderPipeline pipeline = new RenderPipeline(new MapRenderer(), new RenderOptions(), new Recorder());
+            try (InputStream in = new FileInputStream("areas.json")) {
+                assertEquals(0, pipeline.run(in, store, null, false, true, 20));
+            }
+        }
+
+        //Main builds the store when asked and reuses it after
+        RenderOptions options = new RenderOptions();
+        options.setZoneStore(true);
+        java.nio.file.Files.delete(path);
+        new Main().parse(zones, new File("areas.json").toPath(), false, true, options);
+        assertTrue(ZoneStore.isValid(path, zones));
+        java.nio.file.Files.write(zones, "{\"zones\":[]}".getBytes());
+        assertFalse(ZoneStore.isValid(path, zones));
+
+        //A zone without an id is stored but not indexed
+        java.nio.file.Files.write(zones, zonesWithoutIds().getBytes());
+        ZoneStore.build(zones, path);
+        try (ZoneStore store = ZoneStore.open(path)) {
+            assertEquals(2, store.size());
+            ZoneIndex.Builder all = new ZoneIndex.Builder();
+            store.forEach(all);
+            List<Zone> stored = all.build().search(-180, -90, 180, 90);
+            assertEquals(2, stored.size());
+            for (Zone zone : stored) {
+                if (zone.getCurbZoneId() == null) {
+                    assertEquals(java.util.Arrays.asList(null, "p-1"), zone.getCurbPolicyIds());
+                } else {
+                    assertEquals(zone.getCurbZoneId(), store.get(zone.getCurbZoneId()).getCurbZoneId());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void curbAssembler() throws Throwable {
+        //Out of order, with a branch at (2,0) and a duplicate
+        List<int[]> lines = List.of(
+                new int[]{1, 0, 2, 0},
+                new int[]{2, 0, 3, 0, 4, 0},
+                new int[]{0, 0, 1, 0},
+                new int[]{2, 0, 2, 5},
+                new int[]{1, 0, 2, 0},
+                new int[]{});
+        List<int[]> curbs = CurbAssembler.assemble(lines);
+        assertEquals(2, curbs.size());
+        assertArrayEquals(new int[]{0, 0, 1, 0, 2, 0, 3, 0, 4, 0}, curbs.get(0));
+        assertArrayEquals(new int[]{2, 0, 2, 5}, curbs.get(1));
+
+        //A loop is used once
+        int[][] loop = CurbAssembler.chains(new long[]{1, 2, 3}, new long[]{2, 3, 1});
+        assertEquals(1, loop.length);
+        assertArrayEquals(new int[]{0, 1, 2}, loop[0]);
+
+        //A long curb given back to front joins in linear time
+        int n = 200000;
+        List<int[]> reversed = new ArrayList<>();
+        for (int i = n - 1; i >= 0; i--) {
+            reversed.add(new int[]{i, 0, i + 1, 0});
+        }
+        curbs = CurbAssembler.assemble(reversed);
+        assertEquals(1, curbs.size());
+        assertEquals((n + 1) * 2, curbs.get(0).length);
+        assertEquals(n, curbs.get(0)[n * 2]);
+
+        //Zones group the same way as the pixels they're drawn with
+        for (Area area : sampleAreas()) {
+            int zones = 0;
+            for (List<Zone> curb : CurbAssembler.curbs(area.getCurbZones())) {
+                zones += curb.size();
+            }
+            assertEquals(area.getCurbZones().size(), zones);
+        }
+    }
+
+    @Test
+    public void zoomPolicy() throws Throwable {
+        MapRenderer renderer = new MapRenderer();
+        for (Area area : sampleAreas()) {
+            //The tile count predicts the canvas without rendering
+            BufferedImage canvas = renderer.renderMap(area, 18, true);
+            assertEquals(canvas.getWidth() / 256 * (canvas.getHeight() / 256), ZoomPolicy.tileCount(area, 18));
+
+            assertEquals(20, ZoomPolicy.fixed(20).zoomFor(area));
+            int zoom = ZoomPolicy.maxTiles(4, 10, 21).zoomFor(area);
+            assertTrue(ZoomPolicy.tileCount(area, zoom) <= 4);
+            assertTrue(zoom == 21 || ZoomPolicy.tileCount(area, zoom + 1) > 4);
+            assertEquals(zoom, ZoomPolicy.maxPixels(4 * 256 * 256, 10, 21).zoomFor(area));
+        }
+
+        //A 2x2 block averages, weighting colour by alpha
+        BufferedImage image = new BufferedImage(3, 2, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, 0xFFFF0000);
+        image.setRGB(1, 0, 0xFF0000FF);
+        image.setRGB(0, 1, 0xFFFF0000);
+        image.setRGB(1, 1, 0x000000FF);
+        image.setRGB(2, 0, 0xFF00FF00);
+        image.setRGB(2, 1, 0xFF00FF00);
+        BufferedImage half = Pyramid.halve(image);
+        assertEquals(2, half.getWidth());
+        assertEquals(1, half.getHeight());
+        assertEquals(0xBFAA0055, half.getRGB(0, 0));
+        assertEquals(0xFF00FF00, half.getRGB(1, 0));
+
+        //A pyramid writes each shallower zoom beside the render
+        OutputTarget.Memory memory = OutputTarget.memory();
+        RenderOptions options = new RenderOptions();
+        options.setOutput(memory);
+        options.setZoomPolicy(ZoomPolicy.maxTiles(16, 16, 20));
+        options.setPyramidMinZoom(16);
+        Map<String, Zone> zones = sampleZones();
+        Recorder listener = new Recorder();
+        try (InputStream in = new FileInputStream("areas.json")) {
+            assertEquals(0, new RenderPipeline(new MapRenderer(), options, listener).run(in, zones, true, true, 20));
+        }
+        assertFalse(listener.rendered.isEmpty());
+        for (Area area : listener.rendered) {
+            assertTrue(ZoomPolicy.tileCount(area, options.getZoomPolicy().zoomFor(area)) <= 16
+                    || options.getZoomPolicy().zoomFor(area) == 16);
+        }
+        assertFalse(listener.levels.isEmpty());
+        assertEquals(listener.rendered.size() + listener.levels.size(), memory.getImages().size());
+        for (int i = 0; i < listener.levels.size(); i++) {
+            assertTrue(memory.getImages().containsKey(listener.levels.get(i).getName()));
+            assertTrue(listener.levelZooms.get(i) >= 16);
+        }
+    }
+
+    @Test
+    public void canvasPool() throws Throwable {
+        MapRenderer renderer = new MapRenderer();
+        CanvasPool pool = new CanvasPool();
+        //Reused canvases and graphics draw the same as new ones, whatever was drawn on them before
+        for (int pass = 0; pass < 2; pass++) {
+            for (Area area : sampleAreas()) {
+                for (boolean straight : new boolean[]{true, false}) {
+                    BufferedImage pooled = renderer.renderMap(area, 20, straight, pool);
+                    assertSameImage(renderer.renderMap(area, 20, straight), pooled);
+                    pool.release(pooled);
+                }
+            }
+        }
+        assertTrue(pool.getHits() > pool.getMisses());
+
+        //Nothing is kept over budget
+        CanvasPool none = new CanvasPool(0);
+        BufferedImage canvas = none.acquire(256, 256);
+        none.release(canvas);
+        assertNotSame(canvas, none.acquire(256, 256));
+        assertEquals(0, none.getHits());
+
+        //A render that fails after taking its canvas gives it back, and leaves nothing behind for the next
+        Area area = sampleAreas().get(0);
+        java.util.concurrent.atomic.AtomicBoolean failing = new java.util.concurrent.atomic.AtomicBoolean(true);
+        TileSource bundled = TileSource.classpath();
+        MapRenderer flaky = new MapRenderer(new TileSource() {
+            @Override
+            public BufferedImage load(int zoom, int x, int y) throws IOException {
+                return bundled.load(zoom, x, y);
+            }
+
+            @Override
+            public void prefetch(int zoom, int minX, int minY, int maxX, int maxY) {
+                if (failing.get()) {
+                    throw new IllegalStateException("Offline");
+                }
+            }
+        });
+        CanvasPool one = new CanvasPool();
+        assertThrows(IllegalStateException.class, () -> flaky.renderMap(area, 20, true, one));
+        failing.set(false);
+        BufferedImage reused = flaky.renderMap(area, 20, true, one);
+        assertEquals(1, one.getHits());
+        assertSameImage(renderer.renderMap(area, 20, true), reused);
+
+        RenderOptions options = new RenderOptions();
+        options.setOutput(OutputTarget.memory());
+        options.setCanvasPool(pool);
+        Recorder listener = new Recorder();
+        Map<String, Zone> zones = sampleZones();
+        long hits = pool.getHits();
+        try (InputStream in = new FileInputStream("areas.json")) {
+            assertEquals(0, new RenderPipeline(renderer, options, listener).run(in, zones, true, true, 20));
+        }
+        assertTrue(pool.getHits() > hits);
+    }
+
+    @Test
+    public void simplifier() throws Throwable {
+        //Repeated pixels go, the line is otherwise untouched
+        assertArrayEquals(new int[]{0, 0, 5, 0, 5, 5}, Simplifier.dedupe(new int[]{0, 0, 0, 0, 5, 0, 5, 0, 5, 5}));
+        int[] distinct = {0, 0, 1, 1};
+        assertSame(distinct, Simplifier.dedupe(distinct));
+
+        //Points within the tolerance of the line go, the ends and the corner stay
+        int[] line = {0, 0, 3, 0, 6, 1, 10, 0, 10, 5, 10, 10};
+        assertArrayEquals(new int[]{0, 0, 10, 0, 10, 10}, Simplifier.simplify(line, 1.5));
+        assertArrayEquals(new int[]{0, 0, 6, 1, 10, 0, 10, 10}, Simplifier.simplify(line, 0.5));
+        assertSame(line, Simplifier.simplify(line, 0));
+
+        //A closed ring stays closed
+        int[] ring = {0, 0, 10, 0, 10, 10, 0, 10, 0, 0};
+        assertArrayEquals(ring, Simplifier.simplify(ring, 1));
+
+        //Densely sampled outlines lose most of their vertices at zoom 20
+        int raw = 0, simplified = 0;
+        for (Area area : sampleAreas()) {
+            double[] lonLat = area.getGeometry().getCoordinates();
+            int[] pixels = new int[lonLat.length];
+            CoordinateUtils.project(lonLat, 0, lonLat.length / 2, 20, pixels, null);
+            raw += pixels.length / 2;
+            simplified += Simplifier.simplify(pixels, MapRenderer.DEFAULT_TOLERANCE).length / 2;
+        }
+        log("Outline vertices " + raw + " simplified to " + simplified);
+        assertTrue(simplified < raw);
+    }
+
+    @Test
+    public void parallelParse() throws Throwable {
+        //Enough areas for several chunks, with ids that would trip a scanner ignoring strings and escapes
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode sample = mapper.readTree(new File("areas.json"));
+        com.fasterxml.jackson.databind.node.ArrayNode list = mapper.createArrayNode();
+        for (int i = 0; i < 20; i++) {
+            for (JsonNode area : sample.get("areas")) {
+                com.fasterxml.jackson.databind.node.ObjectNode copy = area.deepCopy();
+                copy.put("curb_area_id", area.get("curb_area_id").asText() + " \"}]{[\\" + i);
+                list.add(copy);
+            }
+        }
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("areas", ".json");
+        mapper.writeValue(file.toFile(), mapper.createObjectNode().put("note", "\"areas\": [{}]").set("areas", list));
+
+        Map<String, Zone> zones = sampleZones();
+        MapRenderer renderer = new MapRenderer();
+        List<List<String>> runs = new ArrayList<>();
+        for (int threads : new int[]{0, 3, -3}) {
+            RenderOptions options = new RenderOptions();
+            options.setParseThreads(Math.abs(threads));
+            options.setParseOrdered(threads >= 0);
+            Recorder listener = new Recorder();
+            assertEquals(0, new RenderPipeline(renderer, options, listener)
+                    .run(MappedFile.open(file), zones::get, null, false, true, 20));
+            listener.assertInOrder();
+            List<String> ids = new ArrayList<>();
+            for (Area area : listener.rendered) {
+                ids.add(area.getCurbAreaId());
+                assertFalse(area.getCurbZones().isEmpty());
+            }
+            runs.add(ids);
+        }
+        assertEquals(list.size(), runs.get(0).size());
+        assertTrue(runs.get(0).get(0).endsWith(" \"}]{[\\0"));
+        assertEquals(runs.get(0), runs.get(1));
+        List<String> unordered = new ArrayList<>(runs.get(2));
+        Collections.sort(unordered);
+        List<String> sorted = new ArrayList<>(runs.get(0));
+        Collections.sort(sorted);
+        assertEquals(sorted, unordered);
+
+        //A truncated file fails rather than quietly dropping areas
+        byte[] bytes = java.nio.file.Files.readAllBytes(file);
+        java.nio.file.Files.write(file, java.util.Arrays.copyOf(bytes, bytes.length / 2));
+        RenderOptions options = new RenderOptions();
+        options.setParseThreads(2);
+        assertThrows(IOException.class, () -> new RenderPipeline(renderer, options, new Recorder())
+                .run(MappedFile.open(file), zones::get, null, false, true, 20));
+    }
+
+    @Test
+    public void renderTiles() throws Throwable {
+        MapRenderer renderer = new MapRenderer();
+        for (Area area : sampleAreas()) {
+            for (boolean straight : new boolean[]{true, false}) {
+                BufferedImage canvas = renderer.renderMap(area, 20, straight);
+                //The canvas starts at the top left tile of the area
+                int[] origin = {Integer.MAX_VALUE, Integer.MAX_VALUE};
+                double[] lonLat = area.getGeometry().getCoordinates();
+                int[] tiles = new int[lonLat.length];
+                CoordinateUtils.project(lonLat, 0, lonLat.length / 2, 20, null, tiles);
+                for (int i = 0; i < tiles.length; i += 2) {
+                    origin[0] = Math.min(origin[0], tiles[i]);
+                    origin[1] = Math.min(origin[1], tiles[i + 1]);
+                }
+                int count = renderer.renderTiles(area, 20, straight, (zoom, x, y, tile) -> {
+                    int left = (x - origin[0]) * 256, top = (y - origin[1]) * 256;
+                    //Strokes on the edge of the canvas can reach tiles it doesn't cover
+                    if (left < 0 || top < 0 || left >= canvas.getWidth() || top >= canvas.getHeight()) {
+                        return;
+                    }
+                    for (int py = 0; py < 256; py++) {
+                        for (int px = 0; px < 256; px++) {
+                            assertEquals(canvas.getRGB(left + px, top + py), tile.getRGB(px, py));
+                        }
+                    }
+                });
+                assertTrue(count > 0);
+            }
+        }
+
+        //The pipeline writes each area as a directory of tiles and says how many
+        RenderOptions options = new RenderOptions();
+        OutputTarget.Memory memory = OutputTarget.memory();
+        options.setOutput(memory);
+        options.setTiles(true);
+        Recorder listener = new Recorder();
+        try (InputStream in = new FileInputStream("areas.json")) {
+            assertEquals(0, new RenderPipeline(renderer, options, listener).run(in, sampleZones(), true, true, 20));
+        }
+        listener.assertInOrder();
+        assertEquals(sampleAreas().size(), listener.rendered.size());
+        int written = 0;
+        for (int tiles : listener.tileCounts) {
+            assertTrue(tiles > 0);
+            written += tiles;
+        }
+        assertEquals(written, memory.getImages().size());
+    }
+
+    @Test
+    public void imageEncoder() throws Throwable {
+        BufferedImage image = new MapRenderer().renderMap(sampleAreas().get(0), 20, true);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", expected);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        new ImageEncoder().encode(image, encoded);
+        assertArrayEquals(expected.toByteArray(), encoded.toByteArray());
+
+        ByteArrayOutputStream fast = new ByteArrayOutputStream();
+        ByteArrayOutputStream small = new ByteArrayOutputStream();
+        new ImageEncoder("png", 1, false).encode(image, fast);
+        new ImageEncoder("png", 9, false).encode(image, small);
+        assertTrue(small.size() <= fast.size());
+
+        //A few flat colours fit a palette exactly
+        BufferedImage flat = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
+        java.awt.Graphics2D g = flat.createGraphics();
+        g.setColor(java.awt.Color.GREEN);
+        g.fillRect(0, 0, 32, 64);
+        g.setColor(java.awt.Color.RED);
+        g.fillRect(32, 0, 16, 64);
+        g.dispose();
+        ByteArrayOutputStream indexed = new ByteArrayOutputStream();
+        new ImageEncoder("png", ImageEncoder.DEFAULT_COMPRESSION, true).encode(flat, indexed);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(indexed.toByteArray()));
+        assertEquals(BufferedImage.TYPE_BYTE_BINARY, decoded.getType());
+        for (int y = 0; y < 64; y++) {
+            for (int x = 0; x < 64; x++) {
+                assertEquals(flat.getRGB(x, y), decoded.getRGB(x, y));
+            }
+        }
+
+        //The pipeline writes through the target in image order
+        OutputTarget.Memory memory = OutputTarget.memory();
+        RenderOptions options = new RenderOptions();
+        options.setOutput(memory);
+        options.setCompressionLevel(1);
+        Recorder listener = new Recorder();
+        RenderPipeline pipeline = new RenderPipeline(new MapRenderer(), options, listener);
+        Map<String, Zone> zones = sampleZones();
+        assertEquals(0, pipeline.run(new FileInputStream("areas.json"), zones, true, true, 20));
+        for (int i = 0; i < listener.outputs.size(); i++) {
+            assertEquals("area_and_zones_" + listener.imageNums.get(i) + ".png", listener.outputs.get(i).getPath());
+        }
+        assertFalse(memory.getImages().isEmpty());
+        for (byte[] png : memory.getImages().values()) {
+            assertNotNull(ImageIO.read(new ByteArrayInputStream(png)));
+        }
+    }
+
+    @Test
+    public void pipelineOrder() throws Throwable {
+        //Enough areas to keep several render threads busy, which finish them out of order
+        ObjectMapper mapper = new ObjectMapper();
+        com.fasterxml.jackson.databind.node.ArrayNode list = mapper.createArrayNode();
+        for (int i = 0; i < 8; i++) {
+            for (JsonNode area : mapper.readTree(new File("areas.json")).get("areas")) {
+                list.add(((com.fasterxml.jackson.databind.node.ObjectNode) area.deepCopy())
+                        .put("curb_area_id", area.get("curb_area_id").asText() + "-" + i));
+            }
+        }
+        byte[] areas = mapper.writeValueAsBytes(mapper.createObjectNode().set("areas", list));
+        Map<String, Zone> zones = sampleZones();
+        RenderOptions options = new RenderOptions();
+        options.setRenderThreads(4);
+        options.setMaxInFlight(3);
+
+        //Rendering never gets more than maxInFlight ahead of a slow writer
+        AtomicInteger started = new AtomicInteger(), written = new AtomicInteger(), ahead = new AtomicInteger();
+        MapRenderer renderer = new MapRenderer() {
+            @Override
+            public BufferedImage renderMap(Area area, int zoom, boolean straight, CanvasPool canvasPool, TileMosaic mosaic) {
+                ahead.accumulateAndGet(started.incrementAndGet() - written.get(), Math::max);
+                return super.renderMap(area, zoom, straight, canvasPool, mosaic);
+            }
+        };
+        Recorder listener = new Recorder() {
+            @Override
+            public void rendered(int imageNum, Area area, int width, int height, File output) {
+                super.rendered(imageNum, area, width, height, output);
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                written.incrementAndGet();
+            }
+        };
+        assertEquals(0, new RenderPipeline(renderer, options, listener)
+                .run(new ByteArrayInputStream(areas), zones, false, true, 18));
+        assertEquals(list.size(), listener.rendered.size());
+        assertTrue(ahead.get() <= options.getMaxInFlight(), ahead + " ahead");
+        //Reported in parse order whatever order they finished in
+        listener.assertInOrder();
+        for (int i = 0; i < list.size(); i++) {
+            assertEquals(list.get(i).get("curb_area_id").asText(), listener.rendered.get(i).getCurbAreaId());
+        }
+
+        //A listener that throws fails its area rather than the writer, which would leave the run waiting forever
+        Recorder throwing = new Recorder() {
+            @Override
+            public void rendered(int imageNum, Area area, int width, int height, File output) {
+                super.rendered(imageNum, area, width, height, output);
+                if (imageNum % 10 == 1) {
+                    throw new IllegalStateException("Listener failed");
+                }
+            }
+        };
+        int failures = assertTimeoutPreemptively(java.time.Duration.ofSeconds(60), () -> new RenderPipeline(
+                new MapRenderer(), options, throwing).run(new ByteArrayInputStream(areas), zones, false, true, 18));
+        assertEquals((list.size() + 8) / 10, failures);
+        assertEquals(list.size(), throwing.rendered.size());
+    }
+
+    @Test
+    public void incrementalRender() throws Throwable {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("incremental");
+        java.nio.file.Path manifestFile = dir.resolve("manifest.json");
+        OutputTarget.Memory memory = OutputTarget.memory();
+        RenderOptions options = new RenderOptions();
+        options.setOutput(memory);
+        options.setManifest(manifestFile);
+        Map<String, Zone> zones = sampleZones();
+        JsonNode areas = new ObjectMapper().readTree(new File("areas.json"));
+        Recorder listener = new Recorder();
+        assertEquals(0, new RenderPipeline(new MapRenderer(), options, listener)
+                .run(new ByteArrayInputStream(areas.toString().getBytes()), zones, true, true, 20));
+        int count = listener.rendered.size();
+        assertTrue(count > 1);
+        assertEquals(count, memory.getImages().size());
+        RenderManifest manifest = RenderManifest.load(manifestFile);
+        assertEquals(count, manifest.getAreas().size());
+        for (RenderManifest.Entry entry : manifest.getAreas().values()) {
+            assertTrue(memory.getImages().containsKey(entry.getOutput()));
+            assertEquals(64, entry.getOutputHash().length());
+        }
+
+        //Nothing changed so nothing is rendered
+        listener = new Recorder();
+        assertEquals(0, new RenderPipeline(new MapRenderer(), options, listener)
+                .run(new ByteArrayInputStream(areas.toString().getBytes()), zones, true, true, 20));
+        assertEquals(0, listener.rendered.size());
+        assertEquals(count, listener.skipped.size());
+        assertTrue(RenderManifest.load(manifestFile).getSettings().contains(" tolerance=0.5 base=classpath:"));
+
+        //Simplifying more changes every image, so they're all rendered again, and again on going back
+        for (double tolerance : new double[]{2, MapRenderer.DEFAULT_TOLERANCE}) {
+            MapRenderer renderer = new MapRenderer();
+            renderer.setTolerance(tolerance);
+            listener = new Recorder();
+            assertEquals(0, new RenderPipeline(renderer, options, listener)
+                    .run(new ByteArrayInputStream(areas.toString().getBytes()), zones, true, true, 20));
+            assertEquals(count, listener.rendered.size());
+        }
+
+        //A dropped area loses its output, a touched one is rendered again
+        com.fasterxml.jackson.databind.node.ArrayNode list = (com.fasterxml.jackson.databind.node.ArrayNode) areas.get("areas");
+        String dropped = list.remove(0).get("curb_area_id").asText();
+        ((com.fasterxml.jackson.databind.node.ObjectNode) list.get(0)).put("last_updated_date", 1L);
+        listener = new Recorder();
+        assertEquals(0, new RenderPipeline(new MapRenderer(), options, listener)
+                .run(new ByteArrayInputStream(areas.toString().getBytes()), zones, true, true, 20));
+        assertEquals(1, listener.rendered.size());
+        assertEquals(count - 2, listener.skipped.size());
+        assertEquals(count - 1, memory.getImages().size());
+        assertNull(RenderManifest.load(manifestFile).get(dropped));
+    }
+
+    @Test
+    public void metrics() throws Throwable {
+        Histogram histogram = new Histogram();
+        for (long v = 1; v <= 100_000; v++) {
+            histogram.record(v * 1000);
+        }
+        assertEquals(100_000, histogram.getCount());
+        assertEquals(100_000_000, histogram.getMax());
+        for (double p : new double[]{50, 90, 99, 99.9}) {
+            double expected = p * 1_000_000;
+            assertEquals(expected, histogram.getValueAtPercentile(p), expected * 0.04);
+        }
+
+        java.nio.file.Path json = java.nio.file.Files.createTempDirectory("metrics").resolve("metrics.json");
+        RenderOptions options = new RenderOptions();
+        options.setMetricsReporter(MetricsReporter.json(json));
+        options.setOutput(OutputTarget.memory());
+        Metrics.global().reset();
+        Map<String, Zone> zones = new HashMap<>();
+        assertEquals(0, new RenderPipeline(new MapRenderer(), options, new Recorder())
+                .run(new FileInputStream("areas.json"), zones, true, true, 20));
+        JsonNode report = new ObjectMapper().readTree(json.toFile());
+        int areas = report.get("counters").get("areas_rendered").asInt();
+        assertTrue(areas > 0);
+        for (String stage : new String[]{"parse_area", "associate"}) {
+            assertTrue(report.get("stages").get(stage).get("count").asInt() >= areas, stage);
+        }
+        for (String stage : new String[]{"project", "concatenate", "draw", "encode", "write"}) {
+            assertEquals(areas, report.get("stages").get(stage).get("count").asInt(), stage);
+        }
+        assertTrue(report.get("counters").get("bytes_written").asLong() > 0);
+        assertTrue(report.get("stages").get("tile_fetch").get("count").asInt() > 0);
+
+        //Only zoom 20 tiles are bundled, the others are counted as missing and the background left in their place
+        long missing = Metrics.global().get(Metrics.Counter.TILES_MISSING);
+        BufferedImage image = new MapRenderer().renderMap(sampleAreas().get(0), 16, true);
+        assertTrue(Metrics.global().get(Metrics.Counter.TILES_MISSING) >= missing + image.getWidth() / 256);
+    }
+
+    @Test
+    public void tileSources() throws Throwable {
+        int zoom = 20, x = 167462, y = 405439;
+        byte[] jpeg = MapRenderer.class.getResourceAsStream("/20-167462-405439.jpeg").readAllBytes();
+        BufferedImage expected = TileSource.classpath().load(zoom, x, y);
+
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("tiles");
+        java.nio.file.Files.createDirectories(dir.resolve("20/167462"));
+        java.nio.file.Files.write(dir.resolve("20/167462/405439.jpeg"), jpeg);
+        TileSource directory = TileSource.directory(dir, "{z}/{x}/{y}.jpeg");
+        directory.prefetch(zoom, x, y, x + 1, y);
+        assertSameImage(expected, directory.load(zoom, x, y));
+        assertThrows(IOException.class, () -> directory.load(zoom, x + 1, y));
+
+        //MBTiles rows count up from the bottom
+        java.nio.file.Path mbtiles = dir.resolve("tiles.mbtiles");
+        try (java.sql.Connection c = java.sql.DriverManager.getConnection("jdbc:sqlite:" + mbtiles)) {
+            c.createStatement().execute("CREATE TABLE tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB)");
+            java.sql.PreparedStatement insert = c.prepareStatement("INSERT INTO tiles VALUES (?, ?, ?, ?)");
+            insert.setInt(1, zoom);
+            insert.setInt(2, x);
+            insert.setInt(3, (1 << zoom) - 1 - y);
+            insert.setBytes(4, jpeg);
+            insert.execute();
+        }
+        try (TileSource source = TileSource.mbtiles(mbtiles)) {
+            source.prefetch(zoom, x - 1, y - 1, x + 1, y + 1);
+            assertSameImage(expected, source.load(zoom, x, y));
+            assertThrows(IOException.class, () -> source.load(zoom, x, y + 1));
+        }
+
+        //A slow server, so concurrent requests overlap
+        AtomicInteger requests = new AtomicInteger(), concurrent = new AtomicInteger(), peak = new AtomicInteger();
+        com.sun.net.httpserver.HttpServer server = com.sun.net.httpserver.HttpServer.create(new java.net.InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            peak.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            boolean found = exchange.getRequestURI().getPath().equals("/20/167462/405439.jpeg");
+            exchange.sendResponseHeaders(found ? 200 : 404, found ? jpeg.length : -1);
+            if (found) {
+                exchange.getResponseBody().write(jpeg);
+            }
+            concurrent.decrementAndGet();
+            exchange.close();
+        });
+        server.start();
+        try {
+            TileSource http = TileSource.http("http://127.0.0.1:" + server.getAddress().getPort() + "/{z}/{x}/{y}.jpeg", 2);
+            List<java.util.concurrent.CompletableFuture<BufferedImage>> same = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                same.add(http.loadAsync(zoom, x, y));
+            }
+            for (java.util.concurrent.CompletableFuture<BufferedImage> f : same) {
+                assertSameImage(expected, f.join());
+            }
+            assertEquals(1, requests.get());
+
+            List<java.util.concurrent.CompletableFuture<BufferedImage>> different = new ArrayList<>();
+            for (int i = 1; i <= 6; i++) {
+                different.add(http.loadAsync(zoom, x + i, y));
+            }
+            for (java.util.concurrent.CompletableFuture<BufferedImage> f : different) {
+                assertThrows(java.util.concurrent.CompletionException.class, f::join);
+            }
+            assertEquals(7, requests.get());
+            assertTrue(peak.get() <= 2, "peak " + peak.get());
+            assertThrows(IOException.class, () -> http.load(zoom, x + 1, y));
+        } finally {
+            server.stop(0);
+        }
+
+        //A request that can't be sent fails its tile rather than leaving it loading, the second time too
+        TileSource unsendable = TileSource.http("ftp://127.0.0.1/{z}/{x}/{y}.jpeg", 1);
+        for (int i = 0; i < 2; i++) {
+            assertTrue(unsendable.loadAsync(zoom, x, y).isCompletedExceptionally());
+        }
+        assertThrows(IOException.class, () -> unsendable.load(zoom, x, y));
+
+        //A cache loads through a source asynchronously, so far more tiles than it has I/O threads can be loading
+        //at once, and a tile asked for while it's loading shares the load
+        List<java.util.concurrent.CompletableFuture<BufferedImage>> pending = Collections.synchronizedList(new ArrayList<>());
+        TileCache async = new TileCache(TileCache.DEFAULT_MAX_BYTES, new TileSource() {
+            @Override
+            public BufferedImage load(int zoom, int x, int y) {
+                throw new AssertionError("Loaded synchronously");
+            }
+
+            @Override
+            public java.util.concurrent.CompletableFuture<BufferedImage> loadAsync(int zoom, int x, int y) {
+                java.util.concurrent.CompletableFuture<BufferedImage> future = new java.util.concurrent.CompletableFuture<>();
+                pending.add(future);
+                return future;
+            }
+        });
+        List<java.util.concurrent.CompletableFuture<BufferedImage>> loading = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            loading.add(async.getAsync(zoom, x + i, y));
+        }
+        assertSame(loading.get(0), async.getAsync(zoom, x, y));
+        assertEquals(64, pending.size());
+        for (java.util.concurrent.CompletableFuture<BufferedImage> f : pending) {
+            f.complete(expected);
+        }
+        for (java.util.concurrent.CompletableFuture<BufferedImage> f : loading) {
+            assertSame(expected, f.join());
+        }
+        assertEquals(64, async.size());
+        assertEquals(64, async.getMisses());
+
+        //Renders the same through any source
+        Area area = sampleAreas().get(0);
+        MapRenderer fromDirectory = new MapRenderer(TileSource.directory(
+                java.nio.file.Paths.get("src/main/resources"), "{z}-{x}-{y}.jpeg"));
+        assertSameImage(new MapRenderer().renderMap(area, 20, true), fromDirectory.renderMap(area, 20, true));
+    }
+
+    @Test
+    public void renderService() throws Throwable {
+        RenderOptions options = new RenderOptions();
+        options.setZoneSnapshots(false);
+        MapRenderer renderer = new MapRenderer();
+        Area area = sampleAreas().get(0);
+        try (RenderService service = new RenderService(renderer, options, 2, java.time.Duration.ofSeconds(30))) {
+            service.load(java.nio.file.Paths.get("zones.json"), java.nio.file.Paths.get("areas.json"));
+            service.start(new java.net.InetSocketAddress("127.0.0.1", 0));
+            String base = "http://127.0.0.1:" + service.getPort();
+            java.net.http.HttpClient client = java.net.http.HttpClient.newHttpClient();
+
+            java.net.http.HttpResponse<byte[]> png = client.send(java.net.http.HttpRequest.newBuilder(
+                    java.net.URI.create(base + "/areas/" + area.getCurbAreaId() + ".png")).build(),
+                    java.net.http.HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals(200, png.statusCode());
+            assertEquals("image/png", png.headers().firstValue("Content-Type").orElse(null));
+            assertSameImage(renderer.renderMap(area, 20, true), ImageIO.read(new ByteArrayInputStream(png.body())));
+
+            assertEquals(404, client.send(java.net.http.HttpRequest.newBuilder(
+                    java.net.URI.create(base + "/areas/missing.png")).build(),
+                    java.net.http.HttpResponse.BodyHandlers.discarding()).statusCode());
+            assertEquals(400, client.send(java.net.http.HttpRequest.newBuilder(
+                    java.net.URI.create(base + "/areas/" + area.getCurbAreaId() + ".png?zoom=40")).build(),
+                    java.net.http.HttpResponse.BodyHandlers.discarding()).statusCode());
+            assertEquals(405, client.send(java.net.http.HttpRequest.newBuilder(
+                    java.net.URI.create(base + "/reload")).build(),
+                    java.net.http.HttpResponse.BodyHandlers.discarding()).statusCode());
+
+            //The area's bounding box finds its zones spatially
+            double[] b = area.getGeometry().computeBounds();
+            java.net.http.HttpResponse<byte[]> box = client.send(java.net.http.HttpRequest.newBuilder(
+                    java.net.URI.create(base + "/bbox?minLon=" + b[0] + "&minLat=" + b[1] + "&maxLon=" + b[2]
+                            + "&maxLat=" + b[3] + "&zoom=18")).build(),
+                    java.net.http.HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals(200, box.statusCode());
+            assertNotNull(ImageIO.read(new ByteArrayInputStream(box.body())));
+
+            //A posted area without ids renders like the loaded one at the same zoom
+            String posted = "{\"curb_area_id\":\"posted\",\"geometry\":"
+                    + new ObjectMapper().readTree(new File("areas.json")).get("areas").get(0).get("geometry") + "}";
+            java.net.http.HttpResponse<byte[]> render = client.send(java.net.http.HttpRequest.newBuilder(
+                    java.net.URI.create(base + "/render?zoom=19"))
+                    .POST(java.net.http.HttpRequest.BodyPublishers.ofString(posted)).build(),
+                    java.net.http.HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals(200, render.statusCode());
+            assertNotNull(ImageIO.read(new ByteArrayInputStream(render.body())));
+
+            java.net.http.HttpResponse<byte[]> tiles = client.send(java.net.http.HttpRequest.newBuilder(
+                    java.net.URI.create(base + "/areas/" + area.getCurbAreaId() + "/tiles.zip")).build(),
+                    java.net.http.HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals(200, tiles.statusCode());
+            int entries = 0;
+            try (java.util.zip.ZipInputStream zip = new java.util.zip.ZipInputStream(new ByteArrayInputStream(tiles.body()))) {
+                while (zip.getNextEntry() != null) {
+                    entries++;
+                }
+            }
+            assertTrue(entries > 0);
+
+            int areas = service.getAreaCount(), zones = service.getZoneCount();
+            java.net.http.HttpResponse<String> reload = client.send(java.net.http.HttpRequest.newBuilder(
+                    java.net.URI.create(base + "/reload")).POST(java.net.http.HttpRequest.BodyPublishers.noBody()).build(),
+                    java.net.http.HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, reload.statusCode());
+            assertEquals(areas, new ObjectMapper().readTree(reload.body()).get("areas").asInt());
+            assertEquals(zones, service.getZoneCount());
+
+            //A box too big for a canvas at its zoom is refused rather than drawn
+            java.net.http.HttpResponse<String> huge = client.send(java.net.http.HttpRequest.newBuilder(
+                    java.net.URI.create(base + "/bbox?minLon=" + (b[0] - 0.1) + "&minLat=" + (b[1] - 0.1)
+                            + "&maxLon=" + (b[2] + 0.1) + "&maxLat=" + (b[3] + 0.1) + "&zoom=20")).build(),
+                    java.net.http.HttpResponse.BodyHandlers.ofString());
+            assertEquals(400, huge.statusCode());
+            assertTrue(huge.body().contains("the most is " + service.getMaxTiles()), huge.body());
+            //Without a zoom it's drawn zoomed out until it fits
+            java.net.http.HttpResponse<byte[]> fitted = client.send(java.net.http.HttpRequest.newBuilder(
+                    java.net.URI.create(base + "/bbox?minLon=" + (b[0] - 0.1) + "&minLat=" + (b[1] - 0.1)
+                            + "&maxLon=" + (b[2] + 0.1) + "&maxLat=" + (b[3] + 0.1))).build(),
+                    java.net.http.HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals(200, fitted.statusCode());
+            BufferedImage zoomedOut = ImageIO.read(new ByteArrayInputStream(fitted.body()));
+            assertTrue((long) zoomedOut.getWidth() * zoomedOut.getHeight() <= service.getMaxTiles() * 256 * 256);
+        }
+
+        //A request failing outside its render gets a 500, and a render that times out gives up its permit
+        java.util.concurrent.CountDownLatch finish = new java.util.concurrent.CountDownLatch(1);
+        MapRenderer slow = new MapRenderer() {
+            @Override
+            public BufferedImage renderMap(Area area, int zoom, boolean straight, CanvasPool canvasPool, TileMosaic mosaic) {
+                try {
+                    finish.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.renderMap(area, zoom, straight, canvasPool, mosaic);
+            }
+        };
+        options.setZoomPolicy(a -> {
+            throw new IllegalStateException("No zoom");
+        });
+        try (RenderService service = new RenderService(slow, options, 1, java.time.Duration.ofMillis(500))) {
+            service.load(java.nio.file.Paths.get("zones.json"), java.nio.file.Paths.get("areas.json"));
+            service.start(new java.net.InetSocketAddress("127.0.0.1", 0));
+            String base = "http://127.0.0.1:" + service.getPort() + "/areas/" + area.getCurbAreaId() + ".png";
+            java.net.http.HttpClient client = java.net.http.HttpClient.newHttpClient();
+            assertEquals(500, client.send(java.net.http.HttpRequest.newBuilder(java.net.URI.create(base)).build(),
+                    java.net.http.HttpResponse.BodyHandlers.discarding()).statusCode());
+            assertEquals(504, client.send(java.net.http.HttpRequest.newBuilder(java.net.URI.create(base + "?zoom=20")).build(),
+                    java.net.http.HttpResponse.BodyHandlers.discarding()).statusCode());
+            java.net.http.HttpResponse<String> status = client.send(java.net.http.HttpRequest.newBuilder(
+                    java.net.URI.create("http://127.0.0.1:" + service.getPort() + "/status")).build(),
+                    java.net.http.HttpResponse.BodyHandlers.ofString());
+            assertEquals(0, new ObjectMapper().readTree(status.body()).get("rendering").asInt());
+            finish.countDown();
+            assertEquals(200, client.send(java.net.http.HttpRequest.newBuilder(java.net.URI.create(base + "?zoom=20")).build(),
+                    java.net.http.HttpResponse.BodyHandlers.discarding()).statusCode());
+        }
+    }
+
+    @Test
+    public void tileMosaic() throws Throwable {
+        MapRenderer renderer = new MapRenderer();
+        TileMosaic mosaic = new TileMosaic();
+        //Composed once and copied, the base tiles come out the same as drawing them per area
+        for (int pass = 0; pass < 2; pass++) {
+            for (Area area : sampleAreas()) {
+                for (boolean straight : new boolean[]{true, false}) {
+                    assertSameImage(renderer.renderMap(area, 20, straight),
+                            renderer.renderMap(area, 20, straight, null, mosaic));
+                }
+            }
+        }
+        assertTrue(mosaic.size() > 0);
+
+        //Over budget the least recently used regions are dropped and composed again when needed
+        TileMosaic small = new TileMosaic(0);
+        for (Area area : sampleAreas()) {
+            assertSameImage(renderer.renderMap(area, 19, true), renderer.renderMap(area, 19, true, null, small));
+            assertEquals(1, small.size());
+        }
+
+        //Missing tiles are prefetched as a range, and one that fails is composed once it loads
+        Area area = sampleAreas().get(0);
+        java.util.concurrent.atomic.AtomicBoolean failing = new java.util.concurrent.atomic.AtomicBoolean(true);
+        AtomicInteger prefetches = new AtomicInteger();
+        TileSource bundled = TileSource.classpath();
+        MapRenderer flaky = new MapRenderer(new TileSource() {
+            @Override
+            public BufferedImage load(int zoom, int x, int y) throws IOException {
+                if (failing.get()) {
+                    throw new IOException("Offline");
+                }
+                return bundled.load(zoom, x, y);
+            }
+
+            @Override
+            public void prefetch(int zoom, int minX, int minY, int maxX, int maxY) {
+                prefetches.incrementAndGet();
+            }
+        });
+        TileMosaic offline = new TileMosaic();
+        flaky.renderMap(area, 20, true, null, offline);
+        assertTrue(prefetches.get() > 0);
+        failing.set(false);
+        assertSameImage(renderer.renderMap(area, 20, true), flaky.renderMap(area, 20, true, null, offline));
+
+        //Grouping areas by region renders in a different order but writes the same images in parse order
+        Map<String, Zone> zones = sampleZones();
+        List<Map<String, byte[]>> outputs = new ArrayList<>();
+        for (TileMosaic m : new TileMosaic[]{null, new TileMosaic()}) {
+            RenderOptions options = new RenderOptions();
+            OutputTarget.Memory memory = OutputTarget.memory();
+            options.setOutput(memory);
+            options.setMaxInFlight(8);
+            options.setMosaic(m);
+            Recorder listener = new Recorder();
+            try (InputStream in = new FileInputStream("areas.json")) {
+                assertEquals(0, new RenderPipeline(renderer, options, listener).run(in, zones, true, true, 20));
+            }
+            listener.assertInOrder();
+            outputs.add(memory.getImages());
+        }
+        assertEquals(outputs.get(0).keySet(), outputs.get(1).keySet());
+        for (String name : outputs.get(0).keySet()) {
+            assertArrayEquals(outputs.get(0).get(name), outputs.get(1).get(name), name);
+        }
+
+        //Incrementally, a changed area held back in a batch doesn't stop the unchanged ones after it being written
+        RenderOptions options = new RenderOptions();
+        options.setOutput(OutputTarget.memory());
+        options.setManifest(java.nio.file.Files.createTempDirectory("mosaic").resolve("manifest.json"));
+        options.setMaxInFlight(4);
+        JsonNode areas = new ObjectMapper().readTree(new File("areas.json"));
+        assertTrue(areas.get("areas").size() > options.getMaxInFlight());
+        assertEquals(0, new RenderPipeline(renderer, options, new Recorder())
+                .run(new ByteArrayInputStream(areas.toString().getBytes()), zones, true, true, 20));
+        ((com.fasterxml.jackson.databind.node.ObjectNode) areas.get("areas").get(0)).put("last_updated_date", 1L);
+        options.setMosaic(new TileMosaic());
+        Recorder listener = new Recorder();
+        assertEquals(0, assertTimeoutPreemptively(java.time.Duration.ofSeconds(60), () -> new RenderPipeline(renderer,
+                options, listener).run(new ByteArrayInputStream(areas.toString().getBytes()), zones, true, true, 20)));
+        assertEquals(1, listener.rendered.size());
+        assertEquals(areas.get("areas").size() - 1, listener.skipped.size());
+        listener.assertInOrder();
+    }
+
+    @Test
+    public void vectorOutput() throws Throwable {
+        MapRenderer renderer = new MapRenderer();
+        VectorRenderer vectors = new VectorRenderer();
+        ObjectMapper mapper = new ObjectMapper();
+        for (Area area : sampleAreas()) {
+            BufferedImage image = renderer.renderMap(area, 20, false);
+
+            //Both documents are the size of the canvas, with the outline and a line per curb
+            org.w3c.dom.Document svg = javax.xml.parsers.DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                    .parse(new ByteArrayInputStream(vectors.render(area, 20, false, VectorFormat.SVG)));
+            assertEquals(String.valueOf(image.getWidth()), svg.getDocumentElement().getAttribute("width"));
+            assertEquals(String.valueOf(image.getHeight()), svg.getDocumentElement().getAttribute("height"));
+
+            JsonNode json = mapper.readTree(vectors.render(area, 20, false, VectorFormat.JSON));
+            assertEquals(area.getCurbAreaId(), json.get("curb_area_id").asText());
+            assertEquals(image.getWidth(), json.get("width").asInt());
+            assertEquals(image.getHeight(), json.get("height").asInt());
+            assertTrue(json.get("outline").size() >= 8);
+            for (int i = 0; i < json.get("outline").size(); i += 2) {
+                int x = json.get("outline").get(i).asInt(), y = json.get("outline").get(i + 1).asInt();
+                assertTrue(x >= 0 && x < image.getWidth() && y >= 0 && y < image.getHeight());
+            }
+            assertEquals(svg.getElementsByTagName("path").getLength(), json.get("curbs").size() > 0 ? 2 : 1);
+
+            //Every tile's lines stay within the extent and its buffer
+            List<int[]> tiles = new ArrayList<>();
+            vectors.renderTiles(area, 20, false, (z, x, y, tile) -> {
+                tiles.add(new int[]{x, y});
+                int[] layers = {0};
+                readMessage(tile, 0, tile.length, (field, from, to) -> {
+                    assertEquals(3, field);
+                    layers[0]++;
+                    readMessage(tile, from, to, (layerField, f, t) -> {
+                        if (layerField == 2) {
+                            readMessage(tile, f, t, (featureField, gf, gt) -> {
+                                if (featureField == 4) {
+                                    int[] cursor = new int[2];
+                                    long[] value = new long[1];
+                                    int p = gf, params = 0, n = 0;
+                                    while (p < gt) {
+                                        p = readVarint(tile, p, value);
+                                        if (params == 0) {
+                                            params = (int) (value[0] >> 3) * 2;
+                                            continue;
+                                        }
+                                        int delta = (int) ((value[0] >>> 1) ^ -(value[0] & 1));
+                                        cursor[n++ & 1] += delta;
+                                        params--;
+                                        assertTrue(cursor[0] >= -64 && cursor[0] <= 4096 + 64, "x " + cursor[0]);
+                                        assertTrue(cursor[1] >= -64 && cursor[1] <= 4096 + 64, "y " + cursor[1]);
+                                    }
+                                }
+                            });
+                        }
+                    });
+                });
+                assertTrue(layers[0] > 0);
+            });
+            assertFalse(tiles.isEmpty());
+        }
+
+        //The pipeline writes a document per area, far smaller than the images
+        Map<String, Zone> zones = sampleZones();
+        RenderOptions options = new RenderOptions();
+        OutputTarget.Memory memory = OutputTarget.memory();
+        options.setOutput(memory);
+        options.setVectorFormat(VectorFormat.SVG);
+        Recorder listener = new Recorder();
+        try (InputStream in = new FileInputStream("areas.json")) {
+            assertEquals(0, new RenderPipeline(renderer, options, listener).run(in, zones, true, false, 20));
+        }
+        assertFalse(memory.getImages().isEmpty());
+        for (Map.Entry<String, byte[]> e : memory.getImages().entrySet()) {
+            assertTrue(e.getKey().endsWith(".svg"), e.getKey());
+            assertTrue(e.getValue().length < 100_000, e.getKey() + " " + e.getValue().length);
+        }
+        options.setTiles(true);
+        assertThrows(IllegalArgumentException.class, () -> new RenderPipeline(renderer, options, listener));
+    }
+
+    interface FieldVisitor {
+        void visit(int field, int from, int to);
+    }
+
+    /**
+     * Calls back for each length delimited field of a protobuf message, skipping varints
+     */
+    static void readMessage(byte[] bytes, int from, int to, FieldVisitor visitor) {
+        long[] value = new long[1];
+        int p = from;
+        while (p < to) {
+            p = readVarint(bytes, p, value);
+            int field = (int) (value[0] >>> 3), type = (int) (value[0] & 7);
+            p = readVarint(bytes, p, value);
+            if (type == 2) {
+                visitor.visit(field, p, p + (int) value[0]);
+                p += (int) value[0];
+            } else {
+                assertEquals(0, type);
+            }
+        }
+        assertEquals(to, p);
+    }
+
+    static int readVarint(byte[] bytes, int p, long[] value) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = bytes[p++];
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                value[0] = v;
+                return p;
+            }
+        }
+    }
+
+    @Test
+    public void leanZones() throws Throwable {
+        Map<String, Zone> full = new HashMap<>();
+        ObjectMapper mapper = new ObjectMapper();
+        for (JsonNode node : mapper.readTree(new File("zones.json")).get("zones")) {
+            Zone zone = mapper.treeToValue(node, Zone.class);
+            full.put(zone.getCurbZoneId(), zone);
+        }
+        MappedFile file = MappedFile.open(java.nio.file.Paths.get("zones.json"));
+        ZoneIndex.Builder streamed = new ZoneIndex.Builder();
+        ZoneProcessor.processZonesLean(file, streamed);
+        ZoneIndex.Builder chunked = new ZoneIndex.Builder();
+        java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(2);
+        try {
+            ZoneProcessor.processZonesLean(file, pool, true, chunked);
+        } finally {
+            pool.shutdown();
+        }
+        for (ZoneIndex.Builder builder : new ZoneIndex.Builder[]{streamed, chunked}) {
+            List<Zone> lean = builder.build().search(-180, -90, 180, 90);
+            assertEquals(full.size(), lean.size());
+            Map<String, String> streets = new HashMap<>();
+            for (Zone zone : lean) {
+                Zone expected = full.get(zone.getCurbZoneId());
+                assertArrayEquals(expected.getGeometry().getCoordinates(), zone.getGeometry().getCoordinates());
+                assertEquals(expected.getLastUpdatedDate(), zone.getLastUpdatedDate());
+                assertEquals(expected.getStartDate(), zone.getStartDate());
+                //Decoded from the file when asked for
+                assertEquals(expected.getStreetName(), zone.getStreetName());
+                assertEquals(expected.getCurbPolicyIds(), zone.getCurbPolicyIds());
+                assertEquals(expected.getLocationReferences(), zone.getLocationReferences());
+                assertEquals(expected.getParkingAngle(), zone.getParkingAngle());
+                assertEquals(expected.getNumSpaces(), zone.getNumSpaces());
+                //Repeated strings are shared
+                String street = streets.putIfAbsent(zone.getStreetName(), zone.getStreetName());
+                if (street != null) {
+                    assertSame(street, zone.getStreetName());
+                }
+            }
+            assertTrue(streets.size() < lean.size());
+        }
+
+        //Renders the same as fully bound zones
+        Map<String, Zone> leanById = new HashMap<>();
+        for (Zone zone : streamed.build().search(-180, -90, 180, 90)) {
+            leanById.put(zone.getCurbZoneId(), zone);
+        }
+        MapRenderer renderer = new MapRenderer();
+        Area area = sampleAreas().get(0);
+        BufferedImage expected = renderer.renderMap(area, 20, false);
+        List<Zone> leanZones = new ArrayList<>();
+        for (Zone zone : area.getCurbZones()) {
+            leanZones.add(leanById.get(zone.getCurbZoneId()));
+        }
+        area.setCurbZones(leanZones);
+        assertSameImage(expected, renderer.renderMap(area, 20, false));
+    }
+
+    @Test
+    public void shardedRender() throws Throwable {
+        List<Area> sample = sampleAreas();
+        Map<String, Zone> zones = sampleZones();
+        //Every area has exactly one shard of any count, and both keys spread areas over all of them
+        ObjectMapper objectMapper = new ObjectMapper();
+        java.util.Random random = new java.util.Random(7);
+        List<Area> spread = new ArrayList<>(sample);
+        for (int k = 0; k < 2000; k++) {
+            Area area = objectMapper.readValue("{\"curb_area_id\":\"area-" + k + "\"}", Area.class);
+            double lon = random.nextDouble() * 360 - 180, lat = random.nextDouble() * 160 - 80;
+            area.setGeometry(new Geometry("Polygon",
+                    new double[]{lon, lat, lon + 0.0001, lat, lon + 0.0001, lat + 0.0001, lon, lat}, new int[]{0, 4}));
+            spread.add(area);
+        }
+        for (Shard.Key key : Shard.Key.values()) {
+            for (int count = 1; count <= 8; count++) {
+                int[] sizes = new int[count];
+                for (Area area : spread) {
+                    int owner = -1;
+                    for (int i = 0; i < count; i++) {
+                        if (new Shard(i, count, key).owns(area)) {
+                            assertEquals(-1, owner, area.getCurbAreaId() + " is in two of " + count + " shards by " + key);
+                            owner = i;
+                        }
+                    }
+                    assertNotEquals(-1, owner, area.getCurbAreaId() + " is in none of " + count + " shards by " + key);
+                    sizes[owner]++;
+                }
+                for (int size : sizes) {
+                    assertTrue(size > spread.size() / count / 2, key + " " + java.util.Arrays.toString(sizes));
+                }
+            }
+        }
+        //By tile, a different area centred in the same tile shares the shard
+        int neighbours = 0;
+        for (Area area : spread) {
+            double[] c = area.getGeometry().getCoordinates();
+            Area neighbour = objectMapper.readValue("{\"curb_area_id\":\"neighbour\"}", Area.class);
+            neighbour.setGeometry(new Geometry("Polygon", new double[]{c[0], c[1], c[0] + 0.0002, c[1],
+                    c[0] + 0.0002, c[1] + 0.0002, c[0], c[1]}, new int[]{0, 4}));
+            double[] a = area.getGeometry().computeBounds(), b = neighbour.getGeometry().computeBounds();
+            if (java.util.Arrays.equals(CoordinateUtils.toTileNumbers((a[0] + a[2]) / 2, (a[1] + a[3]) / 2, 14),
+                    CoordinateUtils.toTileNumbers((b[0] + b[2]) / 2, (b[1] + b[3]) / 2, 14))) {
+                neighbours++;
+                for (int i = 0; i < 5; i++) {
+                    Shard shard = new Shard(i, 5, Shard.Key.TILE);
+                    assertEquals(shard.owns(area), shard.owns(neighbour));
+                }
+            }
+        }
+        assertTrue(neighbours > spread.size() / 2);
+        assertThrows(IllegalArgumentException.class, () -> new Shard(3, 3, Shard.Key.AREA_ID));
+
+        //The shards render every area once between them, and their manifests merge into the whole
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("sharded");
+        java.nio.file.Path manifestFile = dir.resolve("manifest.json");
+        JsonNode areas = new ObjectMapper().readTree(new File("areas.json"));
+        Set<String> rendered = new HashSet<>();
+        RenderManifest merged = new RenderManifest();
+        for (int i = 0; i < 3; i++) {
+            Shard shard = new Shard(i, 3, Shard.Key.AREA_ID);
+            RenderOptions options = new RenderOptions();
+            options.setOutput(OutputTarget.memory());
+            options.setShard(shard);
+            options.setManifest(shard.manifestFor(manifestFile));
+            options.setCheckpointInterval(1);
+            Recorder listener = new Recorder();
+            assertEquals(0, new RenderPipeline(new MapRenderer(), options, listener)
+                    .run(new ByteArrayInputStream(areas.toString().getBytes()), zones, true, true, 20));
+            for (Area area : listener.rendered) {
+                assertTrue(shard.owns(area));
+                assertTrue(rendered.add(area.getCurbAreaId()));
+            }
+            assertEquals("manifest.shard-" + i + "-of-3.json", options.getManifest().getFileName().toString());
+            merged.merge(RenderManifest.load(options.getManifest()));
+        }
+        assertEquals(sample.size(), rendered.size());
+        assertEquals(rendered, merged.getAreas().keySet());
+        assertThrows(IllegalArgumentException.class,
+                () -> merged.merge(RenderManifest.load(new Shard(0, 3, Shard.Key.AREA_ID).manifestFor(manifestFile))));
+
+        //Areas that move to another shard, as they do by tile when redrawn elsewhere, are forgotten by the old one
+        //but their outputs, which the new shard writes over in the shared directory, are kept
+        OutputTarget.Memory shared = OutputTarget.memory();
+        RenderOptions options = new RenderOptions();
+        options.setOutput(shared);
+        options.setManifest(dir.resolve("moved.json"));
+        options.setShard(new Shard(0, 1, Shard.Key.AREA_ID));
+        assertEquals(0, new RenderPipeline(new MapRenderer(), options, new Recorder())
+                .run(new ByteArrayInputStream(areas.toString().getBytes()), zones, true, true, 20));
+        Shard shrunk = new Shard(0, 3, Shard.Key.AREA_ID);
+        options.setShard(shrunk);
+        assertEquals(0, new RenderPipeline(new MapRenderer(), options, new Recorder())
+                .run(new ByteArrayInputStream(areas.toString().getBytes()), zones, true, true, 20));
+        assertEquals(sample.size(), shared.getImages().size());
+        Set<String> kept = new HashSet<>();
+        for (Area area : sample) {
+            if (shrunk.owns(area)) {
+                kept.add(area.getCurbAreaId());
+            }
+        }
+        assertTrue(kept.size() < sample.size());
+        assertEquals(kept, RenderManifest.load(options.getManifest()).getAreas().keySet());
+    }
+
+    @Test
+    public void shardCoordinator() throws Throwable {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("coordinator");
+        java.nio.file.Path zones = java.nio.file.Files.copy(java.nio.file.Paths.get("zones.json"), dir.resolve("zones.json"));
+        java.nio.file.Path areas = java.nio.file.Files.copy(java.nio.file.Paths.get("areas.json"), dir.resolve("areas.json"));
+        java.nio.file.Path out = dir.resolve("out");
+        java.nio.file.Path manifest = dir.resolve("manifest.json");
+        java.nio.file.Path restarted = dir.resolve("restarted");
+        Set<String> ids = new HashSet<>();
+        for (Area area : sampleAreas()) {
+            ids.add(area.getCurbAreaId());
+        }
+
+        //The second worker crashes at once and is restarted while the first, which waits for that, is still running
+        Set<Integer> crashed = java.util.concurrent.ConcurrentHashMap.newKeySet();
+        ShardCoordinator coordinator = new ShardCoordinator(zones, areas, out, manifest, 2, Shard.Key.AREA_ID) {
+            @Override
+            protected List<String> command(int index, int threads) {
+                List<String> command = new ArrayList<>(List.of("sh", "-c", index == 0
+                        ? "while [ ! -e \"$0\" ]; do sleep 0.1; done; shift; exec \"$@\""
+                        : "touch \"$0\"; shift; exec \"$@\"", restarted.toString(), ""));
+                if (index == 1 && crashed.add(index)) {
+                    return List.of("sh", "-c", "exit 3");
+                }
+                command.addAll(super.command(index, threads));
+                return command;
+            }
+        };
+        RenderManifest merged = assertTimeoutPreemptively(java.time.Duration.ofSeconds(120), coordinator::run);
+        assertEquals(Set.of(1), crashed);
+        assertEquals(ids, merged.getAreas().keySet());
+        for (RenderManifest.Entry entry : merged.getAreas().values()) {
+            assertTrue(java.nio.file.Files.exists(out.resolve(entry.getOutput())), entry.getOutput());
+        }
+        assertEquals(merged.getAreas().keySet(), RenderManifest.load(manifest).getAreas().keySet());
+
+        //A worker that keeps crashing fails the batch
+        ShardCoordinator failing = new ShardCoordinator(zones, areas, out, dir.resolve("failing.json"), 2, Shard.Key.AREA_ID) {
+            @Override
+            protected List<String> command(int index, int threads) {
+                return index == 0 ? super.command(index, threads) : List.of("sh", "-c", "exit 3");
+            }
+        };
+        failing.setMaxRestarts(1);
+        IOException e = assertThrows(IOException.class, failing::run);
+        assertTrue(e.getMessage().startsWith("Shard 1 of 2 failed 2 time(s)"), e.getMessage());
+
+        //A worker started again after crashing resumes from its last checkpoint, skipping what it had written
+        java.nio.file.Path resumed = dir.resolve("resumed.json");
+        java.nio.file.Path checkpoint = dir.resolve("checkpoint.json");
+        JsonNode json = new ObjectMapper().readTree(areas.toFile());
+        Map<String, Zone> sampleZones = sampleZones();
+        RenderOptions options = new RenderOptions();
+        options.setManifest(resumed);
+        options.setCheckpointInterval(1);
+        try (OutputTarget output = OutputTarget.directory(dir.resolve("resumed"))) {
+            options.setOutput(output);
+            Recorder listener = new Recorder() {
+                @Override
+                public void rendered(int imageNum, Area area, int width, int height, File output) {
+                    //The manifest as a crash here would leave it, with the first two areas
+                    if (rendered.size() == 2) {
+                        try {
+                            java.nio.file.Files.copy(resumed, checkpoint);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                    super.rendered(imageNum, area, width, height, output);
+                }
+            };
+            assertEquals(0, new RenderPipeline(new MapRenderer(), options, listener)
+                    .run(new ByteArrayInputStream(json.toString().getBytes()), sampleZones, true, true, 20));
+            assertEquals(2, RenderManifest.load(checkpoint).getAreas().size());
+            java.nio.file.Files.copy(checkpoint, resumed, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            listener = new Recorder();
+            assertEquals(0, new RenderPipeline(new MapRenderer(), options, listener)
+                    .run(new ByteArrayInputStream(json.toString().getBytes()), sampleZones, true, true, 20));
+            assertEquals(2, listener.skipped.size());
+            assertEquals(ids.size() - 2, listener.rendered.size());
+            assertEquals(ids, RenderManifest.load(resumed).getAreas().keySet());
+        }
+    }
+
+    @Test
+    public void scalarProjection() throws Throwable {
+        //However it was built and started, the scalar batch loops give the same as projecting a vertex at a time
+        boolean vectorised = CoordinateUtils.isVectorised();
+        double[] lonLat = projectionInput();
+        int vertices = lonLat.length / 2;
+        int[] pixels = new int[lonLat.length], tiles = new int[lonLat.length];
+        try {
+            CoordinateUtils.setVectorised(false);
+            for (int zoom : new int[]{0, 14, 20}) {
+                int[] bounds = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+                int[] expectedBounds = bounds.clone();
+                CoordinateUtils.project(lonLat, 1, vertices, zoom, pixels, tiles);
+                CoordinateUtils.bounds(pixels, 3, vertices * 2 - 3, bounds);
+                for (int i = 1; i < vertices; i++) {
+                    int[] pixel = CoordinateUtils.toPixelCoordinates(lonLat[i * 2], lonLat[i * 2 + 1], zoom);
+                    int o = (i - 1) * 2;
+                    assertEquals(pixel[0], pixels[o]);
+                    assertEquals(pixel[1], pixels[o + 1]);
+                    assertEquals(pixels[o] >> 8, tiles[o]);
+                    assertEquals(pixels[o + 1] >> 8, tiles[o + 1]);
+                }
+                for (int i = 3; i < vertices * 2 - 3; i += 2) {
+                    expectedBounds[0] = Math.min(expectedBounds[0], pixels[i]);
+                    expectedBounds[1] = Math.min(expectedBounds[1], pixels[i + 1]);
+                    expectedBounds[2] = Math.max(expectedBounds[2], pixels[i]);
+                    expectedBounds[3] = Math.max(expectedBounds[3], pixels[i + 1]);
+                }
+                assertArrayEquals(expectedBounds, bounds);
+            }
+        } finally {
+            CoordinateUtils.setVectorised(vectorised);
+        }
+    }
+
+    @Test
+    public void vectorProjection() throws Throwable {
+        //Only built by the vector profile, which also starts surefire's JVM with the incubator module
+        assumeTrue(CoordinateUtils.isVectorised());
+        double[] lonLat = projectionInput();
+        int vertices = lonLat.length / 2;
+        int[] pixels = new int[lonLat.length], tiles = new int[lonLat.length];
+        int[] scalarPixels = new int[lonLat.length], scalarTiles = new int[lonLat.length];
+        int[] bounds = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+        int[] scalarBounds = bounds.clone();
+        try {
+            for (int zoom : new int[]{0, 14, 20}) {
+                CoordinateUtils.project(lonLat, 1, vertices, zoom, pixels, tiles);
+                CoordinateUtils.bounds(pixels, 3, vertices * 2 - 3, bounds);
+                CoordinateUtils.setVectorised(false);
+                CoordinateUtils.project(lonLat, 1, vertices, zoom, scalarPixels, scalarTiles);
+                CoordinateUtils.bounds(scalarPixels, 3, vertices * 2 - 3, scalarBounds);
+                CoordinateUtils.setVectorised(true);
+                int off = 0;
+                for (int i = 0; i < pixels.length; i++) {
+                    //x is exact, y within the documented pixel
+                    if (i % 2 == 0) {
+                        assertEquals(scalarPixels[i], pixels[i]);
+                    } else if (pixels[i] != scalarPixels[i]) {
+                        assertEquals(scalarPixels[i], pixels[i], 1);
+                        off++;
+                    }
+                    assertEquals(pixels[i] >> 8, tiles[i]);
+                }
+                assertTrue(off <= vertices / 1000, off + " pixels differ");
+                assertArrayEquals(scalarBounds, bounds);
+            }
+        } finally {
+            CoordinateUtils.setVectorised(true);
+        }
+    }
+
+    /**
+     * Random vertices over the whole world, an odd number so there's a tail after the vectors, starting with two
+     * beyond the limits, which are clamped, and the sample areas
+     */
+    double[] projectionInput() throws IOException {
+        java.util.Random random = new java.util.Random(42);
+        double[] lonLat = new double[200_001 * 2];
+        for (int i = 0; i < lonLat.length; i += 2) {
+            lonLat[i] = random.nextDouble() * 360 - 180;
+            lonLat[i + 1] = random.nextDouble() * 180 - 90;
+        }
+        lonLat[0] = -200;
+        lonLat[1] = 90;
+        lonLat[2] = 200;
+        lonLat[3] = -90;
+        for (Area area : sampleAreas()) {
+            double[] coordinates = area.getGeometry().getCoordinates();
+            System.arraycopy(coordinates, 0, lonLat, 4, coordinates.length);
+        }
+        return lonLat;
+    }
+
+    void assertSameImage(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+    /**
+     * The sample areas with their zones, read without the processors whose callbacks are package private
+     */
+    List<Area> sampleAreas() throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        Map<String, Zone> zones = new HashMap<>();
+        for (JsonNode node : objectMapper.readTree(new File("zones.json")).get("zones")) {
+            Zone zone = objectMapper.treeToValue(node, Zone.class);
+            zones.put(zone.getCurbZoneId(), zone);
+        }
+        List<Area> areas = new ArrayList<>();
+        for (JsonNode node : objectMapper.readTree(new File("areas.json")).get("areas")) {
+            Area area = objectMapper.treeToValue(node, Area.class);
+            List<Zone> curbZones = new ArrayList<>();
+            for (String id : area.getCurbZoneIds()) {
+                if (zones.containsKey(id)) {
+                    curbZones.add(zones.get(id));
+                }
+            }
+            area.setCurbZones(curbZones);
+            areas.add(area);
+        }
+        return areas;
+    }
+
+    /**
+     * The first two zones of zones.json, the first without an id and with a null policy id
+     */
+    String zonesWithoutIds() throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        JsonNode zones = objectMapper.readTree(new File("zones.json")).get("zones");
+        com.fasterxml.jackson.databind.node.ObjectNode unnamed = (com.fasterxml.jackson.databind.node.ObjectNode) zones.get(0);
+        unnamed.remove("curb_zone_id");
+        unnamed.putArray("curb_policy_ids").addNull().add("p-1");
+        com.fasterxml.jackson.databind.node.ObjectNode document = objectMapper.createObjectNode();
+        document.putArray("zones").add(unnamed).add(zones.get(1));
+        return objectMapper.writeValueAsString(document);
+    }
+
+    /**
+     * The zones of the sample areas by id
+     */
+    Map<String, Zone> sampleZones() throws IOException {
+        Map<String, Zone> zones = new HashMap<>();
+        for (Area area : sampleAreas()) {
+            for (Zone zone : area.getCurbZones()) {
+                zones.put(zone.getCurbZoneId(), zone);
+            }
+        }
+        return zones;
+    }
+
+    /**
+     * Records what a pipeline reports, which it does from its writer thread so is read once the run has returned.
+     * Failures are recorded rather than failing the test as the pipeline catches what its listener throws, so
+     * tests check the run's count of failures
+     */
+    static class Recorder implements RenderListener {
+        final List<Integer> imageNums = new ArrayList<>();
+        final List<Area> rendered = new ArrayList<>();
+        final List<File> outputs = new ArrayList<>();
+        final List<Integer> tileCounts = new ArrayList<>();
+        final List<Area> skipped = new ArrayList<>();
+        final List<File> levels = new ArrayList<>();
+        final List<Integer> levelZooms = new ArrayList<>();
+        final List<Throwable> failures = new ArrayList<>();
+
+        @Override
+        public void rendered(int imageNum, Area area, int width, int height, File output) {
+            imageNums.add(imageNum);
+            rendered.add(area);
+            outputs.add(output);
+        }
+
+        @Override
+        public void renderedTiles(int imageNum, Area area, int tiles, File directory) {
+            imageNums.add(imageNum);
+            rendered.add(area);
+            outputs.add(directory);
+            tileCounts.add(tiles);
+        }
+
+        @Override
+        public void skipped(int imageNum, Area area, File output) {
+            imageNums.add(imageNum);
+            skipped.add(area);
+        }
+
+        @Override
+        public void renderedLevel(int imageNum, Area area, int zoom, int width, int height, File output) {
+            levels.add(output);
+            levelZooms.add(zoom);
+        }
+
+        @Override
+        public void failed(int imageNum, Area area, Throwable t) {
+            imageNums.add(imageNum);
+            failures.add(t);
+        }
+
+        /**
+         * Asserts areas were reported in image number order, none missing
+         */
+        void assertInOrder() {
+            for (int i = 0; i < imageNums.size(); i++) {
+                assertEquals(i, imageNums.get(i));
+            }
+        }
+    }
+
     void log(Object o){
        System.out.println(o);
     }
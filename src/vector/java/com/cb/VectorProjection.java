@@ -0,0 +1,91 @@
+package com.cb;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The batch loops of CoordinateUtils over SIMD lanes with the incubating Vector API. Only compiled by the vector
+ * profile, and only loaded once CoordinateUtils has found jdk.incubator.vector in the boot layer, so the JVM must be
+ * started with --add-modules jdk.incubator.vector. Callers handle the tail of fewer vertices than there are lanes.
+ * <p>
+ * Projecting gathers a vector's worth of longitudes and latitudes from the interleaved pairs, so tan and log are only
+ * taken of latitudes, and scatters the pixels back. The same operations are applied in the same order as the scalar
+ * code, so xs and the bounds are bit-exact. Ys go through the vector tan and log, which like Math's are within 1 ulp
+ * of the exact result but needn't be the same double, so a y on the very edge of a pixel may be 1 from the scalar
+ * one. No differences have been seen on x86, but that's the documented tolerance.
+ */
+final class VectorProjection implements CoordinateUtils.Loops {
+
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    //Half the bits so there's an int lane per double lane
+    private static final VectorSpecies<Integer> INTS =
+            VectorSpecies.of(int.class, VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+    private static final VectorSpecies<Integer> BOUNDS = IntVector.SPECIES_PREFERRED;
+
+    //Where the longitudes, and latitudes, of a vector's worth of vertices are
+    private static final int[] EVENS = new int[DOUBLES.length()];
+    private static final int[] ODDS = new int[DOUBLES.length()];
+    static {
+        for (int i = 0; i < EVENS.length; i++) {
+            EVENS[i] = i * 2;
+            ODDS[i] = i * 2 + 1;
+        }
+    }
+    //Even lanes are xs
+    private static final VectorMask<Integer> XS = VectorMask.fromLong(BOUNDS, 0x5555555555555555L);
+
+    //Created reflectively by CoordinateUtils
+    VectorProjection() {
+    }
+
+    @Override
+    public int vertices() {
+        return DOUBLES.length();
+    }
+
+    @Override
+    public int project(double[] lonLat, int from, int to, double scale, int[] pixels) {
+        double half = CoordinateUtils.EARTH_HALF_CIRCUMFERENCE;
+        int step = vertices();
+        int i = from;
+        for (int o = 0; i + step <= to; i += step, o += step * 2) {
+            DoubleVector lon = DoubleVector.fromArray(DOUBLES, lonLat, i * 2, EVENS, 0).min(180).max(-180);
+            DoubleVector lat = DoubleVector.fromArray(DOUBLES, lonLat, i * 2, ODDS, 0)
+                    .min(CoordinateUtils.MAX_LAT).max(-CoordinateUtils.MAX_LAT);
+            //mercatorX and mercatorY, shifted to the top left, with the scalar code's operations in its order
+            DoubleVector x = lon.mul(half).div(180).add(half).mul(scale);
+            DoubleVector y = lat.add(90).mul(Math.PI).div(360)
+                    .lanewise(VectorOperators.TAN)
+                    .lanewise(VectorOperators.LOG)
+                    .div(Math.PI / 180).mul(half).div(180);
+            y = DoubleVector.broadcast(DOUBLES, half).sub(y).mul(scale);
+            ((IntVector) x.convertShape(VectorOperators.D2I, INTS, 0)).intoArray(pixels, o, EVENS, 0);
+            ((IntVector) y.convertShape(VectorOperators.D2I, INTS, 0)).intoArray(pixels, o, ODDS, 0);
+        }
+        return i;
+    }
+
+    @Override
+    public int bounds(int[] values, int from, int to, int[] bounds) {
+        int step = BOUNDS.length();
+        int i = from;
+        if (i + step > to) {
+            return i;
+        }
+        IntVector min = IntVector.fromArray(BOUNDS, values, i), max = min;
+        for (i += step; i + step <= to; i += step) {
+            IntVector v = IntVector.fromArray(BOUNDS, values, i);
+            min = min.min(v);
+            max = max.max(v);
+        }
+        bounds[0] = Math.min(bounds[0], min.reduceLanes(VectorOperators.MIN, XS));
+        bounds[1] = Math.min(bounds[1], min.reduceLanes(VectorOperators.MIN, XS.not()));
+        bounds[2] = Math.max(bounds[2], max.reduceLanes(VectorOperators.MAX, XS));
+        bounds[3] = Math.max(bounds[3], max.reduceLanes(VectorOperators.MAX, XS.not()));
+        return i;
+    }
+}